@@ -361,6 +361,56 @@ public class OpenStego {
         return correl;
     }
 
+    /**
+     * Method to check the correlation for the given image and several original signatures. The image is decoded and
+     * transformed only once for all the signatures which use the same transform parameters.
+     *
+     * @param stegoData Stego data containing the watermark
+     * @param stegoFileName Name of the stego file
+     * @param origSigDataList List of original signature data
+     * @return Correlation for every signature, in the order of the list
+     * @throws OpenStegoException
+     */
+    public double[] checkMarks(byte[] stegoData, String stegoFileName, List<byte[]> origSigDataList) throws OpenStegoException {
+        if (!this.plugin.getPurposes().contains(OpenStegoPlugin.Purpose.WATERMARKING)) {
+            throw new OpenStegoException(null, OpenStego.NAMESPACE, OpenStegoException.PLUGIN_DOES_NOT_SUPPORT_WM);
+        }
+
+        if (this.plugin instanceof WatermarkingPlugin) {
+            return ((WatermarkingPlugin) this.plugin).checkMarks(stegoData, stegoFileName, origSigDataList);
+        }
+
+        double[] correlations = new double[origSigDataList.size()];
+        for (int i = 0; i < correlations.length; i++) {
+            correlations[i] = this.plugin.checkMark(stegoData, stegoFileName, origSigDataList.get(i));
+        }
+        return correlations;
+    }
+
+    /**
+     * Method to check the correlation for the given image and several original signatures (alternate API)
+     *
+     * @param stegoFile Stego file from which watermark needs to be extracted
+     * @param origSigFiles Original signature files
+     * @return Correlation for every signature file, in the order of the list
+     * @throws OpenStegoException
+     */
+    public double[] checkMarks(File stegoFile, List<File> origSigFiles) throws OpenStegoException {
+        List<byte[]> origSigDataList = new ArrayList<>();
+
+        for (File origSigFile : origSigFiles) {
+            origSigDataList.add(CommonUtil.getFileBytes(origSigFile));
+        }
+
+        double[] correls = checkMarks(CommonUtil.getFileBytes(stegoFile), stegoFile.getName(), origSigDataList);
+        for (int i = 0; i < correls.length; i++) {
+            if (Double.isNaN(correls[i])) {
+                correls[i] = 0.0;
+            }
+        }
+        return correls;
+    }
+
     /**
      * Method to generate the signature data using the given plugin
      *
@@ -47,6 +47,26 @@ public abstract class WatermarkingPlugin extends CommonPluginTemplateGetters {
         return null;
     }
 
+    /**
+     * Method to check the correlation of the given image with several signatures. This implementation calls
+     * {@link #checkMark(byte[], String, byte[])} for every signature; plugins can override it to decode and transform
+     * the image only once for all the signatures which use the same transform.
+     *
+     * @param stegoData Stego data containing the watermark
+     * @param stegoFileName Name of the stego file
+     * @param origSigDataList List of original signature data
+     * @return Correlation for every signature, in the order of the list
+     * @throws OpenStegoException
+     */
+    public double[] checkMarks(byte[] stegoData, String stegoFileName, List<byte[]> origSigDataList) throws OpenStegoException {
+        double[] correlations = new double[origSigDataList.size()];
+
+        for (int i = 0; i < correlations.length; i++) {
+            correlations[i] = checkMark(stegoData, stegoFileName, origSigDataList.get(i));
+        }
+        return correlations;
+    }
+
     /**
      * Method to get correlation value which above which it can be considered that watermark strength is high (default
      * to 0.5 which is safe for general watermarking)
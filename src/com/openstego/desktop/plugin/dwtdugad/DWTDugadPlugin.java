@@ -11,15 +11,23 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import com.openstego.desktop.OpenStegoException;
 import com.openstego.desktop.plugin.template.image.WMImagePluginTemplate;
 import com.openstego.desktop.util.ImageHolder;
 import com.openstego.desktop.util.ImageUtil;
 import com.openstego.desktop.util.LabelUtil;
+import com.openstego.desktop.util.SignatureUtil;
 import com.openstego.desktop.util.StringUtil;
 import com.openstego.desktop.util.dwt.DWT;
 import com.openstego.desktop.util.dwt.Image;
@@ -48,6 +56,16 @@ public class DWTDugadPlugin extends WMImagePluginTemplate {
     private static final String SIG_MARKER = "DGSG";
     private static final String WM_MARKER = "DGWM";
 
+    /**
+     * Minimum number of subband coefficients for the subbands to be processed using multiple threads
+     */
+    private static final int PARALLEL_MIN_SAMPLES = 1 << 15;
+
+    /**
+     * Flag to indicate whether the wavelet coefficients are to be stored in single precision
+     */
+    private boolean singlePrecision = false;
+
     /**
      * Default constructor
      */
@@ -94,7 +112,7 @@ public class DWTDugadPlugin extends WMImagePluginTemplate {
         List<int[][]> yuv = null;
         DWT dwt = null;
         ImageTree dwtTree = null;
-        ImageTree s = null;
+        Image[] subBands = null;
         Signature sig = null;
         int[][] luminance = null;
         int imgType = 0;
@@ -114,24 +132,22 @@ public class DWTDugadPlugin extends WMImagePluginTemplate {
         yuv = ImageUtil.getYuvFromImage(image.getImage());
         luminance = yuv.get(0);
 
-        sig = new Signature(msg);
+        sig = getSignature(msg);
 
         // Wavelet transform
         dwt = new DWT(cols, rows, sig.filterID, sig.decompositionLevel, sig.waveletFilterMethod);
+        dwt.setSinglePrecision(this.singlePrecision);
         dwtTree = dwt.forwardDWT(luminance);
-        s = dwtTree;
+        subBands = getSubBands(dwtTree, sig.decompositionLevel);
 
-        // Embed watermark in all subbands of a decomposition level
-        for (int i = 0; i < sig.decompositionLevel; i++) {
-            wmSubBand(s.getHorizontal().getImage(), sig.watermark, sig.watermarkLength, sig.alpha, sig.castingThreshold);
-            wmSubBand(s.getVertical().getImage(), sig.watermark, sig.watermarkLength, sig.alpha, sig.castingThreshold);
-            wmSubBand(s.getDiagonal().getImage(), sig.watermark, sig.watermarkLength, sig.alpha, sig.castingThreshold);
-            s = s.getCoarse();
-        }
+        // Embed watermark in all subbands of all decomposition levels
+        embedSubBands(subBands, sig, dwt.isParallel());
 
         dwt.inverseDWT(dwtTree, luminance);
+        dwtTree.release();
         yuv.set(0, luminance);
         image.setImage(ImageUtil.getImageFromYuv(yuv, imgType));
+        ImageUtil.releasePlanes(yuv);
 
         return ImageUtil.imageToByteArray(image, stegoFileName, this);
     }
@@ -149,27 +165,97 @@ public class DWTDugadPlugin extends WMImagePluginTemplate {
     public byte[] extractData(byte[] stegoData, String stegoFileName, byte[] origSigData) throws OpenStegoException {
         ImageHolder image = null;
         DWT dwt = null;
-        ImageTree dwtTree = null;
-        ImageTree s = null;
+        Object[][] vals = null;
         Signature sig = null;
         int[][] luminance = null;
         int cols = 0;
         int rows = 0;
-        ByteArrayOutputStream baos = null;
-        ObjectOutputStream oos = null;
-        Object[] vals = null;
 
         image = ImageUtil.byteArrayToImage(stegoData, stegoFileName);
 
         cols = image.getImage().getWidth();
         rows = image.getImage().getHeight();
-        luminance = ImageUtil.getYuvFromImage(image.getImage()).get(0);
-        sig = new Signature(origSigData);
+        List<int[][]> yuv = ImageUtil.getYuvFromImage(image.getImage());
+        luminance = yuv.get(0);
+        sig = getSignature(origSigData);
 
-        // Wavelet transform
+        // Wavelet transform, correlating the detail subbands with the watermark while they are computed
         dwt = new DWT(cols, rows, sig.filterID, sig.decompositionLevel, sig.waveletFilterMethod);
-        dwtTree = dwt.forwardDWT(luminance);
-        s = dwtTree;
+        dwt.setSinglePrecision(this.singlePrecision);
+        vals = correlateSubBands(dwt, luminance, Collections.singletonList(sig)).get(0);
+        ImageUtil.releasePlanes(yuv);
+
+        return getWatermarkData(sig, vals);
+    }
+
+    /**
+     * Method to check the correlation of the given image with several signatures. The image is decoded only once, and
+     * the signatures are grouped by wavelet filter, filter method and decomposition level: the detail subbands of each
+     * group are computed once and correlated with all the watermarks of the group.
+     *
+     * @param stegoData Stego data containing the watermark
+     * @param stegoFileName Name of the stego file
+     * @param origSigDataList List of original signature data
+     * @return Correlation for every signature, in the order of the list
+     * @throws OpenStegoException
+     */
+    @Override
+    public double[] checkMarks(byte[] stegoData, String stegoFileName, List<byte[]> origSigDataList) throws OpenStegoException {
+        ImageHolder image = null;
+        List<int[][]> yuv = null;
+        Map<List<Integer>, List<Integer>> groups = new LinkedHashMap<>();
+        Signature[] sigs = new Signature[origSigDataList.size()];
+        double[] correlations = new double[sigs.length];
+        int cols = 0;
+        int rows = 0;
+
+        if (sigs.length == 0) {
+            return correlations;
+        }
+        for (int i = 0; i < sigs.length; i++) {
+            sigs[i] = getSignature(origSigDataList.get(i));
+            groups.computeIfAbsent(Arrays.asList(sigs[i].filterID, sigs[i].waveletFilterMethod, sigs[i].decompositionLevel),
+                k -> new ArrayList<>()).add(i);
+        }
+
+        image = ImageUtil.byteArrayToImage(stegoData, stegoFileName);
+        cols = image.getImage().getWidth();
+        rows = image.getImage().getHeight();
+        yuv = ImageUtil.getYuvFromImage(image.getImage());
+
+        for (List<Integer> group : groups.values()) {
+            List<Signature> groupSigs = new ArrayList<>();
+            List<Object[][]> groupVals = null;
+            Signature first = sigs[group.get(0)];
+            DWT dwt = null;
+
+            for (int i : group) {
+                groupSigs.add(sigs[i]);
+            }
+            dwt = new DWT(cols, rows, first.filterID, first.decompositionLevel, first.waveletFilterMethod);
+            dwt.setSinglePrecision(this.singlePrecision);
+            groupVals = correlateSubBands(dwt, yuv.get(0), groupSigs);
+            for (int j = 0; j < group.size(); j++) {
+                int i = group.get(j);
+                correlations[i] = getWatermarkCorrelation(origSigDataList.get(i), getWatermarkData(sigs[i], groupVals.get(j)));
+            }
+        }
+        ImageUtil.releasePlanes(yuv);
+
+        return correlations;
+    }
+
+    /**
+     * Method to serialize the extracted watermark data
+     *
+     * @param sig Signature used for the extraction
+     * @param vals Watermark data of every subband
+     * @return Extracted watermark data
+     * @throws OpenStegoException
+     */
+    private byte[] getWatermarkData(Signature sig, Object[][] vals) throws OpenStegoException {
+        ByteArrayOutputStream baos = null;
+        ObjectOutputStream oos = null;
 
         try {
             baos = new ByteArrayOutputStream();
@@ -179,23 +265,10 @@ public class DWTDugadPlugin extends WMImagePluginTemplate {
             oos.writeInt(sig.decompositionLevel);
             oos.writeDouble(sig.alpha);
 
-            for (int i = 0; i < sig.decompositionLevel; i++) {
-                vals = invWmSubBand(s.getHorizontal().getImage(), sig.watermark, sig.watermarkLength, sig.detectionThreshold);
-                oos.writeInt((Integer) vals[0]);
-                oos.writeDouble((Double) vals[1]);
-                oos.writeDouble((Double) vals[2]);
-
-                vals = invWmSubBand(s.getVertical().getImage(), sig.watermark, sig.watermarkLength, sig.detectionThreshold);
-                oos.writeInt((Integer) vals[0]);
-                oos.writeDouble((Double) vals[1]);
-                oos.writeDouble((Double) vals[2]);
-
-                vals = invWmSubBand(s.getDiagonal().getImage(), sig.watermark, sig.watermarkLength, sig.detectionThreshold);
-                oos.writeInt((Integer) vals[0]);
-                oos.writeDouble((Double) vals[1]);
-                oos.writeDouble((Double) vals[2]);
-
-                s = s.getCoarse();
+            for (int i = 0; i < vals.length; i++) {
+                oos.writeInt((Integer) vals[i][0]);
+                oos.writeDouble((Double) vals[i][1]);
+                oos.writeDouble((Double) vals[i][2]);
             }
 
             oos.flush();
@@ -313,41 +386,259 @@ public class DWTDugadPlugin extends WMImagePluginTemplate {
         return labelUtil.getString("plugin.usage");
     }
 
+    /**
+     * Get method for singlePrecision
+     *
+     * @return singlePrecision
+     */
+    public boolean isSinglePrecision() {
+        return this.singlePrecision;
+    }
+
+    /**
+     * Set method for singlePrecision. When enabled, the wavelet transforms store their coefficients in float arrays
+     * (see {@link DWT#setSinglePrecision(boolean)}). The default is double precision.
+     *
+     * @param singlePrecision Value for singlePrecision to be set
+     */
+    public void setSinglePrecision(boolean singlePrecision) {
+        this.singlePrecision = singlePrecision;
+    }
+
     /**
      * Embeds a watermark of 'n' normally distributed values into 'a' coefficents greater than threshold value of a
      * subband
      */
     private void wmSubBand(Image img, double[] wm, int n, double a, double threshold) {
-        for (int i = 0; i < img.getWidth() * img.getHeight(); i++) {
-            if (Math.abs(img.getData()[i]) > threshold) {
-                img.getData()[i] += (a * Math.abs(img.getData()[i]) * wm[i % n]);
+        double[] data = img.getData();
+        int width = img.getWidth();
+        int k = 0;
+
+        if (n <= 0) {
+            return;
+        }
+
+        // The coefficients are walked row by row, using the watermark values cyclically. Every row is split into runs
+        // which use consecutive watermark values, so that the inner loops need neither a modulo nor index checks.
+        for (int y = 0; y < img.getHeight(); y++) {
+            int row = y * img.getStride();
+            for (int x = 0; x < width;) {
+                int len = Math.min(width - x, n - k);
+                if (data != null) {
+                    wmRun(data, img.getOffset() + row + x, wm, k, len, a, threshold);
+                } else {
+                    for (int j = 0; j < len; j++) {
+                        double value = img.getValue(row + x + j);
+                        if (Math.abs(value) > threshold) {
+                            img.setValue(row + x + j, value + (a * Math.abs(value) * wm[k + j]));
+                        }
+                    }
+                }
+                x += len;
+                k += len;
+                if (k == n) {
+                    k = 0;
+                }
             }
         }
     }
 
     /**
-     * Extracts the watermark data from subband
+     * Embeds consecutive watermark values into a run of coefficients
      */
-    private Object[] invWmSubBand(Image img, double[] wm, int n, double threshold) {
-        int m = 0;
-        double z = 0.0;
-        double v = 0.0;
+    private static void wmRun(double[] data, int start, double[] wm, int wmStart, int len, double a, double threshold) {
+        for (int j = 0; j < len; j++) {
+            double value = data[start + j];
+            if (Math.abs(value) > threshold) {
+                data[start + j] = value + (a * Math.abs(value) * wm[wmStart + j]);
+            }
+        }
+    }
 
-        for (int i = 0; i < img.getWidth() * img.getHeight(); i++) {
-            if (img.getData()[i] > threshold) {
-                z += (img.getData()[i] * wm[i % n]);
-                v += Math.abs(img.getData()[i]);
+    /**
+     * Extracts the watermark data from a strip of columns of a subband. The coefficient at (x, y) of the subband uses
+     * the watermark value <code>(y * width + x) % n</code>, as when walking the whole subband row by row.
+     *
+     * @param strip Strip of the subband
+     * @param x0 Index of the first column of the strip in the subband
+     * @param width Width of the subband
+     * @param wm Watermark values
+     * @param n Number of watermark values
+     * @param threshold Detection threshold
+     * @return Number of coefficients used, correlation and sum of magnitudes
+     */
+    private double[] invWmStrip(Image strip, int x0, int width, double[] wm, int n, double threshold) {
+        double[] data = strip.getData();
+        double[] sums = new double[3];
+
+        for (int y = 0; y < strip.getHeight() && n > 0; y++) {
+            int row = y * strip.getStride();
+            int k = (int) (((long) y * width + x0) % n);
+            for (int x = 0; x < strip.getWidth();) {
+                int len = Math.min(strip.getWidth() - x, n - k);
+                if (data != null) {
+                    invWmRun(data, strip.getOffset() + row + x, wm, k, len, threshold, sums);
+                } else {
+                    for (int j = 0; j < len; j++) {
+                        double value = strip.getValue(row + x + j);
+                        if (value > threshold) {
+                            sums[1] += (value * wm[k + j]);
+                            sums[2] += Math.abs(value);
+                            sums[0]++;
+                        }
+                    }
+                }
+                x += len;
+                k += len;
+                if (k == n) {
+                    k = 0;
+                }
+            }
+        }
+
+        return sums;
+    }
+
+    /**
+     * Correlates a run of coefficients with consecutive watermark values. The number of coefficients used, the
+     * correlation and the sum of magnitudes are added to <code>sums</code>.
+     */
+    private static void invWmRun(double[] data, int start, double[] wm, int wmStart, int len, double threshold, double[] sums) {
+        int m = 0;
+        double z = sums[1];
+        double v = sums[2];
+
+        for (int j = 0; j < len; j++) {
+            double value = data[start + j];
+            if (value > threshold) {
+                z += (value * wm[wmStart + j]);
+                v += Math.abs(value);
                 m++;
             }
         }
 
-        return new Object[] { m, z, v };
+        sums[0] += m;
+        sums[1] = z;
+        sums[2] = v;
+    }
+
+    /**
+     * Method to get the detail subbands of the given levels, in the order horizontal, vertical and diagonal for each
+     * level, starting with the finest level
+     *
+     * @param dwtTree Wavelet tree
+     * @param levels Number of levels
+     * @return Subband images
+     */
+    private Image[] getSubBands(ImageTree dwtTree, int levels) {
+        Image[] subBands = new Image[3 * levels];
+        ImageTree s = dwtTree;
+
+        for (int i = 0; i < levels; i++) {
+            subBands[3 * i] = s.getHorizontal().getImage();
+            subBands[3 * i + 1] = s.getVertical().getImage();
+            subBands[3 * i + 2] = s.getDiagonal().getImage();
+            s = s.getCoarse();
+        }
+
+        return subBands;
+    }
+
+    /**
+     * Method to embed the watermark into all the given subbands. As the subbands do not overlap, they are processed
+     * concurrently for large images.
+     *
+     * @param subBands Subband images
+     * @param sig Signature
+     * @param parallel Whether multiple threads may be used
+     */
+    private void embedSubBands(Image[] subBands, Signature sig, boolean parallel) {
+        getSubBandStream(subBands, parallel).forEach(
+            i -> wmSubBand(subBands[i], sig.watermark, sig.watermarkLength, sig.alpha, sig.castingThreshold));
+    }
+
+    /**
+     * Method to extract the watermark data of several signatures from all the detail subbands. The subbands are not
+     * stored: every strip of columns is correlated with the watermarks as soon as the wavelet transform has computed
+     * it, possibly on several threads. The partial results are then added up per subband from left to right, so that
+     * the result does not depend on the order in which the strips were computed.
+     *
+     * @param dwt Wavelet transform
+     * @param luminance Luminance of the image
+     * @param sigs Signatures, all with the decomposition level of the wavelet transform
+     * @return Watermark data (number of coefficients used, correlation and sum of magnitudes) of every subband for every
+     *         signature, in the order horizontal, vertical and diagonal for each level, starting with the finest level
+     */
+    private List<Object[][]> correlateSubBands(DWT dwt, int[][] luminance, List<Signature> sigs) {
+        List<double[]> partials = Collections.synchronizedList(new ArrayList<>());
+        int bandCount = 3 * sigs.get(0).decompositionLevel;
+        double[][] sums = new double[sigs.size() * bandCount][3];
+        List<Object[][]> vals = new ArrayList<>();
+
+        dwt.forwardDWTdetails(luminance, (level, orientation, strip, x, width) -> {
+            for (int s = 0; s < sigs.size(); s++) {
+                Signature sig = sigs.get(s);
+                double[] partial = invWmStrip(strip, x, width, sig.watermark, sig.watermarkLength, sig.detectionThreshold);
+                partials.add(new double[] { s * bandCount + 3 * (level - 1) + orientation, x, partial[0], partial[1], partial[2] });
+            }
+        });
+
+        partials.sort((p1, p2) -> (p1[0] != p2[0]) ? Double.compare(p1[0], p2[0]) : Double.compare(p1[1], p2[1]));
+        for (double[] partial : partials) {
+            double[] subBandSums = sums[(int) partial[0]];
+            subBandSums[0] += partial[2];
+            subBandSums[1] += partial[3];
+            subBandSums[2] += partial[4];
+        }
+        for (int s = 0; s < sigs.size(); s++) {
+            Object[][] sigVals = new Object[bandCount][];
+            for (int i = 0; i < bandCount; i++) {
+                double[] subBandSums = sums[s * bandCount + i];
+                sigVals[i] = new Object[] { (int) subBandSums[0], subBandSums[1], subBandSums[2] };
+            }
+            vals.add(sigVals);
+        }
+
+        return vals;
+    }
+
+    /**
+     * Get a stream over the indexes of the given subbands, parallel if requested and if the subbands are large enough
+     */
+    private static IntStream getSubBandStream(Image[] subBands, boolean parallel) {
+        IntStream stream = IntStream.range(0, subBands.length);
+        long samples = 0;
+
+        for (Image subBand : subBands) {
+            samples += (long) subBand.getWidth() * subBand.getHeight();
+        }
+        if (parallel && samples >= PARALLEL_MIN_SAMPLES && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            stream = stream.parallel();
+        }
+        return stream;
+    }
+
+    /**
+     * Method to get the parsed signature for the given signature data, from the signature cache if it was already
+     * parsed
+     *
+     * @param sigData Signature data
+     * @return Signature (shared, not to be modified)
+     * @throws OpenStegoException
+     */
+    private Signature getSignature(byte[] sigData) throws OpenStegoException {
+        return SignatureUtil.getCachedSignature(NAMESPACE, sigData, Signature::new);
     }
 
     /**
-     * Private class for the data structure required for the signature
+     * Class for the data structure required for the signature (also read by {@link DWTDugadSignatureIndex})
      */
-    private class Signature {
+    static class Signature {
+        /**
+         * Size of the fields before the watermark in the binary format (in bytes)
+         */
+        private static final int BINARY_FIELDS_SIZE = 4 * 4 + 3 * 8;
+
         /**
          * Signature stamp
          */
@@ -419,12 +710,53 @@ public class DWTDugadPlugin extends WMImagePluginTemplate {
         }
 
         /**
-         * Constructor that takes existing the signature data
+         * Constructor that takes existing the signature data, in the binary format or in the old object stream format
          *
          * @param sigData Existing signature data
          * @throws OpenStegoException
          */
         public Signature(byte[] sigData) throws OpenStegoException {
+            if (SignatureUtil.isLegacyFormat(sigData)) {
+                readLegacy(sigData);
+            } else {
+                read(ByteBuffer.wrap(sigData));
+            }
+        }
+
+        /**
+         * Constructor that reads the signature data in the binary format from a buffer (which may be memory-mapped)
+         *
+         * @param sigData Existing signature data (from its current position)
+         * @throws OpenStegoException
+         */
+        public Signature(ByteBuffer sigData) throws OpenStegoException {
+            read(sigData);
+        }
+
+        /**
+         * Read the signature in the binary format
+         */
+        private void read(ByteBuffer sigData) throws OpenStegoException {
+            ByteBuffer buffer = SignatureUtil.openBuffer(sigData, SIG_MARKER, NAMESPACE, DWTDugadErrors.ERR_SIG_NOT_VALID);
+
+            SignatureUtil.checkRemaining(buffer, BINARY_FIELDS_SIZE, NAMESPACE, DWTDugadErrors.ERR_SIG_NOT_VALID);
+            this.watermarkLength = buffer.getInt();
+            this.waveletFilterMethod = buffer.getInt();
+            this.filterID = buffer.getInt();
+            this.decompositionLevel = buffer.getInt();
+            this.alpha = buffer.getDouble();
+            this.castingThreshold = buffer.getDouble();
+            this.detectionThreshold = buffer.getDouble();
+
+            SignatureUtil.checkRemaining(buffer, 8L * this.watermarkLength, NAMESPACE, DWTDugadErrors.ERR_SIG_NOT_VALID);
+            this.watermark = new double[this.watermarkLength];
+            buffer.asDoubleBuffer().get(this.watermark);
+        }
+
+        /**
+         * Read the signature in the old object stream format
+         */
+        private void readLegacy(byte[] sigData) throws OpenStegoException {
             ObjectInputStream ois = null;
             byte[] inputSig = new byte[this.sig.length];
 
@@ -459,32 +791,18 @@ public class DWTDugadPlugin extends WMImagePluginTemplate {
          * @throws OpenStegoException
          */
         public byte[] getSigData() throws OpenStegoException {
-            ByteArrayOutputStream baos = null;
-            ObjectOutputStream oos = null;
-
-            try {
-                baos = new ByteArrayOutputStream();
-                oos = new ObjectOutputStream(baos);
-                oos.write(this.sig);
-                oos.writeInt(this.watermarkLength);
-                oos.writeInt(this.waveletFilterMethod);
-                oos.writeInt(this.filterID);
-                oos.writeInt(this.decompositionLevel);
-                oos.writeDouble(this.alpha);
-                oos.writeDouble(this.castingThreshold);
-                oos.writeDouble(this.detectionThreshold);
-
-                for (int i = 0; i < this.watermarkLength; i++) {
-                    oos.writeDouble(this.watermark[i]);
-                }
-
-                oos.flush();
-                oos.close();
-
-                return baos.toByteArray();
-            } catch (IOException ioEx) {
-                throw new OpenStegoException(ioEx);
-            }
+            ByteBuffer buffer = SignatureUtil.createBuffer(SIG_MARKER, BINARY_FIELDS_SIZE + 8 * this.watermarkLength);
+
+            buffer.putInt(this.watermarkLength);
+            buffer.putInt(this.waveletFilterMethod);
+            buffer.putInt(this.filterID);
+            buffer.putInt(this.decompositionLevel);
+            buffer.putDouble(this.alpha);
+            buffer.putDouble(this.castingThreshold);
+            buffer.putDouble(this.detectionThreshold);
+            buffer.asDoubleBuffer().put(this.watermark, 0, this.watermarkLength);
+
+            return buffer.array();
         }
     }
 }
\ No newline at end of file
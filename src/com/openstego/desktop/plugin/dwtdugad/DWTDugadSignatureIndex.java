@@ -0,0 +1,456 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.plugin.dwtdugad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.openstego.desktop.OpenStegoException;
+import com.openstego.desktop.util.ImageHolder;
+import com.openstego.desktop.util.ImageUtil;
+import com.openstego.desktop.util.dwt.DWT;
+import com.openstego.desktop.util.dwt.Image;
+
+/**
+ * Index of DWTDugad signatures, to find which of a large number of signatures (typically one per recipient) an image
+ * carries, without checking the image against every signature separately.
+ * <p>
+ * The correlation of a subband with a watermark only uses the coefficients above the detection threshold, each one
+ * multiplied by the watermark value of its position modulo the watermark length. Adding up these coefficients per
+ * watermark position folds the subband into a vector of the watermark length, and the correlation of the subband with
+ * any watermark is then the dot product of that vector with the watermark. The index keeps the watermarks in packed
+ * matrices, one for every set of transform parameters (wavelet filter, filter method, decomposition level, watermark
+ * length and detection threshold). A search transforms and folds the image once per matrix, and multiplies the matrix
+ * block by block with the folded subbands, using multiple threads for large matrices.
+ * <p>
+ * The watermark values are stored in single precision, which halves the memory needed; a correlation can therefore
+ * differ from the one given by {@link DWTDugadPlugin#checkMark(byte[], String, byte[])} when a subband is within
+ * rounding of the detection limit. Signatures for which no subband has coefficients above the detection threshold get
+ * a correlation of zero.
+ * <p>
+ * The index must not be modified while a search is running.
+ */
+public class DWTDugadSignatureIndex {
+    /**
+     * Number of signatures stored in one block of a matrix
+     */
+    private static final int BLOCK_ROWS = 1024;
+
+    /**
+     * Minimum number of signatures in a matrix for the blocks to be processed using multiple threads
+     */
+    private static final int PARALLEL_MIN_ROWS = 4 * BLOCK_ROWS;
+
+    /**
+     * Order of the matches: highest correlation first, then in the order in which the signatures were added
+     */
+    private static final Comparator<Match> MATCH_ORDER = (m1, m2) -> (m1.correlation != m2.correlation)
+            ? Double.compare(m2.correlation, m1.correlation) : Integer.compare(m1.order, m2.order);
+
+    /**
+     * Matrices of the index, for every set of transform parameters
+     */
+    private Map<List<Object>, Matrix> matrices = new LinkedHashMap<>();
+
+    /**
+     * Number of signatures in the index
+     */
+    private int size = 0;
+
+    /**
+     * Method to add a signature to the index
+     *
+     * @param id Identifier to return for the signature when it matches (for example the recipient)
+     * @param sigData Signature data
+     * @throws OpenStegoException
+     */
+    public void add(String id, byte[] sigData) throws OpenStegoException {
+        DWTDugadPlugin.Signature sig = new DWTDugadPlugin.Signature(sigData);
+        List<Object> key = Arrays.asList(sig.filterID, sig.waveletFilterMethod, sig.decompositionLevel, sig.watermarkLength,
+            sig.detectionThreshold);
+
+        this.matrices.computeIfAbsent(key, k -> new Matrix(sig)).add(id, sig, this.size);
+        this.size++;
+    }
+
+    /**
+     * Get method for size
+     *
+     * @return Number of signatures in the index
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Method to find the signatures with the highest correlation with the given image
+     *
+     * @param stegoData Image data
+     * @param stegoFileName Name of the image file
+     * @param maxResults Maximum number of matches to return
+     * @return Matches, highest correlation first
+     * @throws OpenStegoException
+     */
+    public List<Match> search(byte[] stegoData, String stegoFileName, int maxResults) throws OpenStegoException {
+        ImageHolder image = null;
+        List<int[][]> yuv = null;
+        List<Match> matches = new ArrayList<>();
+        int cols = 0;
+        int rows = 0;
+
+        if (maxResults <= 0 || this.size == 0) {
+            return matches;
+        }
+
+        image = ImageUtil.byteArrayToImage(stegoData, stegoFileName);
+        cols = image.getImage().getWidth();
+        rows = image.getImage().getHeight();
+        yuv = ImageUtil.getYuvFromImage(image.getImage());
+
+        for (Matrix matrix : this.matrices.values()) {
+            DWT dwt = new DWT(cols, rows, matrix.filterID, matrix.decompositionLevel, matrix.waveletFilterMethod);
+            matches.addAll(matrix.search(fold(dwt, yuv.get(0), matrix), maxResults, dwt.isParallel()));
+        }
+        ImageUtil.releasePlanes(yuv);
+
+        matches.sort(MATCH_ORDER);
+        return (matches.size() > maxResults) ? new ArrayList<>(matches.subList(0, maxResults)) : matches;
+    }
+
+    /**
+     * Method to fold all the detail subbands of the image for the parameters of the given matrix. The strips of columns
+     * computed by the wavelet transform (possibly on several threads) are folded separately, and then added up per
+     * subband from left to right, so that the result does not depend on the order in which the strips were computed.
+     *
+     * @param dwt Wavelet transform
+     * @param luminance Luminance of the image
+     * @param matrix Matrix
+     * @return Folded subbands, in the order horizontal, vertical and diagonal for each level, starting with the finest
+     *         level (levels which the image is too small for are empty)
+     */
+    private FoldedSubBand[] fold(DWT dwt, int[][] luminance, Matrix matrix) {
+        List<FoldedSubBand> partials = Collections.synchronizedList(new ArrayList<>());
+        FoldedSubBand[] subBands = new FoldedSubBand[3 * matrix.decompositionLevel];
+
+        dwt.forwardDWTdetails(luminance, (level, orientation, strip, x, width) -> partials.add(
+            foldStrip(3 * (level - 1) + orientation, strip, x, width, matrix.watermarkLength, matrix.detectionThreshold)));
+
+        for (int i = 0; i < subBands.length; i++) {
+            subBands[i] = new FoldedSubBand(i, 0, matrix.watermarkLength);
+        }
+        partials.sort((p1, p2) -> (p1.band != p2.band) ? Integer.compare(p1.band, p2.band) : Integer.compare(p1.x, p2.x));
+        for (FoldedSubBand partial : partials) {
+            FoldedSubBand subBand = subBands[partial.band];
+            for (int k = 0; k < partial.values.length; k++) {
+                subBand.values[k] += partial.values[k];
+            }
+            subBand.count += partial.count;
+            subBand.magnitude += partial.magnitude;
+        }
+
+        return subBands;
+    }
+
+    /**
+     * Folds a strip of columns of a subband. The coefficient at (x, y) of the subband goes to the watermark position
+     * <code>(y * width + x) % n</code>, as when walking the whole subband row by row.
+     *
+     * @param band Index of the subband
+     * @param strip Strip of the subband
+     * @param x0 Index of the first column of the strip in the subband
+     * @param width Width of the subband
+     * @param n Watermark length
+     * @param threshold Detection threshold
+     * @return Folded strip
+     */
+    private static FoldedSubBand foldStrip(int band, Image strip, int x0, int width, int n, double threshold) {
+        FoldedSubBand fold = new FoldedSubBand(band, x0, n);
+        double[] data = strip.getData();
+
+        for (int y = 0; y < strip.getHeight() && n > 0; y++) {
+            int row = y * strip.getStride();
+            int k = (int) (((long) y * width + x0) % n);
+            for (int x = 0; x < strip.getWidth(); x++) {
+                double value = (data != null) ? data[strip.getOffset() + row + x] : strip.getValue(row + x);
+                if (value > threshold) {
+                    fold.values[k] += value;
+                    fold.magnitude += Math.abs(value);
+                    fold.count++;
+                }
+                if (++k == n) {
+                    k = 0;
+                }
+            }
+        }
+
+        return fold;
+    }
+
+    /**
+     * Match of a signature with an image
+     */
+    public static class Match {
+        /**
+         * Identifier of the signature
+         */
+        private String id;
+
+        /**
+         * Correlation of the signature with the image
+         */
+        private double correlation;
+
+        /**
+         * Position of the signature in the index
+         */
+        private int order;
+
+        /**
+         * Default constructor
+         *
+         * @param id Identifier of the signature
+         * @param correlation Correlation of the signature with the image
+         * @param order Position of the signature in the index
+         */
+        Match(String id, double correlation, int order) {
+            this.id = id;
+            this.correlation = correlation;
+            this.order = order;
+        }
+
+        /**
+         * Get method for id
+         *
+         * @return id
+         */
+        public String getId() {
+            return this.id;
+        }
+
+        /**
+         * Get method for correlation
+         *
+         * @return correlation
+         */
+        public double getCorrelation() {
+            return this.correlation;
+        }
+    }
+
+    /**
+     * Subband (or strip of a subband) folded to the watermark length
+     */
+    private static class FoldedSubBand {
+        /**
+         * Index of the subband
+         */
+        int band;
+
+        /**
+         * Index of the first column (for strips)
+         */
+        int x;
+
+        /**
+         * Sum of the coefficients above the detection threshold, per watermark position
+         */
+        double[] values;
+
+        /**
+         * Number of coefficients above the detection threshold
+         */
+        double count = 0;
+
+        /**
+         * Sum of the magnitudes of the coefficients above the detection threshold
+         */
+        double magnitude = 0;
+
+        FoldedSubBand(int band, int x, int n) {
+            this.band = band;
+            this.x = x;
+            this.values = new double[Math.max(n, 0)];
+        }
+    }
+
+    /**
+     * Packed watermarks of the signatures sharing the same transform parameters. The watermarks are stored row by row
+     * in blocks of <code>BLOCK_ROWS</code> signatures.
+     */
+    private static class Matrix {
+        /**
+         * Filter number
+         */
+        int filterID;
+
+        /**
+         * Wavelet filter method
+         */
+        int waveletFilterMethod;
+
+        /**
+         * Decomposition level
+         */
+        int decompositionLevel;
+
+        /**
+         * Length of the watermarks
+         */
+        int watermarkLength;
+
+        /**
+         * Detection threshold
+         */
+        double detectionThreshold;
+
+        /**
+         * Blocks of watermarks
+         */
+        List<float[]> blocks = new ArrayList<>();
+
+        /**
+         * Identifiers of the signatures
+         */
+        List<String> ids = new ArrayList<>();
+
+        /**
+         * Alpha factors of the signatures
+         */
+        double[] alphas = new double[BLOCK_ROWS];
+
+        /**
+         * Positions of the signatures in the index
+         */
+        int[] orders = new int[BLOCK_ROWS];
+
+        /**
+         * Number of signatures
+         */
+        int rows = 0;
+
+        Matrix(DWTDugadPlugin.Signature sig) {
+            this.filterID = sig.filterID;
+            this.waveletFilterMethod = sig.waveletFilterMethod;
+            this.decompositionLevel = sig.decompositionLevel;
+            this.watermarkLength = sig.watermarkLength;
+            this.detectionThreshold = sig.detectionThreshold;
+        }
+
+        void add(String id, DWTDugadPlugin.Signature sig, int order) {
+            int n = this.watermarkLength;
+            int offset = (this.rows % BLOCK_ROWS) * n;
+            float[] block = null;
+
+            if (this.rows % BLOCK_ROWS == 0) {
+                this.blocks.add(new float[BLOCK_ROWS * n]);
+            }
+            if (this.rows == this.alphas.length) {
+                this.alphas = Arrays.copyOf(this.alphas, 2 * this.rows);
+                this.orders = Arrays.copyOf(this.orders, 2 * this.rows);
+            }
+
+            block = this.blocks.get(this.rows / BLOCK_ROWS);
+            for (int k = 0; k < n; k++) {
+                block[offset + k] = (float) sig.watermark[k];
+            }
+            this.ids.add(id);
+            this.alphas[this.rows] = sig.alpha;
+            this.orders[this.rows] = order;
+            this.rows++;
+        }
+
+        /**
+         * Get the best matches of the signatures of this matrix with the folded subbands
+         */
+        List<Match> search(FoldedSubBand[] subBands, int maxResults, boolean parallel) {
+            List<FoldedSubBand> used = new ArrayList<>();
+            IntStream tasks = IntStream.range(0, this.blocks.size());
+
+            // Subbands without coefficients above the threshold do not count, for any signature
+            for (FoldedSubBand subBand : subBands) {
+                if (subBand.count != 0) {
+                    used.add(subBand);
+                }
+            }
+            if (parallel && this.rows >= PARALLEL_MIN_ROWS && ForkJoinPool.getCommonPoolParallelism() > 1) {
+                tasks = tasks.parallel();
+            }
+
+            return tasks.mapToObj(b -> searchBlock(b, used, maxResults)).flatMap(List::stream).sorted(MATCH_ORDER)
+                    .limit(maxResults).collect(Collectors.toList());
+        }
+
+        /**
+         * Get the best matches of the signatures of one block, keeping the worst of the best matches at the head of a
+         * queue
+         */
+        private List<Match> searchBlock(int blockIndex, List<FoldedSubBand> subBands, int maxResults) {
+            PriorityQueue<Match> best = new PriorityQueue<>(MATCH_ORDER.reversed());
+            float[] block = this.blocks.get(blockIndex);
+            int n = this.watermarkLength;
+            int first = blockIndex * BLOCK_ROWS;
+            int last = Math.min(first + BLOCK_ROWS, this.rows);
+
+            for (int r = first; r < last; r++) {
+                int offset = (r - first) * n;
+                int ok = 0;
+                double correlation = 0.0;
+
+                for (FoldedSubBand subBand : subBands) {
+                    if (dot(block, offset, subBand.values, n) > subBand.magnitude * this.alphas[r] / 1.0) {
+                        ok++;
+                    }
+                }
+                if (!subBands.isEmpty()) {
+                    correlation = (double) ok / (double) subBands.size();
+                }
+
+                // Signatures are visited in index order, so a tie with the head of the queue does not replace it
+                if (best.size() < maxResults) {
+                    best.add(new Match(this.ids.get(r), correlation, this.orders[r]));
+                } else if (correlation > best.peek().correlation) {
+                    best.poll();
+                    best.add(new Match(this.ids.get(r), correlation, this.orders[r]));
+                }
+            }
+
+            return new ArrayList<>(best);
+        }
+
+        /**
+         * Dot product of a watermark row with a folded subband, using four partial sums
+         */
+        private static double dot(float[] block, int offset, double[] values, int n) {
+            double s0 = 0;
+            double s1 = 0;
+            double s2 = 0;
+            double s3 = 0;
+            int k = 0;
+
+            for (; k + 3 < n; k += 4) {
+                s0 += block[offset + k] * values[k];
+                s1 += block[offset + k + 1] * values[k + 1];
+                s2 += block[offset + k + 2] * values[k + 2];
+                s3 += block[offset + k + 3] * values[k + 3];
+            }
+            for (; k < n; k++) {
+                s0 += block[offset + k] * values[k];
+            }
+
+            return (s0 + s1) + (s2 + s3);
+        }
+    }
+}
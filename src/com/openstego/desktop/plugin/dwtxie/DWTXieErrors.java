@@ -29,6 +29,11 @@ public class DWTXieErrors {
      */
     public static final int ERR_SIG_NOT_VALID = 2;
 
+    /**
+     * Error Code - Image too small for the embedding level
+     */
+    public static final int ERR_IMAGE_TOO_SMALL = 3;
+
     /**
      * Static variable to keep track if we added error codes or not
      */
@@ -41,6 +46,7 @@ public class DWTXieErrors {
         if (!initialized) {
             OpenStegoException.addErrorCode(DWTXiePlugin.NAMESPACE, ERR_NO_COVER_FILE, "err.cover.missing");
             OpenStegoException.addErrorCode(DWTXiePlugin.NAMESPACE, ERR_SIG_NOT_VALID, "err.signature.invalid");
+            OpenStegoException.addErrorCode(DWTXiePlugin.NAMESPACE, ERR_IMAGE_TOO_SMALL, "err.image.tooSmall");
         }
     }
 }
@@ -7,23 +7,28 @@
 package com.openstego.desktop.plugin.dwtxie;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import com.openstego.desktop.OpenStegoException;
 import com.openstego.desktop.plugin.template.image.WMImagePluginTemplate;
 import com.openstego.desktop.util.ImageHolder;
 import com.openstego.desktop.util.ImageUtil;
 import com.openstego.desktop.util.LabelUtil;
+import com.openstego.desktop.util.SignatureUtil;
 import com.openstego.desktop.util.StringUtil;
 import com.openstego.desktop.util.dwt.DWT;
 import com.openstego.desktop.util.dwt.DWTUtil;
-import com.openstego.desktop.util.dwt.ImageTree;
+import com.openstego.desktop.util.dwt.Image;
 
 /**
  * Plugin for OpenStego which implements the DWT based algorithm by Xie.
@@ -45,6 +50,26 @@ public class DWTXiePlugin extends WMImagePluginTemplate {
      */
     public static final String NAMESPACE = "DWTXIE";
 
+    /**
+     * Stamp of the signature data
+     */
+    private static final String SIG_MARKER = "XESG";
+
+    /**
+     * Number of 64-bit words of extracted watermark bits (each covering 64 windows) filled by one parallel task
+     */
+    private static final int WORDS_PER_TASK = 16;
+
+    /**
+     * Minimum number of windows in the approximation image for the windows to be processed using multiple threads
+     */
+    private static final int PARALLEL_MIN_WINDOWS = 1 << 14;
+
+    /**
+     * Flag to indicate whether the wavelet coefficients are to be stored in single precision
+     */
+    private boolean singlePrecision = false;
+
     /**
      * Default constructor
      */
@@ -90,20 +115,15 @@ public class DWTXiePlugin extends WMImagePluginTemplate {
         ImageHolder image = null;
         List<int[][]> yuv = null;
         DWT dwt = null;
-        ImageTree dwtTree = null;
-        ImageTree p = null;
+        Image approx = null;
+        Image delta = null;
         Signature sig = null;
-        Pixel pixel1 = null;
-        Pixel pixel2 = null;
-        Pixel pixel3 = null;
         int[][] luminance = null;
         int imgType = 0;
         int origWidth = 0;
         int origHeight = 0;
         int cols = 0;
         int rows = 0;
-        int n = 0;
-        double temp;
 
         // Cover file is mandatory
         if (cover == null) {
@@ -121,52 +141,26 @@ public class DWTXiePlugin extends WMImagePluginTemplate {
         rows = image.getImage().getHeight();
         yuv = ImageUtil.getYuvFromImage(image.getImage());
         luminance = yuv.get(0);
-        sig = new Signature(msg);
+        sig = getSignature(msg);
 
         // Wavelet transform
         dwt = new DWT(cols, rows, sig.filterID, sig.embeddingLevel, sig.waveletFilterMethod);
-        dwtTree = dwt.forwardDWT(luminance);
-
-        p = dwtTree;
-        // Consider each resolution level
-        while (p.getLevel() < sig.embeddingLevel) {
-            // Descend one level
-            p = p.getCoarse();
-        }
+        dwt.setSinglePrecision(this.singlePrecision);
+        // Only the approximation image is watermarked, so the detail subbands are neither computed nor transformed
+        // back: the change of the approximation image is collected and its inverse transform added to the luminance
+        approx = dwt.forwardDWTcoarse(luminance);
+        checkWindowCount(approx, sig);
+        delta = DWTUtil.newImage(approx.getWidth(), approx.getHeight());
 
         // Repeat binary watermark by sliding a 3-pixel window of approximation image
-        for (int row = 0; row < p.getImage().getHeight(); row++) {
-            for (int col = 0; col < p.getImage().getWidth() - 3; col += 3) {
-                // Get all three approximation pixels in window
-                pixel1 = new Pixel(0, DWTUtil.getPixel(p.getImage(), col + 0, row));
-                pixel2 = new Pixel(1, DWTUtil.getPixel(p.getImage(), col + 1, row));
-                pixel3 = new Pixel(2, DWTUtil.getPixel(p.getImage(), col + 2, row));
-
-                // Bring selected pixels in ascending order
-                if (pixel1.value > pixel2.value) {
-                    swapPix(pixel1, pixel2);
-                }
-                if (pixel2.value > pixel3.value) {
-                    swapPix(pixel2, pixel3);
-                }
-                if (pixel1.value > pixel2.value) {
-                    swapPix(pixel1, pixel2);
-                }
-
-                // Apply watermarking transformation (modify median pixel)
-                temp = wmTransform(sig.embeddingStrength, pixel1.value, pixel2.value, pixel3.value,
-                    getWatermarkBit(sig.watermark, n % (sig.watermarkLength * 8)));
+        embedWindows(sig, approx, delta, dwt.isParallel());
 
-                // Write modified pixel
-                DWTUtil.setPixel(p.getImage(), col + pixel2.pos, row, temp);
-
-                n++;
-            }
-        }
-
-        dwt.inverseDWT(dwtTree, luminance);
+        dwt.inverseDWTcoarseDelta(delta, luminance);
+        DWTUtil.releaseImage(approx);
+        DWTUtil.releaseImage(delta);
         yuv.set(0, luminance);
         image.setImage(ImageUtil.getImageFromYuv(yuv, imgType));
+        ImageUtil.releasePlanes(yuv);
         ImageUtil.cropImage(image, origWidth, origHeight);
 
         return ImageUtil.imageToByteArray(image, stegoFileName, this);
@@ -183,15 +177,11 @@ public class DWTXiePlugin extends WMImagePluginTemplate {
      */
     @Override
     public byte[] extractData(byte[] stegoData, String stegoFileName, byte[] origSigData) throws OpenStegoException {
-        List<Integer> sigBitList = new ArrayList<>();
+        byte[] watermark = null;
         ImageHolder image = null;
         DWT dwt = null;
-        ImageTree dwtTree = null;
-        ImageTree p = null;
+        Image approx = null;
         Signature sig = null;
-        Pixel pixel1 = null;
-        Pixel pixel2 = null;
-        Pixel pixel3 = null;
         int[][] luminance = null;
         int cols = 0;
         int rows = 0;
@@ -201,46 +191,23 @@ public class DWTXiePlugin extends WMImagePluginTemplate {
 
         cols = image.getImage().getWidth();
         rows = image.getImage().getHeight();
-        luminance = ImageUtil.getYuvFromImage(image.getImage()).get(0);
-        sig = new Signature(origSigData);
+        List<int[][]> yuv = ImageUtil.getYuvFromImage(image.getImage());
+        luminance = yuv.get(0);
+        sig = getSignature(origSigData);
 
-        // Wavelet transform
+        // Wavelet transform (only the approximation image of the embedding level is needed)
         dwt = new DWT(cols, rows, sig.filterID, sig.embeddingLevel, sig.waveletFilterMethod);
-        dwtTree = dwt.forwardDWT(luminance);
-
-        p = dwtTree;
-        // Consider each resolution level
-        while (p.getLevel() < sig.embeddingLevel) {
-            // Descend one level
-            p = p.getCoarse();
-        }
+        dwt.setSinglePrecision(this.singlePrecision);
+        approx = dwt.forwardDWTcoarse(luminance);
+        ImageUtil.releasePlanes(yuv);
+        checkWindowCount(approx, sig);
 
         // Repeat binary watermark by sliding a 3-pixel window of approximation image
-        for (int row = 0; row < p.getImage().getHeight(); row++) {
-            for (int col = 0; col < p.getImage().getWidth() - 3; col += 3) {
-                // Get all three approximation pixels in window
-                pixel1 = new Pixel(0, DWTUtil.getPixel(p.getImage(), col + 0, row));
-                pixel2 = new Pixel(1, DWTUtil.getPixel(p.getImage(), col + 1, row));
-                pixel3 = new Pixel(2, DWTUtil.getPixel(p.getImage(), col + 2, row));
-
-                // Bring selected pixels in ascending order
-                if (pixel1.value > pixel2.value) {
-                    swapPix(pixel1, pixel2);
-                }
-                if (pixel2.value > pixel3.value) {
-                    swapPix(pixel2, pixel3);
-                }
-                if (pixel1.value > pixel2.value) {
-                    swapPix(pixel1, pixel2);
-                }
+        watermark = extractWatermark(sig, approx, dwt.isParallel());
+        DWTUtil.releaseImage(approx);
 
-                // Apply inverse watermarking transformation to get the bit value
-                sigBitList.add(invWmTransform(sig.embeddingStrength, pixel1.value, pixel2.value, pixel3.value));
-            }
-        }
-        sig.setWatermark(convertBitListToByteArray(sigBitList));
-
-        return sig.getSigData();
+        // The parsed signature is shared, so the extracted watermark goes into a copy
+        return new Signature(sig, watermark).getSigData();
     }
 
     /**
@@ -270,17 +237,82 @@ public class DWTXiePlugin extends WMImagePluginTemplate {
      */
     @Override
     public double getWatermarkCorrelation(byte[] origSigData, byte[] watermarkData) throws OpenStegoException {
-        int corr = 0;
-        Signature orig = new Signature(origSigData);
-        Signature wm = new Signature(watermarkData);
+        return getCorrelation(getSignature(origSigData), new Signature(watermarkData));
+    }
 
-        for (int i = 0; i < (wm.watermarkLength * 8); i++) {
-            if (getWatermarkBit(orig.watermark, i % (orig.watermarkLength * 8)) == getWatermarkBit(wm.watermark, i)) {
-                corr++;
-            } else {
-                corr--;
+    /**
+     * Method to check the correlation of the given image with several signatures. The image is decoded only once, and
+     * the signatures are grouped by wavelet filter, filter method and embedding level: the approximation image of each
+     * group is computed once, and the watermark of every signature of the group is extracted from it.
+     *
+     * @param stegoData Stego data containing the watermark
+     * @param stegoFileName Name of the stego file
+     * @param origSigDataList List of original signature data
+     * @return Correlation for every signature, in the order of the list
+     * @throws OpenStegoException
+     */
+    @Override
+    public double[] checkMarks(byte[] stegoData, String stegoFileName, List<byte[]> origSigDataList) throws OpenStegoException {
+        ImageHolder image = null;
+        List<int[][]> yuv = null;
+        Map<List<Integer>, List<Integer>> groups = new LinkedHashMap<>();
+        Signature[] sigs = new Signature[origSigDataList.size()];
+        double[] correlations = new double[sigs.length];
+        int cols = 0;
+        int rows = 0;
+
+        if (sigs.length == 0) {
+            return correlations;
+        }
+        for (int i = 0; i < sigs.length; i++) {
+            sigs[i] = getSignature(origSigDataList.get(i));
+            groups.computeIfAbsent(Arrays.asList(sigs[i].filterID, sigs[i].waveletFilterMethod, sigs[i].embeddingLevel),
+                k -> new ArrayList<>()).add(i);
+        }
+
+        image = ImageUtil.byteArrayToImage(stegoData, stegoFileName);
+        ImageUtil.makeImageSquare(image);
+        cols = image.getImage().getWidth();
+        rows = image.getImage().getHeight();
+        yuv = ImageUtil.getYuvFromImage(image.getImage());
+
+        for (List<Integer> group : groups.values()) {
+            Signature first = sigs[group.get(0)];
+            DWT dwt = new DWT(cols, rows, first.filterID, first.embeddingLevel, first.waveletFilterMethod);
+            dwt.setSinglePrecision(this.singlePrecision);
+            Image approx = dwt.forwardDWTcoarse(yuv.get(0));
+
+            checkWindowCount(approx, first);
+            for (int i : group) {
+                correlations[i] = getCorrelation(sigs[i], new Signature(sigs[i], extractWatermark(sigs[i], approx, dwt.isParallel())));
             }
+            DWTUtil.releaseImage(approx);
         }
+        ImageUtil.releasePlanes(yuv);
+
+        return correlations;
+    }
+
+    /**
+     * Method to compute the correlation between the original signature and the signature holding the extracted
+     * watermark. Bit <code>i</code> of the extracted watermark is compared with bit <code>i</code> of the original
+     * watermark repeated as often as needed; as both lengths are whole bytes, the repeated watermark is built byte by
+     * byte, and the bits are compared 64 at a time.
+     *
+     * @param orig Original signature
+     * @param wm Signature holding the extracted watermark
+     * @return Correlation
+     */
+    private double getCorrelation(Signature orig, Signature wm) {
+        long[] origWords = getWords(orig.watermark, orig.watermarkLength, wm.watermarkLength);
+        long[] wmWords = getWords(wm.watermark, wm.watermarkLength, wm.watermarkLength);
+        int distance = 0;
+        int corr = 0;
+
+        for (int i = 0; i < wmWords.length; i++) {
+            distance += Long.bitCount(origWords[i] ^ wmWords[i]);
+        }
+        corr = (wm.watermarkLength * 8) - 2 * distance;
 
         return 0.5 + ((double) corr / (double) (wm.watermarkLength * 8)) / 2;
     }
@@ -297,109 +329,327 @@ public class DWTXiePlugin extends WMImagePluginTemplate {
     }
 
     /**
-     * Watermarking transformation, set median pixel to quantization boundary
+     * Get method for singlePrecision
+     *
+     * @return singlePrecision
+     */
+    public boolean isSinglePrecision() {
+        return this.singlePrecision;
+    }
+
+    /**
+     * Set method for singlePrecision. When enabled, the wavelet transforms store their coefficients in float arrays
+     * (see {@link DWT#setSinglePrecision(boolean)}). The default is double precision.
+     *
+     * @param singlePrecision Value for singlePrecision to be set
+     */
+    public void setSinglePrecision(boolean singlePrecision) {
+        this.singlePrecision = singlePrecision;
+    }
+
+    /**
+     * Method to embed the watermark bits into the windows of the approximation image. Window <code>n</code> (counted
+     * row by row) carries watermark bit <code>n</code> modulo the watermark length, so the rows are independent and
+     * processed in parallel for large images.
+     *
+     * @param sig Signature
+     * @param approx Approximation image
+     * @param delta Image receiving the change of every modified approximation pixel
+     * @param parallel Whether multiple threads may be used
+     */
+    private void embedWindows(Signature sig, Image approx, Image delta, boolean parallel) {
+        int windowsPerRow = (approx.getWidth() - 1) / 3;
+        IntStream rows = IntStream.range(0, approx.getHeight());
+
+        if (isParallel(getWindowCount(approx), parallel)) {
+            rows = rows.parallel();
+        }
+        rows.forEach(row -> {
+            int n = row * windowsPerRow;
+            for (int col = 0; col < approx.getWidth() - 3; col += 3) {
+                embedWindow(sig, approx, delta, col, row, n);
+                n++;
+            }
+        });
+    }
+
+    /**
+     * Method to embed one watermark bit into the window starting at the given approximation pixel
+     */
+    private void embedWindow(Signature sig, Image approx, Image delta, int col, int row, int n) {
+        double value1 = 0.0;
+        double value2 = 0.0;
+        double value3 = 0.0;
+        double tmpValue = 0.0;
+        int pos1 = 0;
+        int pos2 = 1;
+        int pos3 = 2;
+        int tmpPos = 0;
+        double temp;
+
+        // Get all three approximation pixels in window
+        value1 = DWTUtil.getPixel(approx, col + 0, row);
+        value2 = DWTUtil.getPixel(approx, col + 1, row);
+        value3 = DWTUtil.getPixel(approx, col + 2, row);
+
+        // Bring selected pixels in ascending order (three compare-exchange steps, equal values are not swapped)
+        if (value1 > value2) {
+            tmpValue = value1;
+            value1 = value2;
+            value2 = tmpValue;
+            tmpPos = pos1;
+            pos1 = pos2;
+            pos2 = tmpPos;
+        }
+        if (value2 > value3) {
+            tmpValue = value2;
+            value2 = value3;
+            value3 = tmpValue;
+            tmpPos = pos2;
+            pos2 = pos3;
+            pos3 = tmpPos;
+        }
+        if (value1 > value2) {
+            tmpValue = value1;
+            value1 = value2;
+            value2 = tmpValue;
+            tmpPos = pos1;
+            pos1 = pos2;
+            pos2 = tmpPos;
+        }
+
+        // Apply watermarking transformation (modify median pixel)
+        temp = wmTransform(sig.embeddingStrength, value1, value2, value3, getWatermarkBit(sig.watermark, n % (sig.watermarkLength * 8)));
+
+        // Record the change of the modified pixel (windows do not overlap)
+        DWTUtil.setPixel(delta, col + pos2, row, temp - value2);
+    }
+
+    /**
+     * Method to extract the bits embedded into the windows of the approximation image. The bits are packed into 64-bit
+     * words (bit <code>n</code> being bit <code>n % 64</code> of word <code>n / 64</code>); every word is computed
+     * by a single task, so that large images can be processed in parallel without any synchronization.
+     *
+     * @param sig Signature
+     * @param approx Approximation image
+     * @param windowCount Number of windows
+     * @param parallel Whether multiple threads may be used
+     * @return Extracted bits
+     */
+    private long[] extractWindows(Signature sig, Image approx, int windowCount, boolean parallel) {
+        long[] bits = new long[(windowCount + 63) >>> 6];
+        int windowsPerRow = (approx.getWidth() - 1) / 3;
+        IntStream tasks = IntStream.range(0, (bits.length + WORDS_PER_TASK - 1) / WORDS_PER_TASK);
+
+        if (isParallel(windowCount, parallel)) {
+            tasks = tasks.parallel();
+        }
+        tasks.forEach(task -> {
+            for (int word = task * WORDS_PER_TASK; word < Math.min((task + 1) * WORDS_PER_TASK, bits.length); word++) {
+                long value = 0;
+                for (int n = word << 6; n < Math.min((word + 1) << 6, windowCount); n++) {
+                    value |= ((long) extractWindow(sig, approx, 3 * (n % windowsPerRow), n / windowsPerRow)) << (n & 63);
+                }
+                bits[word] = value;
+            }
+        });
+
+        return bits;
+    }
+
+    /**
+     * Method to extract the bit embedded into the window starting at the given approximation pixel
+     */
+    private int extractWindow(Signature sig, Image approx, int col, int row) {
+        double value1 = 0.0;
+        double value2 = 0.0;
+        double value3 = 0.0;
+        double tmpValue = 0.0;
+
+        // Get all three approximation pixels in window
+        value1 = DWTUtil.getPixel(approx, col + 0, row);
+        value2 = DWTUtil.getPixel(approx, col + 1, row);
+        value3 = DWTUtil.getPixel(approx, col + 2, row);
+
+        // Bring selected pixels in ascending order (only the values are needed here)
+        if (value1 > value2) {
+            tmpValue = value1;
+            value1 = value2;
+            value2 = tmpValue;
+        }
+        if (value2 > value3) {
+            tmpValue = value2;
+            value2 = value3;
+            value3 = tmpValue;
+        }
+        if (value1 > value2) {
+            tmpValue = value1;
+            value1 = value2;
+            value2 = tmpValue;
+        }
+
+        // Apply inverse watermarking transformation to get the bit value
+        return invWmTransform(sig.embeddingStrength, value1, value2, value3);
+    }
+
+    /**
+     * Method to check that the approximation image has enough windows to hold at least one byte of the watermark (the
+     * watermark is repeated as far as the windows go, so it does not need to fit completely). The transform clamps the
+     * embedding level to what the image can hold, so on small images the approximation image can be too small, which
+     * would give an unmarked image and a NaN correlation. The approximation image is released if the check fails.
+     *
+     * @param approx Approximation image of the embedding level
+     * @param sig Signature
+     * @throws OpenStegoException
+     */
+    static void checkWindowCount(Image approx, Signature sig) throws OpenStegoException {
+        if (getWindowCount(approx) < 8) {
+            DWTUtil.releaseImage(approx);
+            throw new OpenStegoException(null, NAMESPACE, DWTXieErrors.ERR_IMAGE_TOO_SMALL, sig.embeddingLevel);
+        }
+    }
+
+    /**
+     * Get the number of 3-pixel windows in the approximation image (the last, possibly incomplete, window of every row
+     * is not used)
+     */
+    private static int getWindowCount(Image approx) {
+        return approx.getHeight() * ((approx.getWidth() - 1) / 3);
+    }
+
+    /**
+     * Whether the given number of windows is to be processed using multiple threads
+     */
+    private static boolean isParallel(int windowCount, boolean parallel) {
+        return parallel && windowCount >= PARALLEL_MIN_WINDOWS && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    /**
+     * Watermarking transformation, set median pixel to quantization boundary. The boundaries for bit <code>x</code>
+     * are <code>f1 + x * s + k * 2s</code> (k &gt;= 0), and the nearest one is computed directly. A median exactly
+     * half way between two boundaries goes to the lower one, so that it never exceeds <code>f3</code>. If the
+     * quantization step is zero (flat window) or too small to be represented, the median pixel is left unchanged.
      */
     private double wmTransform(double alpha, double f1, double f2, double f3, int x) {
         double s = alpha * Math.abs(f3 - f1) / 2.0;
         double l = (x != 0) ? (f1 + s) : f1;
+        double k = Math.ceil((f2 - l) / (2 * s) - 0.5);
 
-        while ((l + 2 * s) < f2) {
-            l += 2 * s;
+        if (!(s > 0) || !Double.isFinite(k)) {
+            return f2;
         }
-
-        return ((f2 - l) < (l + 2 * s - f2)) ? l : (l + 2 * s);
+        return l + Math.max(k, 0.0) * 2 * s;
     }
 
     /**
-     * Inverse watermarking transformation, extract embedded bit, check quantization boundaries
+     * Inverse watermarking transformation, extract embedded bit, check quantization boundaries. The bit is the parity
+     * of the nearest boundary <code>f1 + k * s</code>. Degenerate windows (see
+     * {@link #wmTransform(double, double, double, double, int)}) give bit 0.
      */
     private int invWmTransform(double alpha, double f1, double f2, double f3) {
         double s = alpha * Math.abs(f3 - f1) / 2.0;
-        double l = f1;
-        int x = 0;
+        double k = Math.floor((f2 - f1) / s + 0.5);
 
-        while (l < f2) {
-            l += s;
-            x++;
+        if (!(s > 0) || !Double.isFinite(k)) {
+            return 0;
         }
+        return (k % 2.0 != 0.0) ? 1 : 0;
+    }
 
-        if (Math.abs(l - s - f2) < Math.abs(l - f2)) {
-            return (x + 1) % 2;
-        } else {
-            return x % 2;
-        }
+    /**
+     * Method to extract the watermark from the approximation image. Only the embedding strength of the signature is
+     * used, so the result is the same for all signatures with the same transform parameters.
+     *
+     * @param sig Signature
+     * @param approx Approximation image of the embedding level
+     * @param parallel Whether multiple threads may be used
+     * @return Extracted watermark (one bit per window, trailing bits which do not fill a whole byte being dropped)
+     */
+    byte[] extractWatermark(Signature sig, Image approx, boolean parallel) {
+        int windowCount = getWindowCount(approx);
+
+        return convertBitsToByteArray(extractWindows(sig, approx, windowCount, parallel), windowCount);
     }
 
     /**
-     * Method to get a bit value from the watermark
+     * Method to pack watermark bytes into 64-bit words, repeating them cyclically. Bit <code>n</code> of the result
+     * (bit <code>n % 64</code> of word <code>n / 64</code>) is the bit <code>n % (8 * dataLength)</code> of the
+     * watermark, as read by {@link #getWatermarkBit(byte[], int)}; the bits beyond <code>8 * length</code> are zero.
      *
-     * @param watermark Watermark data
-     * @param n Bit number
-     * @return Bit value
+     * @param data Watermark data
+     * @param dataLength Number of bytes of watermark data
+     * @param length Number of bytes to pack
+     * @return Packed bits
      */
-    private int getWatermarkBit(byte[] watermark, int n) {
-        int byteNum = n >> 3;
-        int bit = n & 7;
+    static long[] getWords(byte[] data, int dataLength, int length) {
+        long[] words = new long[(length + 7) >> 3];
 
-        return (watermark[byteNum] & (1 << bit)) >> bit;
+        for (int i = 0; i < length; i++) {
+            words[i >> 3] |= (data[i % dataLength] & 0xFFL) << ((i & 7) << 3);
+        }
+
+        return words;
     }
 
     /**
-     * Method to set a bit value in the watermark
+     * Method to get a bit value from the watermark
      *
      * @param watermark Watermark data
      * @param n Bit number
-     * @param v Bit value
+     * @return Bit value
      */
-    private void setWatermarkBit(byte[] watermark, int n, int v) {
+    private int getWatermarkBit(byte[] watermark, int n) {
         int byteNum = n >> 3;
         int bit = n & 7;
 
-        if (v == 1) {
-            watermark[byteNum] |= (1 << bit);
-        } else {
-            watermark[byteNum] &= ~(1 << bit);
-        }
+        return (watermark[byteNum] & (1 << bit)) >> bit;
     }
 
     /**
-     * Method to convert list of bits into byte array
+     * Method to convert bits packed into 64-bit words (bit <code>n</code> being bit <code>n % 64</code> of word
+     * <code>n / 64</code>) into a byte array, in the bit order used by {@link #getWatermarkBit(byte[], int)}. Trailing
+     * bits which do not fill a whole byte are dropped.
      *
-     * @param bitList List of bits
+     * @param bits Packed bits
+     * @param bitCount Number of bits
      * @return Byte array
      */
-    private byte[] convertBitListToByteArray(List<Integer> bitList) {
+    private byte[] convertBitsToByteArray(long[] bits, int bitCount) {
         byte[] data = null;
 
-        data = new byte[bitList.size() >> 3];
-        for (int i = 0; i < ((bitList.size() >> 3) << 3); i++) {
-            setWatermarkBit(data, i, (bitList.get(i)).intValue());
+        data = new byte[bitCount >> 3];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (bits[i >> 3] >>> ((i & 7) << 3));
         }
 
         return data;
     }
 
-    private void swapPix(Pixel pixel1, Pixel pixel2) {
-        int tmpPixPos;
-        double tmpPixVal;
-
-        tmpPixPos = pixel1.pos;
-        pixel1.pos = pixel2.pos;
-        pixel2.pos = tmpPixPos;
-
-        tmpPixVal = pixel1.value;
-        pixel1.value = pixel2.value;
-        pixel2.value = tmpPixVal;
+    /**
+     * Method to get the parsed signature for the given signature data, from the signature cache if it was already
+     * parsed
+     *
+     * @param sigData Signature data
+     * @return Signature (shared, not to be modified)
+     * @throws OpenStegoException
+     */
+    private Signature getSignature(byte[] sigData) throws OpenStegoException {
+        return SignatureUtil.getCachedSignature(NAMESPACE, sigData, Signature::new);
     }
 
     /**
-     * Private class for the data structure required for the signature
+     * Class for the data structure required for the signature (also read by {@link DWTXieSignatureIndex})
      */
-    private class Signature {
+    static class Signature {
+        /**
+         * Size of the fields before the watermark in the binary format (in bytes)
+         */
+        private static final int BINARY_FIELDS_SIZE = 4 * 4 + 8;
+
         /**
          * Signature stamp
          */
-        byte[] sig = "XESG".getBytes();
+        byte[] sig = SIG_MARKER.getBytes();
 
         /**
          * Length of the watermark (in bytes)
@@ -442,12 +692,65 @@ public class DWTXiePlugin extends WMImagePluginTemplate {
         }
 
         /**
-         * Constructor that takes existing the signature data
+         * Constructor that takes existing the signature data, in the binary format or in the old object stream format
          *
          * @param sigData Existing signature data
          * @throws OpenStegoException
          */
         public Signature(byte[] sigData) throws OpenStegoException {
+            if (SignatureUtil.isLegacyFormat(sigData)) {
+                readLegacy(sigData);
+            } else {
+                read(ByteBuffer.wrap(sigData));
+            }
+        }
+
+        /**
+         * Constructor that reads the signature data in the binary format from a buffer (which may be memory-mapped)
+         *
+         * @param sigData Existing signature data (from its current position)
+         * @throws OpenStegoException
+         */
+        public Signature(ByteBuffer sigData) throws OpenStegoException {
+            read(sigData);
+        }
+
+        /**
+         * Constructor which copies the parameters of another signature, with different watermark data
+         *
+         * @param other Signature to copy
+         * @param watermark Watermark data
+         */
+        public Signature(Signature other, byte[] watermark) {
+            this.embeddingStrength = other.embeddingStrength;
+            this.waveletFilterMethod = other.waveletFilterMethod;
+            this.filterID = other.filterID;
+            this.embeddingLevel = other.embeddingLevel;
+            setWatermark(watermark);
+        }
+
+        /**
+         * Read the signature in the binary format
+         */
+        private void read(ByteBuffer sigData) throws OpenStegoException {
+            ByteBuffer buffer = SignatureUtil.openBuffer(sigData, SIG_MARKER, NAMESPACE, DWTXieErrors.ERR_SIG_NOT_VALID);
+
+            SignatureUtil.checkRemaining(buffer, BINARY_FIELDS_SIZE, NAMESPACE, DWTXieErrors.ERR_SIG_NOT_VALID);
+            this.watermarkLength = buffer.getInt();
+            this.waveletFilterMethod = buffer.getInt();
+            this.filterID = buffer.getInt();
+            this.embeddingLevel = buffer.getInt();
+            this.embeddingStrength = buffer.getDouble();
+
+            SignatureUtil.checkRemaining(buffer, this.watermarkLength, NAMESPACE, DWTXieErrors.ERR_SIG_NOT_VALID);
+            this.watermark = new byte[this.watermarkLength];
+            buffer.get(this.watermark);
+        }
+
+        /**
+         * Read the signature in the old object stream format
+         */
+        private void readLegacy(byte[] sigData) throws OpenStegoException {
             ObjectInputStream ois = null;
             byte[] inputSig = new byte[this.sig.length];
 
@@ -478,26 +781,16 @@ public class DWTXiePlugin extends WMImagePluginTemplate {
          * @throws OpenStegoException
          */
         public byte[] getSigData() throws OpenStegoException {
-            ByteArrayOutputStream baos = null;
-            ObjectOutputStream oos = null;
+            ByteBuffer buffer = SignatureUtil.createBuffer(SIG_MARKER, BINARY_FIELDS_SIZE + this.watermarkLength);
 
-            try {
-                baos = new ByteArrayOutputStream();
-                oos = new ObjectOutputStream(baos);
-                oos.write(this.sig);
-                oos.writeInt(this.watermarkLength);
-                oos.writeDouble(this.embeddingStrength);
-                oos.writeInt(this.waveletFilterMethod);
-                oos.writeInt(this.filterID);
-                oos.writeInt(this.embeddingLevel);
-                oos.write(this.watermark);
-                oos.flush();
-                oos.close();
-
-                return baos.toByteArray();
-            } catch (IOException ioEx) {
-                throw new OpenStegoException(ioEx);
-            }
+            buffer.putInt(this.watermarkLength);
+            buffer.putInt(this.waveletFilterMethod);
+            buffer.putInt(this.filterID);
+            buffer.putInt(this.embeddingLevel);
+            buffer.putDouble(this.embeddingStrength);
+            buffer.put(this.watermark, 0, this.watermarkLength);
+
+            return buffer.array();
         }
 
         /**
@@ -510,14 +803,4 @@ public class DWTXiePlugin extends WMImagePluginTemplate {
             this.watermarkLength = watermark.length;
         }
     }
-
-    private class Pixel {
-        int pos = 0;
-        double value = 0.0;
-
-        public Pixel(int pos, double value) {
-            this.pos = pos;
-            this.value = value;
-        }
-    }
 }
\ No newline at end of file
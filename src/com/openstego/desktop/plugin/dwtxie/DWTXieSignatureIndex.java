@@ -0,0 +1,638 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.plugin.dwtxie;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.openstego.desktop.OpenStegoException;
+import com.openstego.desktop.util.ImageHolder;
+import com.openstego.desktop.util.ImageUtil;
+import com.openstego.desktop.util.dwt.DWT;
+import com.openstego.desktop.util.dwt.DWTUtil;
+import com.openstego.desktop.util.dwt.Image;
+
+/**
+ * Index of DWTXie signatures, to find which of a large number of signatures (typically one per recipient) an image
+ * carries, without checking the image against every signature separately. The correlations are exactly the ones given
+ * by {@link DWTXiePlugin#checkMark(byte[], String, byte[])}; like that method, the search fails for an image too small
+ * to carry a watermark byte at the embedding level of a signature.
+ * <p>
+ * The watermarks are stored as bit vectors packed into 64-bit words, in blocks of signatures sharing the same transform
+ * parameters (wavelet filter, filter method, embedding level, embedding strength and watermark length). The watermark
+ * is extracted from the image once per set of parameters. As the extracted watermark is compared with the original
+ * watermark repeated cyclically, every bit position of the original watermark is compared with several extracted bits;
+ * the number of extracted ones at every position is kept bit-sliced (one bit vector per bit of the count), so that the
+ * Hamming distance to any watermark only takes a few <code>Long.bitCount</code> of ANDed words, whatever the size of
+ * the image.
+ * <p>
+ * Searches with a minimum correlation can use a multi-index filter: the watermarks are split into 16-bit chunks, and
+ * every chunk position has a table of the signatures by chunk value. The extracted bits are reduced to the majority bit
+ * of every position, weighted by how much more often that bit was extracted than its complement; the Hamming distance
+ * of a watermark is then a fixed amount plus the weights of the positions where it differs from the majority bits.
+ * Probing the tables with the chunks of the majority bits (and the chunks with up to a few bits flipped) finds every
+ * signature with few differences in at least one chunk, and when the weights show that every signature above the
+ * minimum correlation has such a chunk, only the signatures found are scored. Otherwise (typically for images which
+ * carry no watermark of the index) all the signatures are scored.
+ * <p>
+ * The index must not be modified while a search is running.
+ */
+public class DWTXieSignatureIndex {
+    /**
+     * Number of signatures stored in one block
+     */
+    private static final int BLOCK_ROWS = 4096;
+
+    /**
+     * Minimum number of signatures in a group for the blocks to be scored using multiple threads
+     */
+    private static final int PARALLEL_MIN_ROWS = 4 * BLOCK_ROWS;
+
+    /**
+     * Number of bits of the chunks of the multi-index filter
+     */
+    private static final int CHUNK_BITS = 16;
+
+    /**
+     * Maximum number of bits flipped in the chunks probed by the multi-index filter
+     */
+    private static final int MAX_FLIPS = 3;
+
+    /**
+     * Maximum number of table lookups for one chunk of the multi-index filter
+     */
+    private static final long MAX_PROBES_PER_CHUNK = 1 << 12;
+
+    /**
+     * Order of the matches: highest correlation first, then in the order in which the signatures were added
+     */
+    private static final Comparator<Match> MATCH_ORDER = (m1, m2) -> (m1.correlation != m2.correlation)
+            ? Double.compare(m2.correlation, m1.correlation) : Integer.compare(m1.order, m2.order);
+
+    /**
+     * Plugin used to extract the watermarks
+     */
+    private DWTXiePlugin plugin = new DWTXiePlugin();
+
+    /**
+     * Groups of the index, for every set of transform parameters
+     */
+    private Map<List<Object>, Group> groups = new LinkedHashMap<>();
+
+    /**
+     * Number of signatures in the index
+     */
+    private int size = 0;
+
+    /**
+     * Method to add a signature to the index
+     *
+     * @param id Identifier to return for the signature when it matches (for example the recipient)
+     * @param sigData Signature data
+     * @throws OpenStegoException
+     */
+    public void add(String id, byte[] sigData) throws OpenStegoException {
+        DWTXiePlugin.Signature sig = new DWTXiePlugin.Signature(sigData);
+        List<Object> key = Arrays.asList(sig.filterID, sig.waveletFilterMethod, sig.embeddingLevel, sig.embeddingStrength,
+            sig.watermarkLength);
+
+        if (sig.watermarkLength <= 0) {
+            throw new OpenStegoException(null, DWTXiePlugin.NAMESPACE, DWTXieErrors.ERR_SIG_NOT_VALID);
+        }
+        this.groups.computeIfAbsent(key, k -> new Group(sig)).add(id, sig, this.size);
+        this.size++;
+    }
+
+    /**
+     * Get method for size
+     *
+     * @return Number of signatures in the index
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Method to find the signatures with the highest correlation with the given image. All the signatures are scored.
+     *
+     * @param stegoData Image data
+     * @param stegoFileName Name of the image file
+     * @param maxResults Maximum number of matches to return
+     * @return Matches, highest correlation first
+     * @throws OpenStegoException
+     */
+    public List<Match> search(byte[] stegoData, String stegoFileName, int maxResults) throws OpenStegoException {
+        return search(stegoData, stegoFileName, maxResults, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Method to find the signatures with the highest correlation with the given image, among the ones with at least
+     * the given correlation. The multi-index filter is used whenever it cannot miss any of these signatures.
+     *
+     * @param stegoData Image data
+     * @param stegoFileName Name of the image file
+     * @param maxResults Maximum number of matches to return
+     * @param minCorrelation Minimum correlation of the matches
+     * @return Matches, highest correlation first
+     * @throws OpenStegoException
+     */
+    public List<Match> search(byte[] stegoData, String stegoFileName, int maxResults, double minCorrelation) throws OpenStegoException {
+        ImageHolder image = null;
+        List<int[][]> yuv = null;
+        List<Match> matches = new ArrayList<>();
+        int cols = 0;
+        int rows = 0;
+
+        if (maxResults <= 0 || this.size == 0) {
+            return matches;
+        }
+
+        image = ImageUtil.byteArrayToImage(stegoData, stegoFileName);
+        ImageUtil.makeImageSquare(image);
+        cols = image.getImage().getWidth();
+        rows = image.getImage().getHeight();
+        yuv = ImageUtil.getYuvFromImage(image.getImage());
+
+        for (Group group : this.groups.values()) {
+            DWT dwt = new DWT(cols, rows, group.sig.filterID, group.sig.embeddingLevel, group.sig.waveletFilterMethod);
+            Image approx = dwt.forwardDWTcoarse(yuv.get(0));
+            DWTXiePlugin.checkWindowCount(approx, group.sig);
+            Query query = new Query(this.plugin.extractWatermark(group.sig, approx, dwt.isParallel()), group.length);
+
+            DWTUtil.releaseImage(approx);
+            matches.addAll(group.search(query, maxResults, minCorrelation, dwt.isParallel()));
+        }
+        ImageUtil.releasePlanes(yuv);
+
+        matches.sort(MATCH_ORDER);
+        return (matches.size() > maxResults) ? new ArrayList<>(matches.subList(0, maxResults)) : matches;
+    }
+
+    /**
+     * Match of a signature with an image
+     */
+    public static class Match {
+        /**
+         * Identifier of the signature
+         */
+        private String id;
+
+        /**
+         * Correlation of the signature with the image
+         */
+        private double correlation;
+
+        /**
+         * Position of the signature in the index
+         */
+        private int order;
+
+        /**
+         * Default constructor
+         *
+         * @param id Identifier of the signature
+         * @param correlation Correlation of the signature with the image
+         * @param order Position of the signature in the index
+         */
+        Match(String id, double correlation, int order) {
+            this.id = id;
+            this.correlation = correlation;
+            this.order = order;
+        }
+
+        /**
+         * Get method for id
+         *
+         * @return id
+         */
+        public String getId() {
+            return this.id;
+        }
+
+        /**
+         * Get method for correlation
+         *
+         * @return correlation
+         */
+        public double getCorrelation() {
+            return this.correlation;
+        }
+    }
+
+    /**
+     * Extracted watermark, reduced to what is needed to score the signatures of a group. Bit position <code>j</code>
+     * (of the <code>8 * length</code> positions of the original watermark) is compared with the <code>k(j)</code>
+     * extracted bits <code>j</code>, <code>j + 8 * length</code>, and so on, <code>c(j)</code> of which are ones.
+     */
+    private static class Query {
+        /**
+         * Number of extracted bits
+         */
+        int bitCount;
+
+        /**
+         * Number of 64-bit words of a watermark
+         */
+        int wordCount;
+
+        /**
+         * Number of times every byte of the watermark is completely repeated in the extracted watermark
+         */
+        int repeats;
+
+        /**
+         * Mask of the positions which are compared once more than <code>repeats</code> times
+         */
+        long[] extraMask;
+
+        /**
+         * Number of ones in the extracted watermark
+         */
+        long ones;
+
+        /**
+         * Number of bit vectors holding the counts of ones
+         */
+        int planeCount;
+
+        /**
+         * Counts of ones per position, bit-sliced: bit <code>b</code> of <code>c(j)</code> is bit <code>j</code> of
+         * plane <code>b</code> (the words of plane <code>b</code> start at <code>b * wordCount</code>)
+         */
+        long[] planes;
+
+        /**
+         * Majority bit of every position
+         */
+        long[] majority;
+
+        /**
+         * Weight of every position: <code>|k(j) - 2 * c(j)|</code>, the increase of the Hamming distance when a
+         * watermark differs from the majority bit (zero when both bit values are equally frequent)
+         */
+        int[] weights;
+
+        /**
+         * Hamming distance of a watermark equal to the majority bits
+         */
+        long baseDistance;
+
+        Query(byte[] extracted, int length) {
+            int[] counts = new int[8 * length];
+            int extraBytes = extracted.length % length;
+
+            this.bitCount = 8 * extracted.length;
+            this.wordCount = (length + 7) >> 3;
+            this.repeats = extracted.length / length;
+            this.extraMask = new long[this.wordCount];
+            for (int i = 0; i < extraBytes; i++) {
+                this.extraMask[i >> 3] |= 0xFFL << ((i & 7) << 3);
+            }
+
+            for (int i = 0; i < extracted.length; i++) {
+                int value = extracted[i] & 0xFF;
+                int base = 8 * (i % length);
+                while (value != 0) {
+                    counts[base + Integer.numberOfTrailingZeros(value)]++;
+                    value &= value - 1;
+                }
+            }
+
+            this.planeCount = 32 - Integer.numberOfLeadingZeros(this.repeats + ((extraBytes > 0) ? 1 : 0));
+            this.planes = new long[this.planeCount * this.wordCount];
+            this.majority = new long[this.wordCount];
+            this.weights = new int[counts.length];
+            for (int j = 0; j < counts.length; j++) {
+                int c = counts[j];
+                int k = this.repeats + (((j >> 3) < extraBytes) ? 1 : 0);
+                for (int b = 0; b < this.planeCount; b++) {
+                    this.planes[b * this.wordCount + (j >> 6)] |= (long) ((c >> b) & 1) << (j & 63);
+                }
+                if (2 * c > k) {
+                    this.majority[j >> 6] |= 1L << (j & 63);
+                }
+                this.weights[j] = Math.abs(k - 2 * c);
+                this.baseDistance += Math.min(c, k - c);
+                this.ones += c;
+            }
+        }
+
+        /**
+         * Get the correlation of the watermark starting at <code>offset</code> in <code>words</code>, as given by
+         * the plugin: the Hamming distance is the number of extracted ones, plus the number of extracted bits at the
+         * positions which are ones in the watermark, minus twice the number of extracted ones at these positions.
+         */
+        double getCorrelation(long[] words, int offset) {
+            long distance = this.ones;
+            long corr = 0;
+
+            if (this.bitCount == 0) {
+                return 0.0;
+            }
+            for (int w = 0; w < this.wordCount; w++) {
+                long x = words[offset + w];
+                distance += (long) this.repeats * Long.bitCount(x) + Long.bitCount(x & this.extraMask[w]);
+                for (int b = 0; b < this.planeCount; b++) {
+                    distance -= (long) Long.bitCount(x & this.planes[b * this.wordCount + w]) << (b + 1);
+                }
+            }
+            corr = this.bitCount - 2 * distance;
+
+            return 0.5 + ((double) corr / (double) this.bitCount) / 2;
+        }
+    }
+
+    /**
+     * Packed watermarks of the signatures sharing the same transform parameters, with the tables of the multi-index
+     * filter
+     */
+    private static class Group {
+        /**
+         * First signature of the group (for the transform parameters)
+         */
+        DWTXiePlugin.Signature sig;
+
+        /**
+         * Length of the watermarks (in bytes)
+         */
+        int length;
+
+        /**
+         * Number of 64-bit words of a watermark
+         */
+        int wordCount;
+
+        /**
+         * Blocks of watermarks, row by row
+         */
+        List<long[]> blocks = new ArrayList<>();
+
+        /**
+         * Identifiers of the signatures
+         */
+        List<String> ids = new ArrayList<>();
+
+        /**
+         * Positions of the signatures in the index
+         */
+        int[] orders = new int[BLOCK_ROWS];
+
+        /**
+         * Number of signatures
+         */
+        int rows = 0;
+
+        /**
+         * Start of the rows with every chunk value, for every chunk position (built when needed)
+         */
+        int[][] chunkStarts = null;
+
+        /**
+         * Rows sorted by chunk value, for every chunk position (built when needed)
+         */
+        int[][] chunkRows = null;
+
+        Group(DWTXiePlugin.Signature sig) {
+            this.sig = sig;
+            this.length = sig.watermarkLength;
+            this.wordCount = (this.length + 7) >> 3;
+        }
+
+        void add(String id, DWTXiePlugin.Signature sig, int order) {
+            long[] words = DWTXiePlugin.getWords(sig.watermark, sig.watermarkLength, sig.watermarkLength);
+
+            if (this.rows % BLOCK_ROWS == 0) {
+                this.blocks.add(new long[BLOCK_ROWS * this.wordCount]);
+            }
+            if (this.rows == this.orders.length) {
+                this.orders = Arrays.copyOf(this.orders, 2 * this.rows);
+            }
+
+            System.arraycopy(words, 0, this.blocks.get(this.rows / BLOCK_ROWS), (this.rows % BLOCK_ROWS) * this.wordCount,
+                this.wordCount);
+            this.ids.add(id);
+            this.orders[this.rows] = order;
+            this.rows++;
+            this.chunkStarts = null;
+            this.chunkRows = null;
+        }
+
+        /**
+         * Get the best matches of the signatures of this group with at least the given correlation
+         */
+        List<Match> search(Query query, int maxResults, double minCorrelation, boolean parallel) {
+            BitSet candidates = filter(query, minCorrelation);
+            IntStream tasks = null;
+
+            if (candidates != null) {
+                return scoreRows(candidates.stream(), query, maxResults, minCorrelation);
+            }
+
+            tasks = IntStream.range(0, this.blocks.size());
+            if (parallel && this.rows >= PARALLEL_MIN_ROWS && ForkJoinPool.getCommonPoolParallelism() > 1) {
+                tasks = tasks.parallel();
+            }
+            return tasks.mapToObj(b -> scoreRows(IntStream.range(b * BLOCK_ROWS, Math.min((b + 1) * BLOCK_ROWS, this.rows)),
+                query, maxResults, minCorrelation)).flatMap(List::stream).sorted(MATCH_ORDER).limit(maxResults)
+                    .collect(Collectors.toList());
+        }
+
+        /**
+         * Score the given rows (in increasing order), keeping the worst of the best matches at the head of a queue
+         */
+        private List<Match> scoreRows(IntStream rowStream, Query query, int maxResults, double minCorrelation) {
+            PriorityQueue<Match> best = new PriorityQueue<>(MATCH_ORDER.reversed());
+
+            rowStream.forEachOrdered(r -> {
+                double correlation = query.getCorrelation(this.blocks.get(r / BLOCK_ROWS), (r % BLOCK_ROWS) * this.wordCount);
+
+                // Rows are visited in index order, so a tie with the head of the queue does not replace it
+                if (!(correlation >= minCorrelation)) {
+                    return;
+                }
+                if (best.size() < maxResults) {
+                    best.add(new Match(this.ids.get(r), correlation, this.orders[r]));
+                } else if (correlation > best.peek().correlation) {
+                    best.poll();
+                    best.add(new Match(this.ids.get(r), correlation, this.orders[r]));
+                }
+            });
+
+            return new ArrayList<>(best);
+        }
+
+        /**
+         * Find the rows which can have at least the given correlation using the multi-index filter, or return
+         * <code>null</code> if the filter cannot guarantee that no such row is missed.
+         * <p>
+         * A watermark at Hamming distance <code>baseDistance + d</code> differs from the majority bits at positions
+         * whose weights add up to <code>d</code>. If it differs from the majority bits at more than <code>f</code>
+         * positions of non-zero weight in every probed chunk, <code>d</code> is at least the sum over these chunks of
+         * their <code>f + 1</code> smallest non-zero weights. When that sum exceeds the largest <code>d</code> allowed
+         * by the minimum correlation, every row above the minimum has a chunk which is found by probing the chunk
+         * values with any bits of weight zero and up to <code>f</code> other bits flipped.
+         */
+        private BitSet filter(Query query, double minCorrelation) {
+            int chunkCount = (8 * this.length + CHUNK_BITS - 1) / CHUNK_BITS;
+            long maxDistance = 0;
+            int[][] weights = new int[chunkCount][];
+            int[] zeroMasks = new int[chunkCount];
+
+            if (!(minCorrelation > Double.NEGATIVE_INFINITY)) {
+                return null;
+            }
+
+            // Largest Hamming distance for the minimum correlation, rounded up to stay on the safe side
+            maxDistance = Math.min(query.bitCount, (long) Math.floor((1.0 - minCorrelation) * query.bitCount) + 1) - query.baseDistance;
+            if (maxDistance < 0) {
+                return new BitSet();
+            }
+
+            for (int c = 0; c < chunkCount; c++) {
+                int bits = Math.min(CHUNK_BITS, 8 * this.length - c * CHUNK_BITS);
+                int[] chunkWeights = new int[bits];
+                int n = 0;
+                for (int i = 0; i < bits; i++) {
+                    int weight = query.weights[c * CHUNK_BITS + i];
+                    if (weight == 0) {
+                        zeroMasks[c] |= 1 << i;
+                    } else {
+                        chunkWeights[n++] = weight;
+                    }
+                }
+                weights[c] = Arrays.copyOf(chunkWeights, n);
+                Arrays.sort(weights[c]);
+            }
+
+            for (int flips = 0; flips <= MAX_FLIPS; flips++) {
+                List<Integer> probed = new ArrayList<>();
+                long bound = 0;
+
+                for (int c = 0; c < chunkCount && bound <= maxDistance; c++) {
+                    long probes = (1L << Integer.bitCount(zeroMasks[c])) * getProbeCount(weights[c].length, flips);
+                    if (probes > MAX_PROBES_PER_CHUNK) {
+                        continue;
+                    }
+                    probed.add(c);
+                    if (weights[c].length <= flips) {
+                        // Every chunk value is probed
+                        bound = Long.MAX_VALUE;
+                    } else {
+                        for (int i = 0; i <= flips; i++) {
+                            bound += weights[c][i];
+                        }
+                    }
+                }
+
+                if (bound > maxDistance) {
+                    BitSet candidates = new BitSet(this.rows);
+                    buildTables();
+                    for (int c : probed) {
+                        int key = (int) (query.majority[(c * CHUNK_BITS) >> 6] >>> ((c * CHUNK_BITS) & 63)) & ((1 << CHUNK_BITS) - 1);
+                        int[] positions = new int[CHUNK_BITS];
+                        int n = 0;
+                        for (int i = 0; i < Math.min(CHUNK_BITS, 8 * this.length - c * CHUNK_BITS); i++) {
+                            if ((zeroMasks[c] & (1 << i)) == 0) {
+                                positions[n++] = i;
+                            }
+                        }
+                        probe(c, key, zeroMasks[c], Arrays.copyOf(positions, n), 0, flips, candidates);
+                    }
+                    return candidates;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Add the rows with the given chunk value (with any bits of the zero mask flipped, and up to <code>flips</code>
+         * further bits of the given positions flipped) to the candidates
+         */
+        private void probe(int chunk, int key, int zeroMask, int[] positions, int start, int flips, BitSet candidates) {
+            for (int sub = zeroMask;; sub = (sub - 1) & zeroMask) {
+                int value = key ^ sub;
+                for (int i = this.chunkStarts[chunk][value]; i < this.chunkStarts[chunk][value + 1]; i++) {
+                    candidates.set(this.chunkRows[chunk][i]);
+                }
+                if (sub == 0) {
+                    break;
+                }
+            }
+            if (flips > 0) {
+                for (int i = start; i < positions.length; i++) {
+                    probe(chunk, key ^ (1 << positions[i]), zeroMask, positions, i + 1, flips - 1, candidates);
+                }
+            }
+        }
+
+        /**
+         * Get the number of ways to flip up to <code>flips</code> of <code>n</code> bits
+         */
+        private static long getProbeCount(int n, int flips) {
+            long count = 0;
+            long ways = 1;
+
+            for (int i = 0; i <= Math.min(flips, n); i++) {
+                count += ways;
+                ways = ways * (n - i) / (i + 1);
+            }
+            return count;
+        }
+
+        /**
+         * Build the tables of the multi-index filter, if needed. The rows of every chunk position are sorted by chunk
+         * value using a counting sort.
+         */
+        private synchronized void buildTables() {
+            int chunkCount = (8 * this.length + CHUNK_BITS - 1) / CHUNK_BITS;
+            int[][] starts = null;
+            int[][] sortedRows = null;
+
+            if (this.chunkStarts != null) {
+                return;
+            }
+
+            starts = new int[chunkCount][(1 << CHUNK_BITS) + 1];
+            sortedRows = new int[chunkCount][this.rows];
+            for (int c = 0; c < chunkCount; c++) {
+                int[] next = null;
+                for (int r = 0; r < this.rows; r++) {
+                    starts[c][getChunk(r, c) + 1]++;
+                }
+                for (int v = 0; v < (1 << CHUNK_BITS); v++) {
+                    starts[c][v + 1] += starts[c][v];
+                }
+                next = Arrays.copyOf(starts[c], 1 << CHUNK_BITS);
+                for (int r = 0; r < this.rows; r++) {
+                    sortedRows[c][next[getChunk(r, c)]++] = r;
+                }
+            }
+
+            this.chunkRows = sortedRows;
+            this.chunkStarts = starts;
+        }
+
+        /**
+         * Get the value of the given chunk of the watermark of the given row
+         */
+        private int getChunk(int row, int chunk) {
+            long word = this.blocks.get(row / BLOCK_ROWS)[(row % BLOCK_ROWS) * this.wordCount + ((chunk * CHUNK_BITS) >> 6)];
+
+            return (int) (word >>> ((chunk * CHUNK_BITS) & 63)) & ((1 << CHUNK_BITS) - 1);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.plugin.lsb;
+
+import com.openstego.desktop.OpenStegoConfig;
+import com.openstego.desktop.OpenStegoException;
+
+/**
+ * Class to embed data into bands of image rows, without holding the whole image in memory. The layout of the
+ * embedded bits is the same as the one written by {@link LSBOutputStream}, so that the data can be read back using
+ * {@link LSBInputStream}: the header is written using one bit per color channel, the data starts at the next pixel,
+ * and then uses the number of bits per channel given in the header. As the location of every bit can be computed
+ * from the pixel index, the bands can be processed independently, and bands beyond the embedded data are left
+ * untouched.
+ */
+public class LSBBandEmbedder {
+    /**
+     * Header data
+     */
+    private byte[] header = null;
+
+    /**
+     * Data to be embedded
+     */
+    private byte[] data = null;
+
+    /**
+     * Number of bits used per color channel for the data
+     */
+    private int channelBitsUsed = 1;
+
+    /**
+     * Number of pixels used by the header
+     */
+    private long headerPixels = 0;
+
+    /**
+     * Total number of pixels used by the header and the data
+     */
+    private long pixelsUsed = 0;
+
+    /**
+     * Default constructor
+     *
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param data Data to be embedded
+     * @param fileName Name of the source data file
+     * @param config Configuration data to use while writing
+     * @throws OpenStegoException
+     */
+    public LSBBandEmbedder(int width, int height, byte[] data, String fileName, OpenStegoConfig config) throws OpenStegoException {
+        this((long) width * height, data, fileName, config);
+    }
+
+    /**
+     * Constructor for a given number of pixels
+     *
+     * @param noOfPixels Number of pixels available in the image
+     * @param data Data to be embedded
+     * @param fileName Name of the source data file
+     * @param config Configuration data to use while writing
+     * @throws OpenStegoException
+     */
+    public LSBBandEmbedder(long noOfPixels, byte[] data, String fileName, OpenStegoConfig config) throws OpenStegoException {
+        LSBDataHeader dataHeader = new LSBDataHeader(data.length, 1, fileName, config);
+        int maxChannelBits = ((LSBConfig) config).getMaxBitsUsedPerChannel();
+
+        this.data = data;
+        this.headerPixels = (dataHeader.getHeaderSize() * 8L + 2) / 3;
+
+        // Use the minimum number of bits per channel with which the data fits into the image
+        while (true) {
+            int pixelBits = 3 * this.channelBitsUsed;
+            this.pixelsUsed = this.headerPixels + (data.length * 8L + pixelBits - 1) / pixelBits;
+            if (this.pixelsUsed <= noOfPixels) {
+                break;
+            }
+            this.channelBitsUsed++;
+            if (this.channelBitsUsed > maxChannelBits) {
+                throw new OpenStegoException(null, LSBPlugin.NAMESPACE, LSBErrors.IMAGE_SIZE_INSUFFICIENT);
+            }
+        }
+
+        dataHeader.setChannelBitsUsed(this.channelBitsUsed);
+        this.header = dataHeader.getHeaderData();
+    }
+
+    /**
+     * Method to embed the data into a band of pixels
+     *
+     * @param rgb Pixels of the band in packed RGB format. The values are updated in place
+     * @param offset Offset of the first pixel of the band in the array
+     * @param firstPixel Index of the first pixel of the band in the image (row-major order)
+     * @param count Number of pixels in the band
+     */
+    public void embed(int[] rgb, int offset, long firstPixel, int count) {
+        long end = Math.min(firstPixel + count, this.pixelsUsed);
+        long pixel = firstPixel;
+        int pos = offset;
+
+        // Header pixels: one bit per channel, the unused channels of the last pixel are left as is
+        long headerBits = this.header.length * 8L;
+        for (; pixel < end && pixel < this.headerPixels; pixel++, pos++) {
+            int value = rgb[pos];
+            for (int c = 0; c < 3; c++) {
+                long bit = pixel * 3 + c;
+                if (bit < headerBits) {
+                    int shift = 16 - 8 * c;
+                    value = (value & ~(1 << shift)) | (getBit(this.header, bit) << shift);
+                }
+            }
+            rgb[pos] = value;
+        }
+
+        // Data pixels: channelBitsUsed bits per channel, most significant bit first, padded with zeros at the end
+        int cb = this.channelBitsUsed;
+        int maskPerByte = (1 << cb) - 1;
+        int mask = (maskPerByte << 16) | (maskPerByte << 8) | maskPerByte;
+        for (; pixel < end; pixel++, pos++) {
+            long bit = (pixel - this.headerPixels) * 3 * cb;
+            int bits = 0;
+            for (int c = 0; c < 3; c++) {
+                int channel = 0;
+                for (int i = 0; i < cb; i++) {
+                    channel = (channel << 1) | getBit(this.data, bit++);
+                }
+                bits = (bits << 8) | channel;
+            }
+            rgb[pos] = (rgb[pos] & ~mask) | bits;
+        }
+    }
+
+    /**
+     * Get method for pixelsUsed
+     *
+     * @return pixelsUsed
+     */
+    public long getPixelsUsed() {
+        return this.pixelsUsed;
+    }
+
+    /**
+     * Get method for channelBitsUsed
+     *
+     * @return channelBitsUsed
+     */
+    public int getChannelBitsUsed() {
+        return this.channelBitsUsed;
+    }
+
+    /**
+     * Get the given bit (most significant bit of each byte first), or zero beyond the end of the data
+     */
+    private static int getBit(byte[] bytes, long bit) {
+        int index = (int) (bit >>> 3);
+        if (index >= bytes.length) {
+            return 0;
+        }
+        return (bytes[index] >> (7 - (int) (bit & 7))) & 1;
+    }
+}
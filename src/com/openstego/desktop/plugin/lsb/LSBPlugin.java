@@ -6,7 +6,11 @@
 
 package com.openstego.desktop.plugin.lsb;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 
@@ -20,10 +24,15 @@ import com.openstego.desktop.plugin.template.image.DHImagePluginTemplate;
 import com.openstego.desktop.ui.OpenStegoUI;
 import com.openstego.desktop.ui.PluginEmbedOptionsUI;
 import com.openstego.desktop.util.ImageHolder;
+import com.openstego.desktop.util.ImageIOPool;
 import com.openstego.desktop.util.ImageUtil;
 import com.openstego.desktop.util.LabelUtil;
+import com.openstego.desktop.util.RawImageBuffer;
+import com.openstego.desktop.util.ScratchArena;
 import com.openstego.desktop.util.cmd.CmdLineOption;
 import com.openstego.desktop.util.cmd.CmdLineOptions;
+import com.openstego.desktop.util.png.PNGDecoder;
+import com.openstego.desktop.util.png.PNGEncoder;
 
 /**
  * Plugin for OpenStego which implements the Least-significant bit algorithm of steganography
@@ -39,6 +48,21 @@ public class LSBPlugin extends DHImagePluginTemplate {
      */
     public static final String NAMESPACE = "LSB";
 
+    /**
+     * Minimum size of the cover data for it to be processed as a stream of row bands
+     */
+    private static final int STREAMING_MIN_COVER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Approximate number of pixels in one band of rows while streaming
+     */
+    private static final int STREAMING_BAND_PIXELS = 1024 * 1024;
+
+    /**
+     * Number of pixels processed at a time while embedding into uncompressed images
+     */
+    private static final int RAW_BAND_PIXELS = 64 * 1024;
+
     /**
      * Default constructor
      */
@@ -84,6 +108,21 @@ public class LSBPlugin extends DHImagePluginTemplate {
         int numOfPixels = 0;
         ImageHolder image = null;
 
+        // Uncompressed BMP covers written back as BMP are modified in place
+        byte[] stegoData = embedDataRaw(msg, msgFileName, cover, stegoFileName);
+        if (stegoData != null) {
+            return stegoData;
+        }
+
+        // Large PNG covers written back as PNG are processed as a stream of row bands
+        try (PNGDecoder decoder = openStreamableCover(cover, stegoFileName)) {
+            if (decoder != null) {
+                return embedDataStreaming(msg, msgFileName, decoder);
+            }
+        } catch (IOException ioEx) {
+            throw new OpenStegoException(ioEx);
+        }
+
         // Generate random image, if input image is not provided
         if (cover == null) {
             numOfPixels = (int) (LSBDataHeader.getMaxHeaderSize() * 8 / 3.0);
@@ -101,6 +140,136 @@ public class LSBPlugin extends DHImagePluginTemplate {
         }
     }
 
+    /**
+     * Method to embed the message into an uncompressed BMP cover image, by changing the bits directly in a copy of the
+     * file data. The cover is not decoded, and only the bytes of the pixels carrying the message are touched.
+     *
+     * @param msg Message to be embedded
+     * @param msgFileName Name of the message file
+     * @param cover Cover data
+     * @param stegoFileName Name of the output stego file
+     * @return Stego data containing the message, or <code>null</code> if the cover is not an uncompressed BMP image,
+     *         or the stego file is to be written in another format
+     * @throws OpenStegoException
+     */
+    private byte[] embedDataRaw(byte[] msg, String msgFileName, byte[] cover, String stegoFileName) throws OpenStegoException {
+        if (cover == null || stegoFileName == null) {
+            return null;
+        }
+        if (wrapRawImage(cover) == null || !stegoFileName.toLowerCase().endsWith("." + RawImageBuffer.FORMAT_BMP)) {
+            return null;
+        }
+
+        byte[] stegoData = cover.clone();
+        embedDataInPlace(msg, msgFileName, RawImageBuffer.wrap(ByteBuffer.wrap(stegoData)));
+        return stegoData;
+    }
+
+    /**
+     * Method to embed the message in place into the pixels of an uncompressed image. The image can be backed by a
+     * memory-mapped file (see {@link RawImageBuffer#map(java.nio.file.Path, java.nio.channels.FileChannel.MapMode)}),
+     * in which case only the touched pages of the file are read and written.
+     *
+     * @param msg Message to be embedded
+     * @param msgFileName Name of the message file. If this value is provided, then the filename should be
+     *        embedded in the cover data
+     * @param image Raw image to embed the message into
+     * @throws OpenStegoException
+     */
+    public void embedDataInPlace(byte[] msg, String msgFileName, RawImageBuffer image) throws OpenStegoException {
+        LSBBandEmbedder embedder = new LSBBandEmbedder(image.getPixelCount(), msg, msgFileName, this.config);
+        long pixelsUsed = embedder.getPixelsUsed();
+        int bandPixels = (int) Math.min(RAW_BAND_PIXELS, pixelsUsed);
+        int[] band = ScratchArena.get().getInts(bandPixels, false);
+
+        for (long pixel = 0; pixel < pixelsUsed; pixel += bandPixels) {
+            int count = (int) Math.min(bandPixels, pixelsUsed - pixel);
+            image.getRGB(pixel, band, 0, count);
+            embedder.embed(band, 0, pixel, count);
+            image.setRGB(pixel, band, 0, count);
+        }
+        ScratchArena.get().release(band);
+    }
+
+    /**
+     * Method to wrap the image data for direct access to the pixels. Only BMP images are handled this way, as PPM and
+     * PGM images are not in the list of file formats supported by the plugin (they cannot be read through ImageIO).
+     *
+     * @param imageData Image data
+     * @return Raw image, or <code>null</code> if the data is not an uncompressed BMP image
+     */
+    private static RawImageBuffer wrapRawImage(byte[] imageData) {
+        RawImageBuffer raw = (imageData == null) ? null : RawImageBuffer.wrap(ByteBuffer.wrap(imageData));
+        return (raw != null && RawImageBuffer.FORMAT_BMP.equals(raw.getFormat())) ? raw : null;
+    }
+
+    /**
+     * Method to embed the message into the cover image one band of rows at a time. Only a band of pixels is held in
+     * memory, whatever the size of the image; the rows beyond the embedded data are passed through unchanged.
+     *
+     * @param msg Message to be embedded
+     * @param msgFileName Name of the message file
+     * @param decoder Decoder for the cover image
+     * @return Stego data containing the message
+     * @throws OpenStegoException
+     * @throws IOException
+     */
+    private byte[] embedDataStreaming(byte[] msg, String msgFileName, PNGDecoder decoder) throws OpenStegoException, IOException {
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        LSBBandEmbedder embedder = new LSBBandEmbedder(width, height, msg, msgFileName, this.config);
+        int bandRows = Math.max(1, Math.min(height, STREAMING_BAND_PIXELS / width));
+        int[] band = ScratchArena.get().getInts(bandRows * width, false);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PNGEncoder encoder = new PNGEncoder(os, width, height, false, ImageUtil.getPngCompressionLevel());
+        for (int y = 0; y < height; y += bandRows) {
+            int rows = Math.min(bandRows, height - y);
+            decoder.readRows(band, 0, width, rows);
+            embedder.embed(band, 0, (long) y * width, rows * width);
+            encoder.writeRows(band, 0, width, rows);
+        }
+        encoder.finish();
+        ScratchArena.get().release(band);
+
+        return os.toByteArray();
+    }
+
+    /**
+     * Method to open the cover image for streaming, if the cover is a PNG image supported by the fast-path decoder,
+     * which is large enough, and the stego image is to be written as PNG too. Covers with metadata chunks are not
+     * streamed, as the encoder would drop their metadata.
+     *
+     * @param cover Cover data
+     * @param stegoFileName Name of the output stego file
+     * @return Decoder for the cover image, or <code>null</code> if the cover cannot be streamed
+     */
+    private static PNGDecoder openStreamableCover(byte[] cover, String stegoFileName) {
+        if (cover == null || cover.length < STREAMING_MIN_COVER_SIZE || !ImageIOPool.FORMAT_PNG.equals(ImageIOPool.detectFormat(cover))) {
+            return null;
+        }
+        if (stegoFileName != null && !stegoFileName.toLowerCase().endsWith(".png")) {
+            return null;
+        }
+        if (PNGDecoder.hasMetadataChunks(cover)) {
+            return null;
+        }
+
+        PNGDecoder decoder = null;
+        try {
+            decoder = new PNGDecoder(new ByteArrayInputStream(cover));
+            if (decoder.isSupported()) {
+                return decoder;
+            }
+        } catch (IOException ioEx) {
+            // Leave it to the regular path to read (and report) the image
+        }
+        if (decoder != null) {
+            decoder.close();
+        }
+        return null;
+    }
+
     /**
      * Method to extract the message file name from the stego data
      *
@@ -111,6 +280,15 @@ public class LSBPlugin extends DHImagePluginTemplate {
      */
     @Override
     public String extractMsgFileName(byte[] stegoData, String stegoFileName) throws OpenStegoException {
+        RawImageBuffer raw = wrapRawImage(stegoData);
+        if (raw != null) {
+            try (LSBRawInputStream lsbIS = new LSBRawInputStream(raw, this.config)) {
+                return lsbIS.getDataHeader().getFileName();
+            } catch (IOException ioEx) {
+                throw new OpenStegoException(ioEx);
+            }
+        }
+
         try (LSBInputStream lsbIS = new LSBInputStream(ImageUtil.byteArrayToImage(stegoData, stegoFileName), this.config)) {
             return lsbIS.getDataHeader().getFileName();
         } catch (IOException ioEx) {
@@ -129,20 +307,17 @@ public class LSBPlugin extends DHImagePluginTemplate {
      */
     @Override
     public byte[] extractData(byte[] stegoData, String stegoFileName, byte[] origSigData) throws OpenStegoException {
-        int bytesRead = 0;
-        byte[] data = null;
-        LSBDataHeader header = null;
-
-        try (LSBInputStream lsbIS = new LSBInputStream(ImageUtil.byteArrayToImage(stegoData, stegoFileName), this.config)) {
-            header = lsbIS.getDataHeader();
-            data = new byte[header.getDataLength()];
-
-            bytesRead = lsbIS.read(data, 0, data.length);
-            if (bytesRead != data.length) {
-                throw new OpenStegoException(null, NAMESPACE, LSBErrors.ERR_IMAGE_DATA_READ);
+        RawImageBuffer raw = wrapRawImage(stegoData);
+        if (raw != null) {
+            try (LSBRawInputStream lsbIS = new LSBRawInputStream(raw, this.config)) {
+                return readData(lsbIS, lsbIS.getDataHeader());
+            } catch (IOException ioEx) {
+                throw new OpenStegoException(ioEx);
             }
+        }
 
-            return data;
+        try (LSBInputStream lsbIS = new LSBInputStream(ImageUtil.byteArrayToImage(stegoData, stegoFileName), this.config)) {
+            return readData(lsbIS, lsbIS.getDataHeader());
         } catch (OpenStegoException osEx) {
             throw osEx;
         } catch (Exception ex) {
@@ -150,6 +325,26 @@ public class LSBPlugin extends DHImagePluginTemplate {
         }
     }
 
+    /**
+     * Method to read the message following the header from the given stream
+     *
+     * @param lsbIS Stream to read the message from
+     * @param header Data header read from the stream
+     * @return Extracted message
+     * @throws OpenStegoException
+     * @throws IOException
+     */
+    private static byte[] readData(InputStream lsbIS, LSBDataHeader header) throws OpenStegoException, IOException {
+        byte[] data = new byte[header.getDataLength()];
+
+        int bytesRead = lsbIS.read(data, 0, data.length);
+        if (bytesRead != data.length) {
+            throw new OpenStegoException(null, NAMESPACE, LSBErrors.ERR_IMAGE_DATA_READ);
+        }
+
+        return data;
+    }
+
     /**
      * Method to get the list of supported file extensions for writing
      *
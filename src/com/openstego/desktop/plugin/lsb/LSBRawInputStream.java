@@ -0,0 +1,135 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.plugin.lsb;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.openstego.desktop.OpenStegoConfig;
+import com.openstego.desktop.OpenStegoException;
+import com.openstego.desktop.util.RawImageBuffer;
+
+/**
+ * InputStream to read embedded data directly from the pixels of an uncompressed image file. It reads the same layout
+ * as {@link LSBInputStream}, but fetches the pixels from a {@link RawImageBuffer} instead of a decoded image.
+ */
+public class LSBRawInputStream extends InputStream {
+    /**
+     * Raw image data
+     */
+    private RawImageBuffer image = null;
+
+    /**
+     * Data header
+     */
+    private LSBDataHeader dataHeader = null;
+
+    /**
+     * Number of bits used per color channel
+     */
+    private int channelBitsUsed = 1;
+
+    /**
+     * Index of the current pixel
+     */
+    private long pixel = 0;
+
+    /**
+     * Number of pixels in the image
+     */
+    private long pixelCount = 0;
+
+    /**
+     * Value of the current pixel in packed RGB format
+     */
+    private int pixelValue = 0;
+
+    /**
+     * Buffer used to fetch the current pixel
+     */
+    private int[] pixelBuffer = new int[1];
+
+    /**
+     * Current bit number to be read
+     */
+    private int currBit = 0;
+
+    /**
+     * Default constructor
+     *
+     * @param image Raw image data to be read
+     * @param config Configuration data to use while reading
+     * @throws OpenStegoException
+     */
+    public LSBRawInputStream(RawImageBuffer image, OpenStegoConfig config) throws OpenStegoException {
+        if (image == null) {
+            throw new OpenStegoException(null, LSBPlugin.NAMESPACE, LSBErrors.NULL_IMAGE_ARGUMENT);
+        }
+
+        this.image = image;
+        this.pixelCount = image.getPixelCount();
+        loadPixel();
+
+        this.dataHeader = new LSBDataHeader(this, config);
+        this.channelBitsUsed = this.dataHeader.getChannelBitsUsed();
+        if (this.channelBitsUsed < 1 || this.channelBitsUsed > 8) {
+            throw new OpenStegoException(null, LSBPlugin.NAMESPACE, LSBErrors.INVALID_STEGO_HEADER);
+        }
+
+        // Data starts at the next pixel after the header
+        if (this.currBit != 0) {
+            this.currBit = 0;
+            this.pixel++;
+            loadPixel();
+        }
+    }
+
+    /**
+     * Implementation of <code>InputStream.read()</code> method
+     *
+     * @return Byte read from the stream
+     * @throws IOException
+     */
+    @Override
+    public int read() throws IOException {
+        int data = 0;
+
+        for (int i = 0; i < 8; i++) {
+            if (this.pixel >= this.pixelCount) {
+                return -1;
+            }
+
+            int group = this.currBit / this.channelBitsUsed;
+            int groupBit = this.currBit % this.channelBitsUsed;
+            data = (data << 1) | ((this.pixelValue >> (16 - (group * 8) + this.channelBitsUsed - groupBit - 1)) & 1);
+
+            this.currBit++;
+            if (this.currBit == (3 * this.channelBitsUsed)) {
+                this.currBit = 0;
+                this.pixel++;
+                loadPixel();
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Get method for dataHeader
+     *
+     * @return dataHeader
+     */
+    public LSBDataHeader getDataHeader() {
+        return this.dataHeader;
+    }
+
+    private void loadPixel() {
+        if (this.pixel < this.pixelCount) {
+            this.image.getRGB(this.pixel, this.pixelBuffer, 0, 1);
+            this.pixelValue = this.pixelBuffer[0];
+        }
+    }
+}
@@ -279,7 +279,8 @@ public class CommonUtil {
      */
     public static int mod(int num, int div) {
         if (num < 0) {
-            return div - (-num % div);
+            // Negative multiples of div must give zero, not div
+            return (div - (-num % div)) % div;
         } else {
             return num % div;
         }
@@ -0,0 +1,315 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.stream.IntStream;
+
+/**
+ * Class to compute the difference between two images of the same size. The difference is computed in a single,
+ * row-parallel pass which gathers per-channel absolute differences, histograms and squared error sums. The difference
+ * image and the quality metrics (MSE and PSNR) are then derived from these statistics without reading the input
+ * images again.
+ */
+public class ImageDiff {
+    /**
+     * Number of color channels compared (R, G and B)
+     */
+    public static final int CHANNELS = 3;
+
+    /**
+     * Index of the red channel in the statistics arrays
+     */
+    public static final int RED = 0;
+
+    /**
+     * Index of the green channel in the statistics arrays
+     */
+    public static final int GREEN = 1;
+
+    /**
+     * Index of the blue channel in the statistics arrays
+     */
+    public static final int BLUE = 2;
+
+    /**
+     * Number of image rows processed by one parallel task
+     */
+    private static final int ROWS_PER_BAND = 64;
+
+    /**
+     * Maximum value of a channel sample
+     */
+    private static final double MAX_SAMPLE = 255.0;
+
+    /**
+     * Image width
+     */
+    private int width = 0;
+
+    /**
+     * Image height
+     */
+    private int height = 0;
+
+    /**
+     * Packed absolute channel differences (same layout as TYPE_INT_RGB)
+     */
+    private int[] diff = null;
+
+    /**
+     * Histogram of absolute differences for each channel
+     */
+    private long[][] histogram = null;
+
+    /**
+     * Sum of squared differences for each channel
+     */
+    private long[] sumSquares = null;
+
+    /**
+     * Maximum absolute difference for each channel
+     */
+    private int[] maxDiff = null;
+
+    /**
+     * Difference image (rendered lazily)
+     */
+    private BufferedImage diffImage = null;
+
+    /**
+     * Default constructor. Computes the statistics for the given images, which must have the same dimensions.
+     *
+     * @param left Left input image
+     * @param right Right input image
+     */
+    public ImageDiff(BufferedImage left, BufferedImage right) {
+        this.width = left.getWidth();
+        this.height = left.getHeight();
+        this.diff = new int[this.width * this.height];
+
+        int bands = (this.height + ROWS_PER_BAND - 1) / ROWS_PER_BAND;
+        Stats stats = IntStream.range(0, bands).parallel().mapToObj(band -> compareBand(left, right, band)).reduce(new Stats(), Stats::merge);
+
+        this.histogram = stats.histogram;
+        this.sumSquares = stats.sumSquares;
+        this.maxDiff = stats.maxDiff;
+    }
+
+    /**
+     * Get the difference image. Each channel of the image holds the absolute difference of that channel, stretched
+     * to the full [0,255] range using the maximum difference of the channel, so that even single bit changes are
+     * visible.
+     *
+     * @return Difference image
+     */
+    public synchronized BufferedImage getDiffImage() {
+        if (this.diffImage != null) {
+            return this.diffImage;
+        }
+
+        this.diffImage = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+        int[] out = ((DataBufferInt) this.diffImage.getRaster().getDataBuffer()).getData();
+
+        // Lookup tables to scale each channel to full range
+        int[][] scale = new int[CHANNELS][256];
+        for (int c = 0; c < CHANNELS; c++) {
+            for (int v = 0; v <= this.maxDiff[c]; v++) {
+                scale[c][v] = (this.maxDiff[c] == 0) ? 0 : (int) (v * MAX_SAMPLE / this.maxDiff[c] + 0.5);
+            }
+        }
+        final int[] r = scale[RED];
+        final int[] g = scale[GREEN];
+        final int[] b = scale[BLUE];
+
+        IntStream.range(0, this.height).parallel().forEach(y -> {
+            for (int i = y * this.width, end = i + this.width; i < end; i++) {
+                int d = this.diff[i];
+                out[i] = (r[(d >> 16) & 0xFF] << 16) | (g[(d >> 8) & 0xFF] << 8) | b[d & 0xFF];
+            }
+        });
+
+        return this.diffImage;
+    }
+
+    /**
+     * Get the mean squared error of the given channel
+     *
+     * @param channel Channel index ({@link #RED}, {@link #GREEN} or {@link #BLUE})
+     * @return Mean squared error
+     */
+    public double getMse(int channel) {
+        return (double) this.sumSquares[channel] / getPixelCount();
+    }
+
+    /**
+     * Get the mean squared error over all the channels
+     *
+     * @return Mean squared error
+     */
+    public double getMse() {
+        long sum = 0;
+        for (int c = 0; c < CHANNELS; c++) {
+            sum += this.sumSquares[c];
+        }
+        return (double) sum / (getPixelCount() * CHANNELS);
+    }
+
+    /**
+     * Get the peak signal-to-noise ratio (in dB) of the given channel
+     *
+     * @param channel Channel index ({@link #RED}, {@link #GREEN} or {@link #BLUE})
+     * @return PSNR value. {@link Double#POSITIVE_INFINITY} is returned if the images are identical
+     */
+    public double getPsnr(int channel) {
+        return psnr(getMse(channel));
+    }
+
+    /**
+     * Get the peak signal-to-noise ratio (in dB) over all the channels
+     *
+     * @return PSNR value. {@link Double#POSITIVE_INFINITY} is returned if the images are identical
+     */
+    public double getPsnr() {
+        return psnr(getMse());
+    }
+
+    /**
+     * Get the maximum absolute difference of the given channel
+     *
+     * @param channel Channel index ({@link #RED}, {@link #GREEN} or {@link #BLUE})
+     * @return Maximum absolute difference
+     */
+    public int getMaxDiff(int channel) {
+        return this.maxDiff[channel];
+    }
+
+    /**
+     * Get the histogram of absolute differences of the given channel
+     *
+     * @param channel Channel index ({@link #RED}, {@link #GREEN} or {@link #BLUE})
+     * @return Histogram with 256 buckets, one per absolute difference value
+     */
+    public long[] getHistogram(int channel) {
+        return this.histogram[channel].clone();
+    }
+
+    /**
+     * Get the number of pixels which differ in at least one channel
+     *
+     * @return Number of changed pixels
+     */
+    public long getChangedPixelCount() {
+        long count = 0;
+        for (int i = 0; i < this.diff.length; i++) {
+            if (this.diff[i] != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get method for width
+     *
+     * @return width
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Get method for height
+     *
+     * @return height
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    private long getPixelCount() {
+        return (long) this.width * this.height;
+    }
+
+    private static double psnr(double mse) {
+        if (mse == 0.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return 10.0 * Math.log10(MAX_SAMPLE * MAX_SAMPLE / mse);
+    }
+
+    /**
+     * Compare one band of rows of both the images, filling the packed difference data and gathering the statistics
+     * for the band
+     */
+    private Stats compareBand(BufferedImage left, BufferedImage right, int band) {
+        Stats stats = new Stats();
+        int y0 = band * ROWS_PER_BAND;
+        int rows = Math.min(ROWS_PER_BAND, this.height - y0);
+        int[] leftRgb = left.getRGB(0, y0, this.width, rows, null, 0, this.width);
+        int[] rightRgb = right.getRGB(0, y0, this.width, rows, null, 0, this.width);
+        long[] histR = stats.histogram[RED];
+        long[] histG = stats.histogram[GREEN];
+        long[] histB = stats.histogram[BLUE];
+        long sqR = 0;
+        long sqG = 0;
+        long sqB = 0;
+        int offset = y0 * this.width;
+
+        for (int i = 0; i < leftRgb.length; i++) {
+            int l = leftRgb[i];
+            int r = rightRgb[i];
+            int dr = Math.abs(((l >> 16) & 0xFF) - ((r >> 16) & 0xFF));
+            int dg = Math.abs(((l >> 8) & 0xFF) - ((r >> 8) & 0xFF));
+            int db = Math.abs((l & 0xFF) - (r & 0xFF));
+
+            histR[dr]++;
+            histG[dg]++;
+            histB[db]++;
+            sqR += dr * dr;
+            sqG += dg * dg;
+            sqB += db * db;
+            this.diff[offset + i] = (dr << 16) | (dg << 8) | db;
+        }
+
+        stats.sumSquares[RED] = sqR;
+        stats.sumSquares[GREEN] = sqG;
+        stats.sumSquares[BLUE] = sqB;
+        for (int c = 0; c < CHANNELS; c++) {
+            long[] hist = stats.histogram[c];
+            for (int v = 255; v > 0; v--) {
+                if (hist[v] != 0) {
+                    stats.maxDiff[c] = v;
+                    break;
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Statistics gathered for a band of rows
+     */
+    private static class Stats {
+        long[][] histogram = new long[CHANNELS][256];
+        long[] sumSquares = new long[CHANNELS];
+        int[] maxDiff = new int[CHANNELS];
+
+        Stats merge(Stats other) {
+            Stats sum = new Stats();
+            for (int c = 0; c < CHANNELS; c++) {
+                for (int v = 0; v < 256; v++) {
+                    sum.histogram[c][v] = this.histogram[c][v] + other.histogram[c][v];
+                }
+                sum.sumSquares[c] = this.sumSquares[c] + other.sumSquares[c];
+                sum.maxDiff[c] = Math.max(this.maxDiff[c], other.maxDiff[c]);
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+
+/**
+ * Pool of reusable ImageIO readers and writers, keyed by image format name. Looking up a reader or writer through the
+ * ImageIO service registry is costly, so instances are reset after use and kept for the next call instead of being
+ * thrown away. This class also detects the image format from the magic bytes at the start of the image data, so that
+ * the right reader can be picked directly.
+ */
+public class ImageIOPool {
+    /**
+     * Constructor is private so that this class is not instantiated
+     */
+    private ImageIOPool() {
+    }
+
+    /**
+     * Format name for PNG images
+     */
+    public static final String FORMAT_PNG = "png";
+
+    /**
+     * Format name for JPEG images
+     */
+    public static final String FORMAT_JPEG = "jpeg";
+
+    /**
+     * Format name for GIF images
+     */
+    public static final String FORMAT_GIF = "gif";
+
+    /**
+     * Format name for BMP images
+     */
+    public static final String FORMAT_BMP = "bmp";
+
+    /**
+     * Format name for TIFF images
+     */
+    public static final String FORMAT_TIFF = "tiff";
+
+    /**
+     * Format name for JPEG 2000 images
+     */
+    public static final String FORMAT_JP2 = "jpeg 2000";
+
+    /**
+     * Maximum number of idle instances kept per format
+     */
+    private static final int MAX_IDLE_PER_FORMAT = 4;
+
+    /**
+     * Idle readers per format
+     */
+    private static final ConcurrentMap<String, Deque<ImageReader>> readerPool = new ConcurrentHashMap<>();
+
+    /**
+     * Idle writers per format
+     */
+    private static final ConcurrentMap<String, Deque<ImageWriter>> writerPool = new ConcurrentHashMap<>();
+
+    /**
+     * PNG signature
+     */
+    private static final byte[] MAGIC_PNG = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    /**
+     * JPEG signature (SOI marker followed by the start of next marker)
+     */
+    private static final byte[] MAGIC_JPEG = { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF };
+
+    /**
+     * GIF signature
+     */
+    private static final byte[] MAGIC_GIF = { 'G', 'I', 'F', '8' };
+
+    /**
+     * BMP signature
+     */
+    private static final byte[] MAGIC_BMP = { 'B', 'M' };
+
+    /**
+     * TIFF signature (little-endian)
+     */
+    private static final byte[] MAGIC_TIFF_LE = { 'I', 'I', 42, 0 };
+
+    /**
+     * TIFF signature (big-endian)
+     */
+    private static final byte[] MAGIC_TIFF_BE = { 'M', 'M', 0, 42 };
+
+    /**
+     * JPEG 2000 signature (JP2 file format box)
+     */
+    private static final byte[] MAGIC_JP2 = { 0, 0, 0, 0x0C, 'j', 'P', ' ', ' ' };
+
+    /**
+     * JPEG 2000 signature (raw codestream)
+     */
+    private static final byte[] MAGIC_J2K = { (byte) 0xFF, (byte) 0x4F, (byte) 0xFF, (byte) 0x51 };
+
+    /**
+     * Method to detect the image format from the magic bytes at the start of the image data
+     *
+     * @param data Image data
+     * @return Format name, or <code>null</code> if the format could not be recognized
+     */
+    public static String detectFormat(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        if (startsWith(data, MAGIC_PNG)) {
+            return FORMAT_PNG;
+        }
+        if (startsWith(data, MAGIC_JPEG)) {
+            return FORMAT_JPEG;
+        }
+        if (startsWith(data, MAGIC_GIF)) {
+            return FORMAT_GIF;
+        }
+        if (startsWith(data, MAGIC_BMP)) {
+            return FORMAT_BMP;
+        }
+        if (startsWith(data, MAGIC_TIFF_LE) || startsWith(data, MAGIC_TIFF_BE)) {
+            return FORMAT_TIFF;
+        }
+        if (startsWith(data, MAGIC_JP2) || startsWith(data, MAGIC_J2K)) {
+            return FORMAT_JP2;
+        }
+        return null;
+    }
+
+    /**
+     * Method to get a reader for the given format. The reader must be given back using
+     * {@link #releaseReader(String, ImageReader)} once the image is read.
+     *
+     * @param format Format name
+     * @return Image reader, or <code>null</code> if no reader is available for the format
+     */
+    public static ImageReader acquireReader(String format) {
+        ImageReader reader = getPool(readerPool, format).pollFirst();
+        if (reader != null) {
+            return reader;
+        }
+
+        Iterator<ImageReader> iter = ImageIO.getImageReadersByFormatName(format);
+        return iter.hasNext() ? iter.next() : null;
+    }
+
+    /**
+     * Method to give back a reader acquired using {@link #acquireReader(String)}. The reader is reset and kept for
+     * reuse, or disposed if enough idle readers are already available for the format.
+     *
+     * @param format Format name
+     * @param reader Image reader
+     */
+    public static void releaseReader(String format, ImageReader reader) {
+        if (reader == null) {
+            return;
+        }
+
+        reader.reset();
+        Deque<ImageReader> pool = getPool(readerPool, format);
+        if (pool.size() < MAX_IDLE_PER_FORMAT) {
+            pool.offerFirst(reader);
+        } else {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Method to get a writer for the given format. The writer must be given back using
+     * {@link #releaseWriter(String, ImageWriter)} once the image is written.
+     *
+     * @param format Format name
+     * @return Image writer, or <code>null</code> if no writer is available for the format
+     */
+    public static ImageWriter acquireWriter(String format) {
+        ImageWriter writer = getPool(writerPool, format).pollFirst();
+        if (writer != null) {
+            return writer;
+        }
+
+        Iterator<ImageWriter> iter = ImageIO.getImageWritersByFormatName(format);
+        return iter.hasNext() ? iter.next() : null;
+    }
+
+    /**
+     * Method to give back a writer acquired using {@link #acquireWriter(String)}. The writer is reset and kept for
+     * reuse, or disposed if enough idle writers are already available for the format.
+     *
+     * @param format Format name
+     * @param writer Image writer
+     */
+    public static void releaseWriter(String format, ImageWriter writer) {
+        if (writer == null) {
+            return;
+        }
+
+        writer.reset();
+        Deque<ImageWriter> pool = getPool(writerPool, format);
+        if (pool.size() < MAX_IDLE_PER_FORMAT) {
+            pool.offerFirst(writer);
+        } else {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Method to dispose all the idle readers and writers
+     */
+    public static void clear() {
+        for (Deque<ImageReader> pool : readerPool.values()) {
+            ImageReader reader = null;
+            while ((reader = pool.pollFirst()) != null) {
+                reader.dispose();
+            }
+        }
+        for (Deque<ImageWriter> pool : writerPool.values()) {
+            ImageWriter writer = null;
+            while ((writer = pool.pollFirst()) != null) {
+                writer.dispose();
+            }
+        }
+    }
+
+    private static <T> Deque<T> getPool(ConcurrentMap<String, Deque<T>> pools, String format) {
+        return pools.computeIfAbsent(format.toLowerCase(), key -> new ConcurrentLinkedDeque<>());
+    }
+
+    private static boolean startsWith(byte[] data, byte[] magic) {
+        if (data.length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
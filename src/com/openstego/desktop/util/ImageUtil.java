@@ -7,16 +7,18 @@
 package com.openstego.desktop.util;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -26,10 +28,15 @@ import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 
 import com.openstego.desktop.OpenStego;
 import com.openstego.desktop.OpenStegoException;
 import com.openstego.desktop.OpenStegoPlugin;
+import com.openstego.desktop.util.png.PNGDecoder;
+import com.openstego.desktop.util.png.PNGEncoder;
+import com.openstego.desktop.util.png.PNGImageWriteParam;
+import com.openstego.desktop.util.png.PNGImageWriterSpi;
 
 /**
  * Image utilities
@@ -46,8 +53,19 @@ public class ImageUtil {
      */
     public static final String DEFAULT_IMAGE_TYPE = "png";
 
+    static {
+        // Use the parallel PNG writer in preference to the default one
+        PNGImageWriterSpi.register();
+    }
+
+    /**
+     * Number of image rows filled with noise by one parallel task
+     */
+    private static final int RANDOM_IMAGE_BAND_ROWS = 256;
+
     /**
-     * Method to generate a random image filled with noise.
+     * Method to generate a random image filled with noise. The generator is seeded once from a secure random source
+     * and then split into independent streams, one per band of rows, which fill the image raster in parallel.
      *
      * @param numOfPixels Number of pixels required in the image
      * @return Random image filled with noise
@@ -57,29 +75,49 @@ public class ImageUtil {
         final double ASPECT_RATIO = 4.0 / 3.0;
         int width = 0;
         int height = 0;
-        byte[] rgbValue = new byte[3];
+        int bands = 0;
         BufferedImage image = null;
-        SecureRandom random = null;
+        SplittableRandom random = null;
 
         try {
-            random = SecureRandom.getInstance("SHA1PRNG");
+            random = new SplittableRandom(SecureRandom.getInstance("SHA1PRNG").nextLong());
+        } catch (NoSuchAlgorithmException nsaEx) {
+            throw new OpenStegoException(nsaEx);
+        }
 
-            width = (int) Math.ceil(Math.sqrt(numOfPixels * ASPECT_RATIO));
-            height = (int) Math.ceil(numOfPixels / (double) width);
+        width = (int) Math.ceil(Math.sqrt(numOfPixels * ASPECT_RATIO));
+        height = (int) Math.ceil(numOfPixels / (double) width);
 
-            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    random.nextBytes(rgbValue);
-                    image.setRGB(x, y,
-                        CommonUtil.byteToInt(rgbValue[0]) + (CommonUtil.byteToInt(rgbValue[1]) << 8) + (CommonUtil.byteToInt(rgbValue[2]) << 16));
-                }
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        final int bandSize = width * RANDOM_IMAGE_BAND_ROWS;
+
+        // Split the streams up-front so that every band gets an independent generator
+        bands = (height + RANDOM_IMAGE_BAND_ROWS - 1) / RANDOM_IMAGE_BAND_ROWS;
+        final SplittableRandom[] bandRandoms = new SplittableRandom[bands];
+        for (int i = 0; i < bands; i++) {
+            bandRandoms[i] = random.split();
+        }
+
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            SplittableRandom rand = bandRandoms[band];
+            int start = band * bandSize;
+            int end = Math.min(start + bandSize, pixels.length);
+            int i = start;
+            long bits = 0;
+
+            // Each 64-bit value provides two 24-bit RGB pixels
+            for (; i + 1 < end; i += 2) {
+                bits = rand.nextLong();
+                pixels[i] = (int) bits & 0xFFFFFF;
+                pixels[i + 1] = (int) (bits >>> 32) & 0xFFFFFF;
+            }
+            if (i < end) {
+                pixels[i] = rand.nextInt() & 0xFFFFFF;
             }
+        });
 
-            return new ImageHolder(image, null);
-        } catch (NoSuchAlgorithmException nsaEx) {
-            throw new OpenStegoException(nsaEx);
-        }
+        return new ImageHolder(image, null);
     }
 
     /**
@@ -123,7 +161,7 @@ public class ImageUtil {
             return null;
         }
 
-        ImageHolder image = readImage(new ByteArrayInputStream(imageData));
+        ImageHolder image = readImage(imageData);
         if (image == null) {
             throw new OpenStegoException(null, OpenStego.NAMESPACE, OpenStegoException.IMAGE_FILE_INVALID, imgFileName);
         }
@@ -147,17 +185,21 @@ public class ImageUtil {
         width = image.getWidth();
         height = image.getHeight();
 
-        r = new int[height][width];
-        g = new int[height][width];
-        b = new int[height][width];
+        ScratchArena arena = ScratchArena.get();
+        r = arena.getPlane(height, width);
+        g = arena.getPlane(height, width);
+        b = arena.getPlane(height, width);
+        int[] row = arena.getInts(width, false);
 
         for (int i = 0; i < height; i++) {
+            image.getRGB(0, i, width, 1, row, 0, width);
             for (int j = 0; j < width; j++) {
-                r[i][j] = (image.getRGB(j, i) >> 16) & 0xFF;
-                g[i][j] = (image.getRGB(j, i) >> 8) & 0xFF;
-                b[i][j] = (image.getRGB(j, i) >> 0) & 0xFF;
+                r[i][j] = (row[j] >> 16) & 0xFF;
+                g[i][j] = (row[j] >> 8) & 0xFF;
+                b[i][j] = (row[j] >> 0) & 0xFF;
             }
         }
+        arena.release(row);
 
         rgb.add(r);
         rgb.add(g);
@@ -188,17 +230,20 @@ public class ImageUtil {
         width = image.getWidth();
         height = image.getHeight();
 
-        y = new int[height][width];
-        u = new int[height][width];
-        v = new int[height][width];
-        aa = new int[height][width];
+        ScratchArena arena = ScratchArena.get();
+        y = arena.getPlane(height, width);
+        u = arena.getPlane(height, width);
+        v = arena.getPlane(height, width);
+        aa = arena.getPlane(height, width);
+        int[] row = arena.getInts(width, false);
 
         for (int i = 0; i < height; i++) {
+            image.getRGB(0, i, width, 1, row, 0, width);
             for (int j = 0; j < width; j++) {
-                a = (image.getRGB(j, i) >> 24) & 0xFF;
-                r = (image.getRGB(j, i) >> 16) & 0xFF;
-                g = (image.getRGB(j, i) >> 8) & 0xFF;
-                b = (image.getRGB(j, i) >> 0) & 0xFF;
+                a = (row[j] >> 24) & 0xFF;
+                r = (row[j] >> 16) & 0xFF;
+                g = (row[j] >> 8) & 0xFF;
+                b = (row[j] >> 0) & 0xFF;
 
                 // Convert RGB to YUV colorspace
                 y[i][j] = (int) ((0.299 * r) + (0.587 * g) + (0.114 * b));
@@ -212,10 +257,24 @@ public class ImageUtil {
         yuv.add(u);
         yuv.add(v);
         yuv.add(aa);
+        arena.release(row);
 
         return yuv;
     }
 
+    /**
+     * Method to return the color planes created by {@link #getRgbFromImage(BufferedImage)} or
+     * {@link #getYuvFromImage(BufferedImage)} to the scratch arena of the current thread, once they are no longer used
+     *
+     * @param planes List of two-dimensional int's
+     */
+    public static void releasePlanes(List<int[][]> planes) {
+        ScratchArena arena = ScratchArena.get();
+        for (int[][] plane : planes) {
+            arena.release(plane);
+        }
+    }
+
     /**
      * Get image from given RGB data
      *
@@ -316,7 +375,7 @@ public class ImageUtil {
      * @return Limited value
      */
     public static int pixelRange(double p) {
-        return pixelRange(p);
+        return pixelRange((int) p);
     }
 
     /**
@@ -371,98 +430,142 @@ public class ImageUtil {
      * @throws OpenStegoException
      */
     public static ImageHolder getDiffImage(ImageHolder leftImage, ImageHolder rightImage) throws OpenStegoException {
-        int leftW = 0;
-        int leftH = 0;
-        int rightW = 0;
-        int rightH = 0;
-        int min = 0;
-        int max = 0;
-        int diff = 0;
-        BufferedImage diffImage = null;
-
-        leftW = leftImage.getImage().getWidth();
-        leftH = leftImage.getImage().getHeight();
-        rightW = rightImage.getImage().getWidth();
-        rightH = rightImage.getImage().getHeight();
-        if (leftW != rightW || leftH != rightH) {
-            throw new OpenStegoException(null, OpenStego.NAMESPACE, OpenStegoException.IMAGE_FILE_INVALID);
-        }
-        diffImage = new BufferedImage(leftW, leftH, BufferedImage.TYPE_INT_RGB);
-
-        min = Math.abs(leftImage.getImage().getRGB(0, 0) - rightImage.getImage().getRGB(0, 0));
-        max = min;
+        return new ImageHolder(getImageDiff(leftImage, rightImage).getDiffImage(), null);
+    }
 
-        for (int i = 0; i < leftW; i++) {
-            for (int j = 0; j < leftH; j++) {
-                diff = Math.abs(leftImage.getImage().getRGB(i, j) - rightImage.getImage().getRGB(i, j));
-                if (diff < min) {
-                    min = diff;
-                }
-                if (diff > max) {
-                    max = diff;
-                }
-            }
-        }
+    /**
+     * Method to compare two given images. The returned object provides the difference image along with quality
+     * metrics like per-channel histograms, MSE and PSNR
+     *
+     * @param leftImage Left input image
+     * @param rightImage Right input image
+     * @return Image difference data
+     * @throws OpenStegoException
+     */
+    public static ImageDiff getImageDiff(ImageHolder leftImage, ImageHolder rightImage) throws OpenStegoException {
+        BufferedImage left = leftImage.getImage();
+        BufferedImage right = rightImage.getImage();
 
-        for (int i = 0; i < leftW; i++) {
-            for (int j = 0; j < leftH; j++) {
-                diff = Math.abs(leftImage.getImage().getRGB(i, j) - rightImage.getImage().getRGB(i, j));
-                diffImage.setRGB(i, j, pixelRange((double) (diff - min) / (double) (max - min) * Math.pow(2, 32)));
-                // TODO
-            }
+        if (left.getWidth() != right.getWidth() || left.getHeight() != right.getHeight()) {
+            throw new OpenStegoException(null, OpenStego.NAMESPACE, OpenStegoException.IMAGE_FILE_INVALID);
         }
-
-        return new ImageHolder(diffImage, null);
+        return new ImageDiff(left, right);
     }
 
     private static void writeImage(ImageHolder image, String imageType, OutputStream os) throws OpenStegoException {
         if ("jpeg".equals(imageType) || "jpg".equals(imageType)) {
             writeJpegImage(image, os);
+        } else if ("png".equals(imageType)) {
+            writePngImage(image, os);
         } else {
-            try {
-                ImageWriter writer = ImageIO.getImageWritersByFormatName(imageType).next();
-                writer.setOutput(ImageIO.createImageOutputStream(os));
-                writer.write(null, new IIOImage(image.getImage(), null, image.getMetadata()), null);
-            } catch (IOException e) {
-                throw new OpenStegoException(e);
-            }
+            writeImage(image, imageType, os, null);
+        }
+    }
+
+    /**
+     * Method to get the deflate compression level to be used for writing PNG images
+     *
+     * @return Compression level (0-9)
+     * @throws OpenStegoException
+     */
+    public static int getPngCompressionLevel() throws OpenStegoException {
+        Integer level = UserPreferences.getInteger("image.writer.png.compressionLevel");
+        if (level == null) {
+            return PNGEncoder.DEFAULT_COMPRESSION_LEVEL;
         }
+        return CommonUtil.max(0, CommonUtil.min(9, level));
+    }
+
+    private static void writePngImage(ImageHolder image, OutputStream os) throws OpenStegoException {
+        PNGImageWriteParam pngParams = new PNGImageWriteParam(null);
+        pngParams.setCompressionLevel(getPngCompressionLevel());
+
+        writeImage(image, "png", os, pngParams);
     }
 
     private static void writeJpegImage(ImageHolder image, OutputStream os) throws OpenStegoException {
-        try {
-            JPEGImageWriteParam jpegParams = new JPEGImageWriteParam(null);
-            jpegParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-            jpegParams.setOptimizeHuffmanTables(true);
-            Float qual = UserPreferences.getFloat("image.writer.jpeg.quality");
-            if (qual == null) {
-                qual = 0.75f;
-            }
-            jpegParams.setCompressionQuality(qual);
+        JPEGImageWriteParam jpegParams = new JPEGImageWriteParam(null);
+        jpegParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        jpegParams.setOptimizeHuffmanTables(true);
+        Float qual = UserPreferences.getFloat("image.writer.jpeg.quality");
+        if (qual == null) {
+            qual = 0.75f;
+        }
+        jpegParams.setCompressionQuality(qual);
+
+        writeImage(image, "jpg", os, jpegParams);
+    }
+
+    private static void writeImage(ImageHolder image, String imageType, OutputStream os, ImageWriteParam param) throws OpenStegoException {
+        ImageWriter writer = ImageIOPool.acquireWriter(imageType);
+        if (writer == null) {
+            throw new OpenStegoException(null, OpenStego.NAMESPACE, OpenStegoException.IMAGE_TYPE_INVALID, imageType);
+        }
 
-            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
-            writer.setOutput(ImageIO.createImageOutputStream(os));
-            writer.write(null, new IIOImage(image.getImage(), null, image.getMetadata()), jpegParams);
+        try (ImageOutputStream imageOS = ImageIO.createImageOutputStream(os)) {
+            writer.setOutput(imageOS);
+            writer.write(null, new IIOImage(image.getImage(), null, image.getMetadata()), param);
         } catch (IOException e) {
             throw new OpenStegoException(e);
+        } finally {
+            ImageIOPool.releaseWriter(imageType, writer);
         }
     }
 
-    private static ImageHolder readImage(InputStream is) throws OpenStegoException {
-        try {
-            ImageInputStream imageIS = ImageIO.createImageInputStream(is);
-            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageIS);
-            if (!readers.hasNext()) {
-                return null;
+    private static ImageHolder readImage(byte[] imageData) throws OpenStegoException {
+        ImageReader reader = null;
+        String format = ImageIOPool.detectFormat(imageData);
+
+        if (ImageIOPool.FORMAT_PNG.equals(format)) {
+            BufferedImage image = readPngImage(imageData);
+            if (image != null) {
+                return new ImageHolder(image, null);
+            }
+        }
+
+        try (ImageInputStream imageIS = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData))) {
+            if (format != null) {
+                reader = ImageIOPool.acquireReader(format);
+            }
+
+            // Unknown format or no pooled reader available, so search the registry
+            if (reader == null) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(imageIS);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                reader = readers.next();
+                format = reader.getFormatName();
             }
 
-            ImageReader reader = readers.next();
             reader.setInput(imageIS);
             BufferedImage image = reader.read(0);
             IIOMetadata metadata = reader.getImageMetadata(0);
             return new ImageHolder(image, metadata);
         } catch (IOException e) {
             throw new OpenStegoException(e);
+        } finally {
+            if (reader != null) {
+                ImageIOPool.releaseReader(format, reader);
+            }
+        }
+    }
+
+    /**
+     * Read a PNG image using the fast-path decoder. Images with metadata chunks are left to ImageIO, so that their
+     * metadata is kept in the stego image.
+     *
+     * @return Image, or <code>null</code> if the image must be read using ImageIO instead
+     */
+    private static BufferedImage readPngImage(byte[] imageData) {
+        if (PNGDecoder.hasMetadataChunks(imageData)) {
+            return null;
+        }
+        try {
+            return PNGDecoder.decode(imageData);
+        } catch (IOException | RuntimeException e) {
+            // Let ImageIO handle (and report) anything the decoder cannot read
+            return null;
         }
     }
 }
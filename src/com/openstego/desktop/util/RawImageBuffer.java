@@ -0,0 +1,333 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Direct access to the pixels of uncompressed image files, where the samples are stored at fixed offsets: 24 or 32-bit
+ * BMP (BI_RGB), binary PPM (P6) and binary PGM (P5), with 8-bit samples. The pixels are read and written in place in
+ * the given buffer, which can be a heap buffer over the file data or a file mapped into memory, so that no decoding or
+ * re-encoding of the image is needed.
+ * <p>
+ * Pixels are addressed by their index in row-major order (top row first), and exchanged in packed RGB format. As PGM
+ * images have only one sample per pixel, every three consecutive samples are grouped and exposed as the R, G and B
+ * values of one pixel; any samples left over at the end are not accessible.
+ */
+public class RawImageBuffer {
+    /**
+     * Format name for BMP images
+     */
+    public static final String FORMAT_BMP = "bmp";
+
+    /**
+     * Format name for PPM images
+     */
+    public static final String FORMAT_PPM = "ppm";
+
+    /**
+     * Format name for PGM images
+     */
+    public static final String FORMAT_PGM = "pgm";
+
+    /**
+     * Size of the BMP file header
+     */
+    private static final int BMP_FILE_HEADER_SIZE = 14;
+
+    /**
+     * Size of the smallest supported BMP info header (BITMAPINFOHEADER)
+     */
+    private static final int BMP_INFO_HEADER_SIZE = 40;
+
+    /**
+     * Underlying buffer
+     */
+    private ByteBuffer buffer = null;
+
+    /**
+     * Image format
+     */
+    private String format = null;
+
+    /**
+     * Image width
+     */
+    private int width = 0;
+
+    /**
+     * Image height
+     */
+    private int height = 0;
+
+    /**
+     * Offset of the pixel data in the buffer
+     */
+    private int dataOffset = 0;
+
+    /**
+     * Number of bytes between the starts of two rows
+     */
+    private int rowStride = 0;
+
+    /**
+     * Number of bytes per pixel
+     */
+    private int bytesPerPixel = 0;
+
+    /**
+     * Flag to indicate whether the rows are stored bottom-up (BMP)
+     */
+    private boolean bottomUp = false;
+
+    /**
+     * Private constructor. Use {@link #wrap(ByteBuffer)} to get an instance.
+     */
+    private RawImageBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Method to get access to the pixels of the image in the given buffer
+     *
+     * @param buffer Buffer holding the complete image file
+     * @return Raw image, or <code>null</code> if the image is not in one of the supported uncompressed formats
+     */
+    public static RawImageBuffer wrap(ByteBuffer buffer) {
+        RawImageBuffer image = new RawImageBuffer(buffer);
+        if (image.parseBmpHeader() || image.parsePnmHeader()) {
+            if (image.dataOffset + (long) image.rowStride * image.height <= buffer.limit()) {
+                return image;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to map the given image file into memory and get access to its pixels
+     *
+     * @param file Image file
+     * @param mode Mapping mode. With {@link MapMode#READ_WRITE} the changes are written to the file, with
+     *        {@link MapMode#PRIVATE} they are kept in a private copy-on-write mapping
+     * @return Raw image, or <code>null</code> if the image is not in one of the supported uncompressed formats
+     * @throws IOException
+     */
+    public static RawImageBuffer map(Path file, MapMode mode) throws IOException {
+        StandardOpenOption[] options = (mode == MapMode.READ_ONLY) ? new StandardOpenOption[] { StandardOpenOption.READ }
+                : new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE };
+        try (FileChannel channel = FileChannel.open(file, options)) {
+            MappedByteBuffer buffer = channel.map(mode, 0, channel.size());
+            return wrap(buffer);
+        }
+    }
+
+    /**
+     * Get the number of addressable pixels
+     *
+     * @return Number of pixels (for PGM images, number of complete groups of three samples)
+     */
+    public long getPixelCount() {
+        if (FORMAT_PGM.equals(this.format)) {
+            return (long) this.width * this.height / 3;
+        }
+        return (long) this.width * this.height;
+    }
+
+    /**
+     * Method to read consecutive pixels
+     *
+     * @param firstPixel Index of the first pixel
+     * @param rgb Array to receive the pixels in packed RGB format
+     * @param offset Offset in the array
+     * @param count Number of pixels to read
+     */
+    public void getRGB(long firstPixel, int[] rgb, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            int pos = getByteOffset(firstPixel + i);
+            int b0 = this.buffer.get(pos) & 0xFF;
+            int b1 = this.buffer.get(pos + 1) & 0xFF;
+            int b2 = this.buffer.get(pos + 2) & 0xFF;
+            // BMP stores the samples as B, G, R
+            rgb[offset + i] = FORMAT_BMP.equals(this.format) ? (b2 << 16) | (b1 << 8) | b0 : (b0 << 16) | (b1 << 8) | b2;
+        }
+    }
+
+    /**
+     * Method to write consecutive pixels. Only the three color samples of each pixel are written.
+     *
+     * @param firstPixel Index of the first pixel
+     * @param rgb Pixels in packed RGB format
+     * @param offset Offset in the array
+     * @param count Number of pixels to write
+     */
+    public void setRGB(long firstPixel, int[] rgb, int offset, int count) {
+        boolean bgr = FORMAT_BMP.equals(this.format);
+        for (int i = 0; i < count; i++) {
+            int pos = getByteOffset(firstPixel + i);
+            int p = rgb[offset + i];
+            this.buffer.put(pos, (byte) (bgr ? p : p >> 16));
+            this.buffer.put(pos + 1, (byte) (p >> 8));
+            this.buffer.put(pos + 2, (byte) (bgr ? p >> 16 : p));
+        }
+    }
+
+    /**
+     * Get method for format
+     *
+     * @return format
+     */
+    public String getFormat() {
+        return this.format;
+    }
+
+    /**
+     * Get method for width
+     *
+     * @return width
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Get method for height
+     *
+     * @return height
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Get method for buffer
+     *
+     * @return buffer
+     */
+    public ByteBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    /**
+     * Get the offset of the first sample of the given pixel in the buffer
+     */
+    private int getByteOffset(long pixel) {
+        if (FORMAT_BMP.equals(this.format)) {
+            int y = (int) (pixel / this.width);
+            int x = (int) (pixel % this.width);
+            int row = this.bottomUp ? this.height - 1 - y : y;
+            return this.dataOffset + row * this.rowStride + x * this.bytesPerPixel;
+        }
+        // PNM rows are not padded (PGM groups of samples are stored consecutively too)
+        return (int) (this.dataOffset + pixel * 3);
+    }
+
+    /**
+     * Parse the header of an uncompressed 24 or 32-bit BMP image
+     */
+    private boolean parseBmpHeader() {
+        if (this.buffer.limit() < BMP_FILE_HEADER_SIZE + BMP_INFO_HEADER_SIZE || this.buffer.get(0) != 'B' || this.buffer.get(1) != 'M') {
+            return false;
+        }
+
+        int offset = readIntLE(10);
+        int infoSize = readIntLE(14);
+        int w = readIntLE(18);
+        int h = readIntLE(22);
+        int bitCount = readShortLE(28);
+        int compression = readIntLE(30);
+        if (infoSize < BMP_INFO_HEADER_SIZE || w <= 0 || h == 0 || h == Integer.MIN_VALUE || compression != 0 || (bitCount != 24 && bitCount != 32)
+                || offset < BMP_FILE_HEADER_SIZE + infoSize) {
+            return false;
+        }
+
+        long stride = ((long) w * bitCount + 31) / 32 * 4;
+        if (stride > Integer.MAX_VALUE) {
+            return false;
+        }
+
+        this.format = FORMAT_BMP;
+        this.width = w;
+        this.height = Math.abs(h);
+        this.bottomUp = (h > 0);
+        this.bytesPerPixel = bitCount / 8;
+        this.rowStride = (int) stride;
+        this.dataOffset = offset;
+        return true;
+    }
+
+    /**
+     * Parse the header of a binary PPM (P6) or PGM (P5) image with 8-bit samples
+     */
+    private boolean parsePnmHeader() {
+        if (this.buffer.limit() < 3 || this.buffer.get(0) != 'P' || (this.buffer.get(1) != '6' && this.buffer.get(1) != '5')) {
+            return false;
+        }
+
+        int[] values = new int[3];
+        int pos = 2;
+        for (int i = 0; i < values.length; i++) {
+            // Skip whitespace and comments
+            while (true) {
+                if (pos >= this.buffer.limit()) {
+                    return false;
+                }
+                int c = this.buffer.get(pos);
+                if (c == '#') {
+                    while (pos < this.buffer.limit() && this.buffer.get(pos) != '\n' && this.buffer.get(pos) != '\r') {
+                        pos++;
+                    }
+                } else if (Character.isWhitespace(c)) {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+
+            long value = 0;
+            int start = pos;
+            while (pos < this.buffer.limit() && Character.isDigit(this.buffer.get(pos)) && value <= Integer.MAX_VALUE) {
+                value = value * 10 + (this.buffer.get(pos++) - '0');
+            }
+            if (pos == start || value > Integer.MAX_VALUE) {
+                return false;
+            }
+            values[i] = (int) value;
+        }
+
+        // A single whitespace character separates the header from the samples. Only full 8-bit samples are supported,
+        // as changing the low bits of samples with a smaller maximum could produce out-of-range values
+        if (pos >= this.buffer.limit() || !Character.isWhitespace(this.buffer.get(pos)) || values[0] <= 0 || values[1] <= 0 || values[2] != 255) {
+            return false;
+        }
+
+        this.format = (this.buffer.get(1) == '6') ? FORMAT_PPM : FORMAT_PGM;
+        this.width = values[0];
+        this.height = values[1];
+        this.bytesPerPixel = FORMAT_PPM.equals(this.format) ? 3 : 1;
+        if ((long) this.width * this.bytesPerPixel > Integer.MAX_VALUE) {
+            return false;
+        }
+        this.rowStride = this.width * this.bytesPerPixel;
+        this.dataOffset = pos + 1;
+        return true;
+    }
+
+    private int readIntLE(int pos) {
+        return (this.buffer.get(pos) & 0xFF) | ((this.buffer.get(pos + 1) & 0xFF) << 8) | ((this.buffer.get(pos + 2) & 0xFF) << 16)
+                | ((this.buffer.get(pos + 3) & 0xFF) << 24);
+    }
+
+    private int readShortLE(int pos) {
+        return (this.buffer.get(pos) & 0xFF) | ((this.buffer.get(pos + 1) & 0xFF) << 8);
+    }
+}
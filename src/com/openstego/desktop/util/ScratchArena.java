@@ -0,0 +1,337 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread pool of scratch arrays, used by the image processing code for its temporary buffers, so that processing
+ * a batch of images of similar sizes does not allocate new buffers for every image.
+ * <p>
+ * One-dimensional arrays are grouped in size classes, with four classes per power of two; the arrays handed out can
+ * therefore be up to 25% longer than requested, and only the requested part is cleared. Two-dimensional planes (as
+ * used for the color channels of an image) are pooled by their exact dimensions. Arrays can be released from any
+ * thread; they are then kept by the arena of that thread. The number of arrays per class and the total size kept by
+ * an arena are limited, and arrays beyond these limits are left to the garbage collector.
+ * <p>
+ * As the parallel code runs on the threads of the common fork-join pool, which live as long as the JVM, the arrays kept
+ * by the arenas are never freed. The total size kept by all the arenas together is therefore limited too, to 128 MB by
+ * default, which is the worst-case retention whatever the number of threads. The limit can be changed using the
+ * system property <code>openstego.scratchArena.maxBytes</code> (0 disables the pooling).
+ * <p>
+ * An array must not be used after it has been released.
+ */
+public class ScratchArena {
+    /**
+     * Size of the smallest size class
+     */
+    private static final int MIN_SIZE = 64;
+
+    /**
+     * Number of size classes for each power of two
+     */
+    private static final int CLASSES_PER_OCTAVE = 4;
+
+    /**
+     * Number of size classes (from 64 to 2^30)
+     */
+    private static final int CLASS_COUNT = 1 + (30 - 6) * CLASSES_PER_OCTAVE;
+
+    /**
+     * Maximum number of arrays kept per size class
+     */
+    private static final int MAX_ARRAYS_PER_CLASS = 8;
+
+    /**
+     * Maximum number of bytes kept by one arena
+     */
+    private static final long MAX_RETAINED_BYTES = 64L << 20;
+
+    /**
+     * Maximum number of bytes kept by all the arenas together
+     */
+    private static final long MAX_TOTAL_RETAINED_BYTES = Long.getLong("openstego.scratchArena.maxBytes", 128L << 20);
+
+    /**
+     * Number of bytes currently kept by all the arenas together
+     */
+    private static final AtomicLong totalRetainedBytes = new AtomicLong();
+
+    /**
+     * Arena of every thread
+     */
+    private static final ThreadLocal<ScratchArena> arenas = ThreadLocal.withInitial(ScratchArena::new);
+
+    /**
+     * Pooled double arrays per size class
+     */
+    private Map<Integer, ArrayDeque<double[]>> doubles = new HashMap<>();
+
+    /**
+     * Pooled float arrays per size class
+     */
+    private Map<Integer, ArrayDeque<float[]>> floats = new HashMap<>();
+
+    /**
+     * Pooled int arrays per size class
+     */
+    private Map<Integer, ArrayDeque<int[]>> ints = new HashMap<>();
+
+    /**
+     * Pooled int planes per dimensions
+     */
+    private Map<Long, ArrayDeque<int[][]>> planes = new HashMap<>();
+
+    /**
+     * Number of bytes currently kept by this arena
+     */
+    private long retainedBytes = 0;
+
+    /**
+     * Private constructor. Use {@link #get()} to get the arena of the current thread.
+     */
+    private ScratchArena() {
+    }
+
+    /**
+     * Method to get the arena of the current thread
+     *
+     * @return Arena
+     */
+    public static ScratchArena get() {
+        return arenas.get();
+    }
+
+    /**
+     * Method to get a double array
+     *
+     * @param length Minimum length of the array
+     * @param clear Whether the first <code>length</code> elements are to be set to zero
+     * @return Array
+     */
+    public double[] getDoubles(int length, boolean clear) {
+        int sizeClass = getSizeClass(length);
+        if (sizeClass < 0) {
+            return new double[length];
+        }
+
+        double[] array = take(this.doubles, sizeClass, 8L * getClassSize(sizeClass));
+        if (array == null) {
+            return new double[getClassSize(sizeClass)];
+        }
+        if (clear) {
+            Arrays.fill(array, 0, length, 0.0);
+        }
+        return array;
+    }
+
+    /**
+     * Method to return a double array to the arena
+     *
+     * @param array Array (ignored if <code>null</code> or not of a class size)
+     */
+    public void release(double[] array) {
+        if (array != null) {
+            put(this.doubles, array, array.length, 8L * array.length);
+        }
+    }
+
+    /**
+     * Method to get a float array
+     *
+     * @param length Minimum length of the array
+     * @param clear Whether the first <code>length</code> elements are to be set to zero
+     * @return Array
+     */
+    public float[] getFloats(int length, boolean clear) {
+        int sizeClass = getSizeClass(length);
+        if (sizeClass < 0) {
+            return new float[length];
+        }
+
+        float[] array = take(this.floats, sizeClass, 4L * getClassSize(sizeClass));
+        if (array == null) {
+            return new float[getClassSize(sizeClass)];
+        }
+        if (clear) {
+            Arrays.fill(array, 0, length, 0.0f);
+        }
+        return array;
+    }
+
+    /**
+     * Method to return a float array to the arena
+     *
+     * @param array Array (ignored if <code>null</code> or not of a class size)
+     */
+    public void release(float[] array) {
+        if (array != null) {
+            put(this.floats, array, array.length, 4L * array.length);
+        }
+    }
+
+    /**
+     * Method to get an int array
+     *
+     * @param length Minimum length of the array
+     * @param clear Whether the first <code>length</code> elements are to be set to zero
+     * @return Array
+     */
+    public int[] getInts(int length, boolean clear) {
+        int sizeClass = getSizeClass(length);
+        if (sizeClass < 0) {
+            return new int[length];
+        }
+
+        int[] array = take(this.ints, sizeClass, 4L * getClassSize(sizeClass));
+        if (array == null) {
+            return new int[getClassSize(sizeClass)];
+        }
+        if (clear) {
+            Arrays.fill(array, 0, length, 0);
+        }
+        return array;
+    }
+
+    /**
+     * Method to return an int array to the arena
+     *
+     * @param array Array (ignored if <code>null</code> or not of a class size)
+     */
+    public void release(int[] array) {
+        if (array != null) {
+            put(this.ints, array, array.length, 4L * array.length);
+        }
+    }
+
+    /**
+     * Method to get a two-dimensional int plane. The contents are not cleared.
+     *
+     * @param height Number of rows
+     * @param width Number of columns
+     * @return Plane of exactly the given dimensions
+     */
+    public int[][] getPlane(int height, int width) {
+        ArrayDeque<int[][]> pool = this.planes.get(getPlaneKey(height, width));
+        if (pool == null || pool.isEmpty()) {
+            return new int[height][width];
+        }
+        unretain(4L * height * width);
+        return pool.pop();
+    }
+
+    /**
+     * Method to return a two-dimensional int plane to the arena
+     *
+     * @param plane Plane (ignored if <code>null</code> or not rectangular)
+     */
+    public void release(int[][] plane) {
+        if (plane == null || plane.length == 0) {
+            return;
+        }
+        int width = plane[0].length;
+        for (int[] row : plane) {
+            if (row == null || row.length != width) {
+                return;
+            }
+        }
+
+        long bytes = 4L * plane.length * width;
+        ArrayDeque<int[][]> pool = this.planes.computeIfAbsent(getPlaneKey(plane.length, width), k -> new ArrayDeque<>());
+        if (pool.size() < MAX_ARRAYS_PER_CLASS && retain(bytes)) {
+            pool.push(plane);
+        }
+    }
+
+    /**
+     * Get the size class for the given length, or -1 if the length is too large to be pooled
+     */
+    private static int getSizeClass(int length) {
+        if (length <= MIN_SIZE) {
+            return 0;
+        }
+        if (length > (1 << 30)) {
+            return -1;
+        }
+        // 2^k < length <= 2^(k+1), split into steps of 2^(k-2)
+        int k = 31 - Integer.numberOfLeadingZeros(length - 1);
+        int step = 1 << (k - 2);
+        int sub = (length - (1 << k) + step - 1) / step;
+        return 1 + (k - 6) * CLASSES_PER_OCTAVE + (sub - 1);
+    }
+
+    /**
+     * Get the array length of the given size class
+     */
+    private static int getClassSize(int sizeClass) {
+        if (sizeClass == 0) {
+            return MIN_SIZE;
+        }
+        int k = 6 + (sizeClass - 1) / CLASSES_PER_OCTAVE;
+        int sub = 1 + (sizeClass - 1) % CLASSES_PER_OCTAVE;
+        return (1 << k) + sub * (1 << (k - 2));
+    }
+
+    private <T> T take(Map<Integer, ArrayDeque<T>> pools, int sizeClass, long bytes) {
+        ArrayDeque<T> pool = pools.get(sizeClass);
+        if (pool == null || pool.isEmpty()) {
+            return null;
+        }
+        unretain(bytes);
+        return pool.pop();
+    }
+
+    private <T> void put(Map<Integer, ArrayDeque<T>> pools, T array, int length, long bytes) {
+        int sizeClass = getSizeClass(length);
+        if (sizeClass < 0 || sizeClass >= CLASS_COUNT || getClassSize(sizeClass) != length) {
+            return;
+        }
+
+        ArrayDeque<T> pool = pools.computeIfAbsent(sizeClass, k -> new ArrayDeque<>());
+        if (pool.size() < MAX_ARRAYS_PER_CLASS && retain(bytes)) {
+            pool.push(array);
+        }
+    }
+
+    /**
+     * Account for an array to be kept by this arena, if both this arena and all the arenas together stay within their
+     * limits
+     *
+     * @return Whether the array can be kept
+     */
+    private boolean retain(long bytes) {
+        if (this.retainedBytes + bytes > MAX_RETAINED_BYTES) {
+            return false;
+        }
+        while (true) {
+            long total = totalRetainedBytes.get();
+            if (total + bytes > MAX_TOTAL_RETAINED_BYTES) {
+                return false;
+            }
+            if (totalRetainedBytes.compareAndSet(total, total + bytes)) {
+                this.retainedBytes += bytes;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Account for an array handed out by this arena
+     */
+    private void unretain(long bytes) {
+        this.retainedBytes -= bytes;
+        totalRetainedBytes.addAndGet(-bytes);
+    }
+
+    private static long getPlaneKey(int height, int width) {
+        return ((long) height << 32) | (width & 0xFFFFFFFFL);
+    }
+}
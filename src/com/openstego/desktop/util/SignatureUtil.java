@@ -0,0 +1,218 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.openstego.desktop.OpenStegoException;
+
+/**
+ * Utility class for the binary format of the signatures of the watermarking plugins.
+ * <p>
+ * A signature starts with an 8-byte header: the 4-character stamp of the plugin, the format version (one byte) and
+ * three reserved zero bytes. It is followed by the fields of the plugin, in little-endian byte order, ending with the
+ * watermark as a flat array of primitive values. As there are no variable-length fields before the watermark, a
+ * signature can be read in place from any {@link ByteBuffer}, including a memory-mapped file.
+ * <p>
+ * Signatures written by older versions were Java object streams; these start with the stream magic number
+ * (<code>0xACED</code>), which no stamp can start with, so both formats can be told apart from the first bytes.
+ * <p>
+ * Parsed signatures can be kept in a small cache keyed by the signature content, so that checking many images against
+ * the same signature parses it only once.
+ */
+public class SignatureUtil {
+    /**
+     * Current version of the binary signature format
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * Size of the header of the binary signature format (in bytes)
+     */
+    public static final int HEADER_SIZE = 8;
+
+    /**
+     * Length of the stamp of a plugin (in bytes)
+     */
+    private static final int STAMP_LENGTH = 4;
+
+    /**
+     * Maximum number of parsed signatures kept in the cache
+     */
+    private static final int CACHE_SIZE = 16;
+
+    /**
+     * Cache of parsed signatures, the least recently used ones being evicted first
+     */
+    private static final Map<CacheKey, Object> cache = new LinkedHashMap<CacheKey, Object>(CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, Object> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Constructor is private so that this class is not instantiated
+     */
+    private SignatureUtil() {
+    }
+
+    /**
+     * Method to check whether the signature data is in the old (Java object stream) format
+     *
+     * @param sigData Signature data
+     * @return Flag
+     */
+    public static boolean isLegacyFormat(byte[] sigData) {
+        return sigData != null && sigData.length >= 2 && (sigData[0] & 0xFF) == 0xAC && (sigData[1] & 0xFF) == 0xED;
+    }
+
+    /**
+     * Method to create the buffer for a signature in the binary format. The header is already written, and the buffer
+     * is positioned at the start of the fields of the plugin.
+     *
+     * @param stamp Stamp of the plugin (4 ASCII characters)
+     * @param bodySize Size of the fields of the plugin (in bytes)
+     * @return Little-endian buffer backed by an array of exactly the size of the signature
+     */
+    public static ByteBuffer createBuffer(String stamp, int bodySize) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodySize).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.put(getStampBytes(stamp));
+        buffer.put((byte) FORMAT_VERSION);
+        buffer.put(new byte[HEADER_SIZE - STAMP_LENGTH - 1]);
+        return buffer;
+    }
+
+    /**
+     * Method to open a signature in the binary format. The stamp and the version in the header are checked.
+     *
+     * @param data Signature data (from its current position)
+     * @param stamp Expected stamp of the plugin
+     * @param namespace Namespace of the error to throw if the data is not a valid signature
+     * @param errorCode Error code to throw if the data is not a valid signature
+     * @return Little-endian buffer over the data, positioned at the start of the fields of the plugin
+     * @throws OpenStegoException
+     */
+    public static ByteBuffer openBuffer(ByteBuffer data, String stamp, String namespace, int errorCode) throws OpenStegoException {
+        ByteBuffer buffer = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        byte[] header = new byte[STAMP_LENGTH];
+
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new OpenStegoException(null, namespace, errorCode);
+        }
+        buffer.get(header);
+        if (!Arrays.equals(header, getStampBytes(stamp)) || buffer.get() != FORMAT_VERSION) {
+            throw new OpenStegoException(null, namespace, errorCode);
+        }
+        buffer.position(HEADER_SIZE);
+        return buffer;
+    }
+
+    /**
+     * Method to check that the buffer holds at least the given number of bytes, as expected from the fields read so
+     * far (typically the watermark length)
+     *
+     * @param buffer Signature buffer
+     * @param size Number of bytes needed (negative values are invalid)
+     * @param namespace Namespace of the error to throw if the data is too short
+     * @param errorCode Error code to throw if the data is too short
+     * @throws OpenStegoException
+     */
+    public static void checkRemaining(ByteBuffer buffer, long size, String namespace, int errorCode) throws OpenStegoException {
+        if (size < 0 || buffer.remaining() < size) {
+            throw new OpenStegoException(null, namespace, errorCode);
+        }
+    }
+
+    /**
+     * Method to get a parsed signature from the cache, parsing (and caching) it if needed. Parsed signatures are
+     * shared, so they must not be modified by the caller.
+     *
+     * @param namespace Namespace of the plugin (signatures of different plugins are cached separately)
+     * @param sigData Signature data
+     * @param parser Parser to use if the signature is not in the cache
+     * @return Parsed signature
+     * @throws OpenStegoException
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T getCachedSignature(String namespace, byte[] sigData, Parser<T> parser) throws OpenStegoException {
+        CacheKey key = new CacheKey(namespace, sigData);
+        Object sig = null;
+
+        synchronized (cache) {
+            sig = cache.get(key);
+        }
+        if (sig == null) {
+            // Parsed outside of the lock; concurrent parses of the same data give equivalent results
+            sig = parser.parse(sigData);
+            synchronized (cache) {
+                cache.put(new CacheKey(namespace, sigData.clone()), sig);
+            }
+        }
+        return (T) sig;
+    }
+
+    private static byte[] getStampBytes(String stamp) {
+        return Arrays.copyOf(stamp.getBytes(StandardCharsets.US_ASCII), STAMP_LENGTH);
+    }
+
+    /**
+     * Parser of signature data
+     *
+     * @param <T> Type of the parsed signature
+     */
+    public interface Parser<T> {
+        /**
+         * Parse the signature data
+         *
+         * @param sigData Signature data
+         * @return Parsed signature
+         * @throws OpenStegoException
+         */
+        T parse(byte[] sigData) throws OpenStegoException;
+    }
+
+    /**
+     * Key of the signature cache: namespace and complete signature content (the hash of the content only selects the
+     * bucket, so that different signatures never share an entry)
+     */
+    private static class CacheKey {
+        private String namespace;
+
+        private byte[] content;
+
+        private int hash;
+
+        CacheKey(String namespace, byte[] content) {
+            this.namespace = namespace;
+            this.content = content;
+            this.hash = 31 * namespace.hashCode() + Arrays.hashCode(content);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return this.hash == other.hash && this.namespace.equals(other.namespace) && Arrays.equals(this.content, other.content);
+        }
+    }
+}
@@ -82,6 +82,9 @@ public class UserPreferences {
      * @return value
      */
     public static String getString(String key) {
+        if (prefs == null) {
+            return null;
+        }
         String val = prefs.getProperty(key);
         if (val == null) {
             return null;
@@ -0,0 +1,495 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util.dwt;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.openstego.desktop.util.CommonUtil;
+
+/**
+ * Precomputed convolution kernel for one filter and one wavelet filtering method.
+ * <p>
+ * Instead of resolving the boundary handling of the method for every tap (as done by the <code>filterXXX()</code>
+ * methods of {@link DWTUtil}), each input line is first copied into a padded line buffer, where the samples beyond the
+ * ends of the line are already extended as required by the method (periodical wrap, mirroring or zeros for cut-off).
+ * The inner loops then run over the padded buffer without any boundary checks.
+ * <p>
+ * The taps are prepared once per filter: reversed for the forward transform, and split into the two polyphase
+ * components for the inverse transform, so that every output sample uses a fixed set of taps. Taps which are
+ * symmetric or anti-symmetric (detected from the values, not from the declared filter type) are applied to the sum or
+ * difference of the paired samples, which halves the number of multiplications. The results are the same as the ones
+ * of the <code>filterXXX()</code> methods, except for rounding in the last bits when the taps are paired.
+ */
+public class ConvolutionKernel {
+    /**
+     * Taps of a kernel are not symmetric
+     */
+    private static final int SYMM_NONE = 0;
+
+    /**
+     * Taps of a kernel are symmetric
+     */
+    private static final int SYMM_EVEN = 1;
+
+    /**
+     * Taps of a kernel are anti-symmetric
+     */
+    private static final int SYMM_ODD = 2;
+
+    /**
+     * Number of wavelet filtering methods
+     */
+    private static final int METHOD_COUNT = 6;
+
+    /**
+     * Cache of kernels per filter (indexed by method)
+     */
+    private static final Map<Filter, ConvolutionKernel[]> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Wavelet filtering method
+     */
+    private int method = 0;
+
+    /**
+     * Flag to indicate whether the method is an inverse one
+     */
+    private boolean inverse = false;
+
+    /**
+     * Flag to indicate whether the filter is a high pass filter (used for inverse mirroring)
+     */
+    private boolean hiPass = false;
+
+    /**
+     * Taps of the kernels: one kernel for the forward transform, two (for even and odd outputs) for the inverse
+     */
+    private double[][] taps = null;
+
+    /**
+     * Symmetry of the kernels
+     */
+    private int[] symmetry = null;
+
+    /**
+     * Offsets of the kernels, relative to the input position of the output sample
+     */
+    private int[] offsets = null;
+
+    /**
+     * Private constructor. Use {@link #getInstance(Filter, int)} to get an instance.
+     */
+    private ConvolutionKernel(Filter filter, int method) {
+        double[] data = filter.getData();
+        int start = filter.getStart();
+        int end = filter.getEnd();
+
+        this.method = method;
+        this.inverse = (method == Filter.METHOD_INVCUTOFF || method == Filter.METHOD_INVPERIODICAL || method == Filter.METHOD_INVMIRROR);
+        this.hiPass = filter.isHiPass();
+
+        if (this.inverse) {
+            // Output i uses the inputs j = ceil((start + i) / 2) .. floor((end + i) / 2) with the taps 2j - i - start,
+            // which depend only on the parity of i
+            this.taps = new double[2][];
+            this.offsets = new int[2];
+            for (int p = 0; p < 2; p++) {
+                int first = CommonUtil.ceilingHalf(start + p);
+                int last = CommonUtil.floorHalf(end + p);
+                this.taps[p] = new double[Math.max(last - first + 1, 0)];
+                for (int u = 0; u < this.taps[p].length; u++) {
+                    this.taps[p][u] = data[2 * (first + u) - p - start];
+                }
+                this.offsets[p] = first;
+            }
+        } else {
+            // Output i uses the inputs 2i - j for j = start .. end, i.e. the inputs 2i - end .. 2i - start with the
+            // taps in reverse order
+            int len = end - start + 1;
+            this.taps = new double[1][len];
+            for (int t = 0; t < len; t++) {
+                this.taps[0][t] = data[len - 1 - t];
+            }
+            this.offsets = new int[] { -end };
+        }
+
+        this.symmetry = new int[this.taps.length];
+        for (int k = 0; k < this.taps.length; k++) {
+            this.symmetry[k] = findSymmetry(this.taps[k]);
+        }
+    }
+
+    /**
+     * Method to get the kernel for the given filter and method
+     *
+     * @param filter Filter
+     * @param method Wavelet filtering method
+     * @return Kernel
+     */
+    public static ConvolutionKernel getInstance(Filter filter, int method) {
+        ConvolutionKernel[] kernels = cache.computeIfAbsent(filter, f -> new ConvolutionKernel[METHOD_COUNT]);
+        synchronized (kernels) {
+            if (kernels[method] == null) {
+                kernels[method] = new ConvolutionKernel(filter, method);
+            }
+            return kernels[method];
+        }
+    }
+
+    /**
+     * Method to get the size of the line buffer needed for one line by {@link #convolute(double[], int, int, int,
+     * double[], int, int, int, int, double[])}
+     *
+     * @param outLen Length of the output line
+     * @return Size of the line buffer
+     */
+    public int getLineSize(int outLen) {
+        if (outLen <= 0) {
+            return 0;
+        }
+        // Padded input samples, followed by the accumulated output samples
+        return getPaddedHigh(outLen) - getPaddedLow() + 1 + outLen;
+    }
+
+    /**
+     * Method to convolute a block of adjacent lines (usually columns of the image, with the samples of each line at a
+     * step of the image width, and the lines next to each other in memory). In the line buffer, the samples of the
+     * lines are interleaved, so that the image is read and written sequentially even for columns, and the taps are
+     * applied to all the lines of the block at once. The results are added to the output samples.
+     *
+     * @param in Input data
+     * @param inStart Start point of the first line in the input data
+     * @param inLen Length of input lines
+     * @param inStep Step between input samples of a line
+     * @param out Output data
+     * @param outStart Start point of the first line in the output data
+     * @param outLen Length of output lines
+     * @param outStep Step between output samples of a line
+     * @param lines Number of lines (the lines are at a step of one in the input and output data)
+     * @param line Line buffer, of at least <code>lines</code> times {@link #getLineSize(int)} samples
+     */
+    public void convolute(double[] in, int inStart, int inLen, int inStep, double[] out, int outStart, int outLen, int outStep, int lines,
+            double[] line) {
+        convoluteBuffers(in, inStart, inLen, inStep, out, outStart, outLen, outStep, lines, line);
+    }
+
+    /**
+     * Method to convolute a block of adjacent lines of images of any precision, as done by
+     * {@link #convolute(double[], int, int, int, double[], int, int, int, int, double[])}. The computations are done
+     * in double precision in the line buffer; the samples are only rounded when stored into a single precision output.
+     *
+     * @param in Input image
+     * @param inStart Start point of the first line in the input data
+     * @param inLen Length of input lines
+     * @param inStep Step between input samples of a line
+     * @param out Output image
+     * @param outStart Start point of the first line in the output data
+     * @param outLen Length of output lines
+     * @param outStep Step between output samples of a line
+     * @param lines Number of lines (the lines are at a step of one in the input and output data)
+     * @param line Line buffer, of at least <code>lines</code> times {@link #getLineSize(int)} samples
+     */
+    public void convolute(Image in, int inStart, int inLen, int inStep, Image out, int outStart, int outLen, int outStep, int lines,
+            double[] line) {
+        convoluteBuffers(in.getBuffer(), inStart, inLen, inStep, out.getBuffer(), outStart, outLen, outStep, lines, line);
+    }
+
+    /**
+     * Convolute a block of lines, with the input and output data given as double[] or float[]
+     */
+    private void convoluteBuffers(Object in, int inStart, int inLen, int inStep, Object out, int outStart, int outLen, int outStep, int lines,
+            double[] line) {
+        if (outLen <= 0 || inLen <= 0 || lines <= 0) {
+            return;
+        }
+
+        int low = getPaddedLow();
+        int high = getPaddedHigh(outLen);
+        int acc = high - low + 1;
+        int evenCount = this.inverse ? (outLen + 1) / 2 : outLen;
+
+        // Padded input: the samples within the line are copied directly, only the ones beyond its ends are extended
+        int first = Math.min(Math.max(low, 0), high + 1);
+        int last = Math.min(high, inLen - 1);
+        for (int k = low; k < first; k++) {
+            extendLines(in, inStart, inLen, inStep, k, line, (k - low) * lines, lines);
+        }
+        loadLines(in, inStart + first * inStep, inStep, line, (first - low) * lines, lines, last - first + 1, lines);
+        for (int k = Math.max(last + 1, low); k <= high; k++) {
+            extendLines(in, inStart, inLen, inStep, k, line, (k - low) * lines, lines);
+        }
+
+        // Current outputs (for the inverse, the even outputs first, then the odd ones)
+        if (this.inverse) {
+            loadLines(out, outStart, 2 * outStep, line, acc * lines, lines, evenCount, lines);
+            loadLines(out, outStart + outStep, 2 * outStep, line, (acc + evenCount) * lines, lines, outLen / 2, lines);
+
+            // The input position advances by one for every pair of outputs
+            apply(this.taps[0], this.symmetry[0], false, line, this.offsets[0] - low, 1, acc, evenCount, lines);
+            apply(this.taps[1], this.symmetry[1], false, line, this.offsets[1] - low, 1, acc + evenCount, outLen / 2, lines);
+
+            storeLines(line, acc * lines, lines, out, outStart, 2 * outStep, evenCount, lines);
+            storeLines(line, (acc + evenCount) * lines, lines, out, outStart + outStep, 2 * outStep, outLen / 2, lines);
+        } else {
+            loadLines(out, outStart, outStep, line, acc * lines, lines, outLen, lines);
+            apply(this.taps[0], this.symmetry[0], true, line, this.offsets[0] - low, 2, acc, outLen, lines);
+            storeLines(line, acc * lines, lines, out, outStart, outStep, outLen, lines);
+        }
+    }
+
+    /**
+     * Copy <code>count</code> samples of each of a block of lines. The samples of the lines are next to each other
+     * both in the source and in the destination.
+     */
+    private static void copyLines(double[] src, int srcPos, int srcStep, double[] dst, int dstPos, int dstStep, int count, int lines) {
+        if (lines == 1) {
+            for (int i = 0; i < count; i++, srcPos += srcStep, dstPos += dstStep) {
+                dst[dstPos] = src[srcPos];
+            }
+        } else {
+            for (int i = 0; i < count; i++, srcPos += srcStep, dstPos += dstStep) {
+                System.arraycopy(src, srcPos, dst, dstPos, lines);
+            }
+        }
+    }
+
+    /**
+     * Copy <code>count</code> samples of each of a block of lines from image data (double[] or float[]) into the line
+     * buffer
+     */
+    private static void loadLines(Object src, int srcPos, int srcStep, double[] dst, int dstPos, int dstStep, int count, int lines) {
+        if (src instanceof double[]) {
+            copyLines((double[]) src, srcPos, srcStep, dst, dstPos, dstStep, count, lines);
+            return;
+        }
+
+        float[] data = (float[]) src;
+        for (int i = 0; i < count; i++, srcPos += srcStep, dstPos += dstStep) {
+            for (int c = 0; c < lines; c++) {
+                dst[dstPos + c] = data[srcPos + c];
+            }
+        }
+    }
+
+    /**
+     * Copy <code>count</code> samples of each of a block of lines from the line buffer into image data (double[] or
+     * float[])
+     */
+    private static void storeLines(double[] src, int srcPos, int srcStep, Object dst, int dstPos, int dstStep, int count, int lines) {
+        if (dst instanceof double[]) {
+            copyLines(src, srcPos, srcStep, (double[]) dst, dstPos, dstStep, count, lines);
+            return;
+        }
+
+        float[] data = (float[]) dst;
+        for (int i = 0; i < count; i++, srcPos += srcStep, dstPos += dstStep) {
+            for (int c = 0; c < lines; c++) {
+                data[dstPos + c] = (float) src[srcPos + c];
+            }
+        }
+    }
+
+    /**
+     * Set the samples of a block of lines at the given position beyond the ends of the lines, as required by the method
+     */
+    private void extendLines(Object in, int inStart, int inLen, int inStep, int pos, double[] line, int dstPos, int lines) {
+        int src = getSourceIndex(pos, inLen);
+        if (src < 0) {
+            Arrays.fill(line, dstPos, dstPos + lines, 0.0);
+        } else {
+            loadLines(in, inStart + src * inStep, 0, line, dstPos, 0, 1, lines);
+        }
+    }
+
+    /**
+     * Apply the taps to the line buffer and add the results to the outputs accumulated in the line buffer from
+     * position <code>acc</code>. Positions are in samples of a line; with several lines, the samples at each position
+     * are next to each other. Unpaired taps are added in the same order as by the <code>filterXXX()</code> methods (in
+     * reverse for the forward transform), so that the results are identical.
+     */
+    private static void apply(double[] taps, int symmetry, boolean reverse, double[] line, int base, int baseStep, int acc, int count,
+            int lines) {
+        if (lines > 1) {
+            applyBlock(taps, symmetry, reverse, line, base, baseStep, acc, count, lines);
+            return;
+        }
+
+        // Single line: one tap (or pair of taps) at a time over the whole line, so that the inner loops are long and
+        // free of dependencies
+        int n = taps.length;
+        int half = n / 2;
+        int end = acc + count;
+
+        switch (symmetry) {
+            case SYMM_EVEN:
+            case SYMM_ODD:
+                // The middle tap of an odd length anti-symmetric kernel is zero
+                double sign = (symmetry == SYMM_EVEN) ? 1.0 : -1.0;
+                for (int u = 0; u < half; u++) {
+                    double tap = taps[u];
+                    for (int i = acc, a = base + u, b = base + n - 1 - u; i < end; i++, a += baseStep, b += baseStep) {
+                        line[i] += tap * (line[a] + sign * line[b]);
+                    }
+                }
+                if (symmetry == SYMM_EVEN && (n & 1) != 0) {
+                    addTap(taps[half], line, base + half, baseStep, acc, end);
+                }
+                break;
+
+            default:
+                if (reverse) {
+                    for (int u = n - 1; u >= 0; u--) {
+                        addTap(taps[u], line, base + u, baseStep, acc, end);
+                    }
+                } else {
+                    for (int u = 0; u < n; u++) {
+                        addTap(taps[u], line, base + u, baseStep, acc, end);
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Apply the taps to a block of interleaved lines: one output position at a time, with the inner loops over the
+     * lines of the block
+     */
+    private static void applyBlock(double[] taps, int symmetry, boolean reverse, double[] line, int base, int baseStep, int acc, int count,
+            int lines) {
+        int n = taps.length;
+        int half = n / 2;
+        double sign = (symmetry == SYMM_ODD) ? -1.0 : 1.0;
+
+        for (int i = 0; i < count; i++, base += baseStep) {
+            int out = (acc + i) * lines;
+            int outEnd = out + lines;
+            if (symmetry == SYMM_NONE) {
+                for (int k = 0; k < n; k++) {
+                    int u = reverse ? n - 1 - k : k;
+                    double tap = taps[u];
+                    for (int o = out, a = (base + u) * lines; o < outEnd; o++, a++) {
+                        line[o] += tap * line[a];
+                    }
+                }
+            } else {
+                for (int u = 0; u < half; u++) {
+                    double tap = taps[u];
+                    for (int o = out, a = (base + u) * lines, b = (base + n - 1 - u) * lines; o < outEnd; o++, a++, b++) {
+                        line[o] += tap * (line[a] + sign * line[b]);
+                    }
+                }
+                if (symmetry == SYMM_EVEN && (n & 1) != 0) {
+                    double tap = taps[half];
+                    for (int o = out, a = (base + half) * lines; o < outEnd; o++, a++) {
+                        line[o] += tap * line[a];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Add one tap multiplied by the line samples to the accumulated outputs
+     */
+    private static void addTap(double tap, double[] line, int from, int step, int acc, int end) {
+        if (step == 1) {
+            for (int i = acc, a = from; i < end; i++, a++) {
+                line[i] += tap * line[a];
+            }
+        } else {
+            for (int i = acc, a = from; i < end; i++, a += step) {
+                line[i] += tap * line[a];
+            }
+        }
+    }
+
+    /**
+     * Get the index of the input sample to use at the given position of the padded line, as required by the method,
+     * or -1 for zero
+     */
+    private int getSourceIndex(int pos, int inLen) {
+        if (pos >= 0 && pos < inLen) {
+            return pos;
+        }
+
+        switch (this.method) {
+            case Filter.METHOD_PERIODICAL:
+            case Filter.METHOD_INVPERIODICAL:
+                return CommonUtil.mod(pos, inLen);
+
+            case Filter.METHOD_MIRROR:
+                if (pos < 0) {
+                    pos = -pos;
+                    if (pos >= inLen) {
+                        return -1;
+                    }
+                }
+                if (pos >= inLen) {
+                    pos = 2 * inLen - 2 - pos;
+                }
+                return (pos < 0) ? -1 : pos;
+
+            case Filter.METHOD_INVMIRROR:
+                if (pos < 0) {
+                    pos = this.hiPass ? -pos - 1 : -pos;
+                    if (pos >= inLen) {
+                        return -1;
+                    }
+                }
+                if (pos >= inLen) {
+                    pos = this.hiPass ? 2 * inLen - 2 - pos : 2 * inLen - 1 - pos;
+                }
+                return (pos < 0) ? -1 : pos;
+
+            default:
+                // Cut-off
+                return -1;
+        }
+    }
+
+    /**
+     * Get the first input position used by the line
+     */
+    private int getPaddedLow() {
+        return this.inverse ? Math.min(this.offsets[0], this.offsets[1]) : this.offsets[0];
+    }
+
+    /**
+     * Get the last input position used by the line
+     */
+    private int getPaddedHigh(int outLen) {
+        if (this.inverse) {
+            int even = (outLen - 1) / 2 + this.offsets[0] + this.taps[0].length - 1;
+            int odd = (outLen - 2) / 2 + this.offsets[1] + this.taps[1].length - 1;
+            return Math.max(even, outLen > 1 ? odd : even);
+        }
+        return 2 * (outLen - 1) + this.offsets[0] + this.taps[0].length - 1;
+    }
+
+    /**
+     * Find the symmetry of the given taps
+     */
+    private static int findSymmetry(double[] taps) {
+        int n = taps.length;
+        if (n < 2) {
+            return SYMM_NONE;
+        }
+
+        boolean even = true;
+        boolean odd = true;
+        for (int u = 0; u <= (n - 1) / 2; u++) {
+            even &= (taps[u] == taps[n - 1 - u]);
+            odd &= (taps[u] == -taps[n - 1 - u]);
+        }
+        if (even) {
+            return SYMM_EVEN;
+        }
+        return odd ? SYMM_ODD : SYMM_NONE;
+    }
+}
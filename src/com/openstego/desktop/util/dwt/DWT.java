@@ -55,6 +55,21 @@ public class DWT {
      */
     private int level = 0;
 
+    /**
+     * Flag to indicate whether the lifting scheme is to be used for the filters and image sizes supporting it
+     */
+    private boolean useLifting = false;
+
+    /**
+     * Flag to indicate whether multiple threads are to be used for large images
+     */
+    private boolean parallel = true;
+
+    /**
+     * Flag to indicate whether the coefficients are to be stored in single precision
+     */
+    private boolean singlePrecision = false;
+
     /**
      * Default constructor
      *
@@ -91,7 +106,7 @@ public class DWT {
         Image image = null;
         ImageTree tree = null;
 
-        image = new Image(this.cols, this.rows);
+        image = DWTUtil.newImage(this.cols, this.rows, this.singlePrecision);
 
         for (int i = 0; i < this.rows; i++) {
             for (int j = 0; j < this.cols; j++) {
@@ -99,10 +114,81 @@ public class DWT {
             }
         }
 
-        tree = DWTUtil.waveletTransform(image, this.level, this.filters, this.method);
+        tree = DWTUtil.waveletTransform(image, this.level, this.filters, this.method, getOptions());
+        DWTUtil.releaseImage(image);
         return tree;
     }
 
+    /**
+     * Method to compute only the coarse (approximation) image of the deepest level of the forward DWT. The detail
+     * subbands are not computed, which saves most of the work when only the approximation is needed. The result is
+     * the same as the coarse image of the tree returned by {@link #forwardDWT(int[][])}.
+     *
+     * @param pixels Image pixel data
+     * @return Coarse image of the deepest level
+     */
+    public Image forwardDWTcoarse(int[][] pixels) {
+        Image image = null;
+        Image coarse = null;
+
+        image = DWTUtil.newImage(this.cols, this.rows, this.singlePrecision);
+
+        for (int i = 0; i < this.rows; i++) {
+            for (int j = 0; j < this.cols; j++) {
+                DWTUtil.setPixel(image, j, i, pixels[i][j]);
+            }
+        }
+
+        coarse = DWTUtil.coarseTransform(image, this.level, this.filters, this.method, getOptions());
+        DWTUtil.releaseImage(image);
+        return coarse;
+    }
+
+    /**
+     * Method to perform the forward DWT on the pixel data without storing the detail subbands: their coefficients are
+     * handed to the visitor, in strips of columns, as soon as they are computed. The coefficients are the same as the
+     * ones of the tree returned by {@link #forwardDWT(int[][])}.
+     *
+     * @param pixels Image pixel data
+     * @param visitor Visitor for the detail subbands
+     */
+    public void forwardDWTdetails(int[][] pixels, SubBandVisitor visitor) {
+        Image image = null;
+
+        image = DWTUtil.newImage(this.cols, this.rows, this.singlePrecision);
+
+        for (int i = 0; i < this.rows; i++) {
+            for (int j = 0; j < this.cols; j++) {
+                DWTUtil.setPixel(image, j, i, pixels[i][j]);
+            }
+        }
+
+        DWTUtil.visitDetails(image, this.level, this.filters, this.method, getOptions(), visitor);
+        DWTUtil.releaseImage(image);
+    }
+
+    /**
+     * Method to add a change of the coarse image of the deepest level to the pixel data. As the inverse DWT is
+     * linear, adding the inverse transform of the change (computed along the low pass chain only) to the pixels gives
+     * the same result as transforming the pixels, changing the coarse image, and transforming the whole tree back
+     * using {@link #inverseDWT(ImageTree, int[][])}.
+     *
+     * @param coarseDelta Change of the coarse image, of the size returned by {@link #forwardDWTcoarse(int[][])}
+     * @param pixels Image pixel data, updated in place
+     */
+    public void inverseDWTcoarseDelta(Image coarseDelta, int[][] pixels) {
+        Image image = null;
+
+        image = DWTUtil.coarseInverseTransform(coarseDelta, this.cols, this.rows, this.level, this.filters, this.method + 1, getOptions());
+
+        for (int i = 0; i < this.rows; i++) {
+            for (int j = 0; j < this.cols; j++) {
+                pixels[i][j] = ImageUtil.pixelRange((int) (pixels[i][j] + DWTUtil.getPixel(image, j, i) + 0.5));
+            }
+        }
+        DWTUtil.releaseImage(image);
+    }
+
     /**
      * Method to perform forward DWT (WP) on the pixel data
      *
@@ -113,7 +199,7 @@ public class DWT {
         Image image = null;
         ImageTree tree = null;
 
-        image = new Image(this.cols, this.rows);
+        image = DWTUtil.newImage(this.cols, this.rows, this.singlePrecision);
 
         for (int i = 0; i < this.rows; i++) {
             for (int j = 0; j < this.cols; j++) {
@@ -121,7 +207,8 @@ public class DWT {
             }
         }
 
-        tree = DWTUtil.waveletTransformWp(image, 0, this.level, this.filters, this.method);
+        tree = DWTUtil.waveletTransformWp(image, 0, this.level, this.filters, this.method, getOptions());
+        DWTUtil.releaseImage(image);
         return tree;
     }
 
@@ -134,12 +221,86 @@ public class DWT {
     public void inverseDWT(ImageTree dwts, int[][] pixels) {
         Image image = null;
 
-        image = DWTUtil.inverseTransform(dwts, this.filters, this.method + 1);
+        image = DWTUtil.inverseTransform(dwts, this.filters, this.method + 1, getOptions());
 
         for (int i = 0; i < this.rows; i++) {
             for (int j = 0; j < this.cols; j++) {
                 pixels[i][j] = ImageUtil.pixelRange((int) (DWTUtil.getPixel(image, j, i) + 0.5));
             }
         }
+        if (dwts.getImage() == null) {
+            DWTUtil.releaseImage(image);
+        }
+    }
+
+    /**
+     * Get method for useLifting
+     *
+     * @return useLifting
+     */
+    public boolean isUseLifting() {
+        return this.useLifting;
+    }
+
+    /**
+     * Set method for useLifting. When disabled (the default), the transform is always computed using convolution. The
+     * inverse transform follows the method used by the forward transform for each level of the tree.
+     * <p>
+     * The lifting factorisations use the exact filter coefficients, while the filter file holds taps rounded to six
+     * decimals, so the lifted coefficients differ from the convolution ones by up to about 1e-5 relative (about 0.07
+     * at level 5 of an 8-bit image). This is enough to change a few reconstructed pixels by one, so the stego images
+     * of the plugins would not be the same as with convolution.
+     *
+     * @param useLifting Value for useLifting to be set
+     */
+    public void setUseLifting(boolean useLifting) {
+        this.useLifting = useLifting;
+    }
+
+    /**
+     * Get method for parallel
+     *
+     * @return parallel
+     */
+    public boolean isParallel() {
+        return this.parallel;
+    }
+
+    /**
+     * Set method for parallel. When enabled, the levels of large enough images are transformed using the threads of
+     * the common fork/join pool. The results are the same in both cases.
+     *
+     * @param parallel Value for parallel to be set
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Get method for singlePrecision
+     *
+     * @return singlePrecision
+     */
+    public boolean isSinglePrecision() {
+        return this.singlePrecision;
+    }
+
+    /**
+     * Set method for singlePrecision. When enabled, the images of the tree are backed by float arrays, which halves
+     * the memory used by the transform; the filters are still computed in double precision. The coefficients then
+     * differ from the double precision ones by a relative error of about 1e-7.
+     *
+     * @param singlePrecision Value for singlePrecision to be set
+     */
+    public void setSinglePrecision(boolean singlePrecision) {
+        this.singlePrecision = singlePrecision;
+    }
+
+    /**
+     * Get the options to be passed to {@link DWTUtil}
+     */
+    private int getOptions() {
+        return (this.useLifting ? DWTUtil.OPTION_LIFTING : 0) | (this.parallel ? DWTUtil.OPTION_PARALLEL : 0)
+                | (this.singlePrecision ? DWTUtil.OPTION_SINGLE_PRECISION : 0);
     }
 }
@@ -6,7 +6,11 @@
 
 package com.openstego.desktop.util.dwt;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
 import com.openstego.desktop.util.CommonUtil;
+import com.openstego.desktop.util.ScratchArena;
 
 /**
  * Class to handle Wavelet filters and other DWT utilities.
@@ -18,6 +22,39 @@ import com.openstego.desktop.util.CommonUtil;
  * Master's Thesis, Department of Scientific Computing, University of Salzburg, Austria, January 2001.
  */
 public class DWTUtil {
+    /**
+     * Option to use the lifting scheme for the filters and image sizes supporting it
+     */
+    public static final int OPTION_LIFTING = 1;
+
+    /**
+     * Option to use multiple threads (of the common fork/join pool) for large enough images
+     */
+    public static final int OPTION_PARALLEL = 2;
+
+    /**
+     * Option to store the transformed (and reconstructed) images in single precision. The filters are still computed
+     * in double precision; only the stored samples are rounded.
+     */
+    public static final int OPTION_SINGLE_PRECISION = 4;
+
+    /**
+     * Number of adjacent columns filtered together
+     */
+    private static final int COLUMN_BLOCK_SIZE = 64;
+
+    /**
+     * Number of lines filtered by one parallel task
+     */
+    private static final int LINES_PER_TASK = 32;
+
+    /**
+     * Minimum number of samples in an image for it to be processed using multiple threads. Smaller images (like the
+     * coarse images of the deeper levels) are processed on the calling thread, as splitting them costs more than it
+     * saves.
+     */
+    private static final int PARALLEL_MIN_SAMPLES = 1 << 15;
+
     /**
      * Constructor is private so that this class is not instantiated
      */
@@ -34,6 +71,24 @@ public class DWTUtil {
      * @return Data after performing wavelet transform
      */
     public static ImageTree waveletTransform(Image origImg, int level, FilterGH[] filterGHList, int method) {
+        return waveletTransform(origImg, level, filterGHList, method, 0);
+    }
+
+    /**
+     * Method to perform the wavelet transform with the given options. The coefficients of all the levels are stored
+     * in a single image in Mallat layout (see {@link ImageTree#getCoefficients()}): the coarse image of the last level
+     * is in the top left corner, and the horizontal, vertical and diagonal images of every level are to the right of,
+     * below, and diagonally from the area of the next level. When a level has an odd size, that area is widened by one
+     * sample to hold the subbands of the next level. The images of the returned tree are views into it.
+     *
+     * @param origImg Original image
+     * @param level Decomposition level
+     * @param filterGHList List of filters
+     * @param method Wavelet filtering method
+     * @param options Combination of the <code>OPTION_XXX</code> flags
+     * @return Data after performing wavelet transform
+     */
+    public static ImageTree waveletTransform(Image origImg, int level, FilterGH[] filterGHList, int method, int options) {
         int width = 0;
         int height = 0;
         int min = 0;
@@ -49,8 +104,9 @@ public class DWTUtil {
         width = origImg.getWidth();
         height = origImg.getHeight();
 
-        tempImg = new Image(width, height);
-        copyIntoImage(tempImg, origImg, 0, 0);
+        // The original image is only read by the first level
+        tempImg = origImg;
+        boolean singlePrecision = (options & OPTION_SINGLE_PRECISION) != 0;
 
         returnTree = new ImageTree();
         tempTree = returnTree;
@@ -68,21 +124,47 @@ public class DWTUtil {
 
         if (level < 1) /* do not transform */
         {
-            returnTree.setImage(tempImg);
+            returnTree.setImage(copyImage(origImg));
             return returnTree;
         }
 
-        // Decomposition
+        // Layout of the coefficients: the subbands of each level are at bandX/bandY from the area of the next level
+        int[] sizeX = new int[level];
+        int[] sizeY = new int[level];
         for (int i = 0; i < level; i++) {
             width = (width + 1) / 2;
             height = (height + 1) / 2;
+            sizeX[i] = width;
+            sizeY[i] = height;
+        }
+        int[] bandX = new int[level];
+        int[] bandY = new int[level];
+        int areaX = sizeX[level - 1];
+        int areaY = sizeY[level - 1];
+        for (int i = level - 1; i >= 0; i--) {
+            bandX[i] = Math.max(areaX, sizeX[i]);
+            bandY[i] = Math.max(areaY, sizeY[i]);
+            areaX = bandX[i] + sizeX[i];
+            areaY = bandY[i] + sizeY[i];
+        }
+        Image coefficients = newImage(areaX, areaY, singlePrecision);
+        returnTree.setCoefficients(coefficients);
 
-            coarseImg = new Image(width, height);
-            horizontalImg = new Image(width, height);
-            verticalImg = new Image(width, height);
-            diagonalImg = new Image(width, height);
-
-            decomposition(tempImg, coarseImg, horizontalImg, verticalImg, diagonalImg, filterGHList[i].getG(), filterGHList[i].getH(), method);
+        // Decomposition
+        for (int i = 0; i < level; i++) {
+            width = sizeX[i];
+            height = sizeY[i];
+
+            // The coarse image of the intermediate levels is only an input for the next level
+            coarseImg = (i == level - 1) ? coefficients.getView(0, 0, width, height) : newImage(width, height, singlePrecision);
+            horizontalImg = coefficients.getView(bandX[i], 0, width, height);
+            verticalImg = coefficients.getView(0, bandY[i], width, height);
+            diagonalImg = coefficients.getView(bandX[i], bandY[i], width, height);
+
+            tempTree.setLifted(decomposition(tempImg, coarseImg, horizontalImg, verticalImg, diagonalImg, filterGHList[i], method, options));
+            if (tempImg != origImg) {
+                releaseImage(tempImg);
+            }
 
             tempTree.setCoarse(new ImageTree());
             tempTree.setHorizontal(new ImageTree());
@@ -97,21 +179,227 @@ public class DWTUtil {
             tempTree.getHorizontal().setImage(horizontalImg);
             tempTree.getVertical().setImage(verticalImg);
             tempTree.getDiagonal().setImage(diagonalImg);
-            tempImg = null;
-
-            if (i != (level - 1)) {
-                tempImg = new Image(width, height);
-                copyIntoImage(tempImg, coarseImg, 0, 0);
-                coarseImg = null;
-            }
+            tempImg = coarseImg;
+            coarseImg = null;
 
             tempTree = tempTree.getCoarse();
         }
 
-        tempTree.setImage(coarseImg);
+        tempTree.setImage(tempImg);
         return returnTree;
     }
 
+    /**
+     * Method to compute only the coarse image of the given level of the wavelet transform: at every level, only the
+     * low pass filter is applied to the lines and then the rows, and the detail subbands are skipped. The result is
+     * the same as the coarse image of the deepest level of {@link #waveletTransform(Image, int, FilterGH[], int, int)}
+     * (the level is limited in the same way).
+     *
+     * @param origImg Original image
+     * @param level Decomposition level
+     * @param filterGHList List of filters
+     * @param method Wavelet filtering method
+     * @param options Combination of the <code>OPTION_XXX</code> flags
+     * @return Coarse image of the deepest level (from the scratch arena)
+     */
+    public static Image coarseTransform(Image origImg, int level, FilterGH[] filterGHList, int method, int options) {
+        int width = origImg.getWidth();
+        int height = origImg.getHeight();
+        boolean singlePrecision = (options & OPTION_SINGLE_PRECISION) != 0;
+        Image tempImg = origImg;
+
+        level = getLevelCount(width, height, level);
+        if (level < 1) {
+            return copyImage(origImg);
+        }
+
+        for (int i = 0; i < level; i++) {
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+
+            Image coarseImg = newImage(width, height, singlePrecision);
+            coarseDecomposition(tempImg, coarseImg, filterGHList[i], method, options);
+            if (tempImg != origImg) {
+                releaseImage(tempImg);
+            }
+            tempImg = coarseImg;
+        }
+        return tempImg;
+    }
+
+    /**
+     * Method to compute the inverse transform of an image whose detail subbands are all zero, that is to synthesize
+     * only along the low pass chain. As the transform is linear, this gives the change of the reconstructed image
+     * caused by a change of the coarse image of the deepest level only (for instance, a watermark embedded into the
+     * approximation image), without the detail subbands being computed or stored. The sizes of the levels are the same
+     * as in {@link #inverseTransform(ImageTree, FilterGH[], int, int)} for an image of the given size.
+     *
+     * @param coarseImg Coarse image of the deepest level, as returned by
+     *        {@link #coarseTransform(Image, int, FilterGH[], int, int)}
+     * @param width Width of the original image
+     * @param height Height of the original image
+     * @param level Decomposition level (limited as for the forward transform)
+     * @param filterGHList List of filters
+     * @param method Wavelet filter method (inverse)
+     * @param options Combination of the <code>OPTION_XXX</code> flags
+     * @return Synthesized image (from the scratch arena), of at least the given size
+     */
+    public static Image coarseInverseTransform(Image coarseImg, int width, int height, int level, FilterGH[] filterGHList, int method,
+            int options) {
+        level = getLevelCount(width, height, level);
+        if (level < 1) {
+            return copyImage(coarseImg);
+        }
+
+        int[] sizeX = new int[level];
+        int[] sizeY = new int[level];
+        for (int i = 0; i < level; i++) {
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            sizeX[i] = width;
+            sizeY[i] = height;
+        }
+
+        Image tempImg = coarseImg;
+        for (int i = level - 1; i >= 0; i--) {
+            Image sumImg = newImage(tempImg.getWidth() + sizeX[i], tempImg.getHeight() + sizeY[i], (options & OPTION_SINGLE_PRECISION) != 0);
+            FilterGH filterGH = filterGHList[i];
+            Filter filterH = (filterGH.getType() == FilterGH.TYPE_ORTHOGONAL) ? filterGH.getH() : filterGH.getHi();
+            boolean parallel = isParallel(sumImg, options);
+
+            // Same as the low pass half of invDecomposition(), the horizontal image being zero
+            Image rowsImg = newImage(tempImg.getWidth(), sumImg.getHeight(), sumImg.isSinglePrecision());
+            convoluteRows(rowsImg, tempImg, filterH, method, parallel);
+            convoluteLines(sumImg, rowsImg, filterH, method, parallel);
+            releaseImage(rowsImg);
+
+            if (tempImg != coarseImg) {
+                releaseImage(tempImg);
+            }
+            tempImg = sumImg;
+        }
+        return tempImg;
+    }
+
+    /**
+     * Method to compute the forward transform without storing the detail subbands. Only the coarse image of every
+     * level is kept (to decompose the next level); the coefficients of the detail subbands are handed to the visitor
+     * in strips of columns as soon as the final (column) filter of the level has produced them. The coefficients are
+     * the same as the ones of the tree returned by {@link #waveletTransform(Image, int, FilterGH[], int, int)}.
+     *
+     * @param origImg Original image
+     * @param level Decomposition level (limited as for the full transform)
+     * @param filterGHList List of filters
+     * @param method Wavelet filter method
+     * @param options Combination of the <code>OPTION_XXX</code> flags
+     * @param visitor Visitor for the detail subbands
+     */
+    public static void visitDetails(Image origImg, int level, FilterGH[] filterGHList, int method, int options, SubBandVisitor visitor) {
+        boolean singlePrecision = (options & OPTION_SINGLE_PRECISION) != 0;
+        Image tempImg = origImg;
+
+        level = getLevelCount(origImg.getWidth(), origImg.getHeight(), level);
+        for (int i = 0; i < level; i++) {
+            Image coarseImg = newImage((tempImg.getWidth() + 1) / 2, (tempImg.getHeight() + 1) / 2, singlePrecision);
+            visitDecomposition(tempImg, coarseImg, filterGHList[i], method, options, i + 1, visitor);
+            if (tempImg != origImg) {
+                releaseImage(tempImg);
+            }
+            tempImg = coarseImg;
+        }
+        if (tempImg != origImg) {
+            releaseImage(tempImg);
+        }
+    }
+
+    /**
+     * Method to decompose one level for {@link #visitDetails(Image, int, FilterGH[], int, int, SubBandVisitor)}, using
+     * the same algorithm (lifting scheme or convolution) as
+     * {@link #decomposition(Image, Image, Image, Image, Image, FilterGH, int, int)}
+     */
+    private static void visitDecomposition(Image inputImg, Image coarseImg, FilterGH filterGH, int method, int options, int level,
+            SubBandVisitor visitor) {
+        boolean parallel = isParallel(inputImg, options);
+        if ((options & OPTION_LIFTING) != 0 && method == Filter.METHOD_PERIODICAL && LiftingScheme.isSupportedSize(inputImg.getWidth(), inputImg.getHeight())) {
+            LiftingScheme scheme = LiftingScheme.getInstance(filterGH);
+            if (scheme != null) {
+                scheme.visitDecomposition(inputImg, coarseImg, level, COLUMN_BLOCK_SIZE, parallel, visitor);
+                return;
+            }
+        }
+
+        // Coarse and horizontal
+        Image tempImg = newImage(coarseImg.getWidth(), inputImg.getHeight(), coarseImg.isSinglePrecision());
+        convoluteLines(tempImg, inputImg, filterGH.getH(), method, parallel);
+        convoluteRows(coarseImg, tempImg, filterGH.getH(), method, parallel);
+        visitRows(tempImg, coarseImg.getHeight(), filterGH.getG(), method, parallel, level, SubBandVisitor.HORIZONTAL, visitor);
+        releaseImage(tempImg);
+
+        // Vertical and diagonal
+        tempImg = newImage(coarseImg.getWidth(), inputImg.getHeight(), coarseImg.isSinglePrecision());
+        convoluteLines(tempImg, inputImg, filterGH.getG(), method, parallel);
+        visitRows(tempImg, coarseImg.getHeight(), filterGH.getH(), method, parallel, level, SubBandVisitor.VERTICAL, visitor);
+        visitRows(tempImg, coarseImg.getHeight(), filterGH.getG(), method, parallel, level, SubBandVisitor.DIAGONAL, visitor);
+        releaseImage(tempImg);
+    }
+
+    /**
+     * Method to convolute rows like {@link #convoluteRows(Image, Image, Filter, int, boolean)}, but writing every
+     * block of columns to a scratch strip which is handed to the visitor instead of to an output image
+     */
+    private static void visitRows(Image inputImg, int outHeight, Filter filter, int method, boolean parallel, int level, int orientation,
+            SubBandVisitor visitor) {
+        ConvolutionKernel kernel = ConvolutionKernel.getInstance(filter, method);
+        int inWidth = inputImg.getWidth();
+        int inHeight = inputImg.getHeight();
+        int inOffset = inputImg.getOffset();
+        int inStride = inputImg.getStride();
+        int blocks = (inWidth + COLUMN_BLOCK_SIZE - 1) / COLUMN_BLOCK_SIZE;
+
+        parallelStream(blocks, parallel).forEach(b -> {
+            int i = b * COLUMN_BLOCK_SIZE;
+            int blockWidth = Math.min(COLUMN_BLOCK_SIZE, inWidth - i);
+            double[] line = ScratchArena.get().getDoubles(kernel.getLineSize(outHeight) * blockWidth, false);
+            Image stripImg = newImage(blockWidth, outHeight, inputImg.isSinglePrecision());
+
+            kernel.convolute(inputImg, inOffset + i, inHeight, inStride, stripImg, 0, outHeight, blockWidth, blockWidth, line);
+            visitor.visit(level, orientation, stripImg, i, inWidth);
+
+            releaseImage(stripImg);
+            ScratchArena.get().release(line);
+        });
+    }
+
+    /**
+     * Method to get the number of levels actually computed by the forward transform of an image of the given size:
+     * the smallest dimension of the coarsest level must be at least about four samples
+     */
+    private static int getLevelCount(int width, int height, int level) {
+        int maxLevel = ((int) (Math.log(Math.min(width, height)) / Math.log(2))) - 2;
+        return Math.min(level, maxLevel);
+    }
+
+    /**
+     * Method to compute only the coarse image of one level, using the same algorithm (lifting scheme or convolution)
+     * as {@link #decomposition(Image, Image, Image, Image, Image, FilterGH, int, int)}, so that the results are
+     * identical
+     */
+    private static void coarseDecomposition(Image inputImg, Image coarseImg, FilterGH filterGH, int method, int options) {
+        boolean parallel = isParallel(inputImg, options);
+        if ((options & OPTION_LIFTING) != 0 && method == Filter.METHOD_PERIODICAL && LiftingScheme.isSupportedSize(inputImg.getWidth(), inputImg.getHeight())) {
+            LiftingScheme scheme = LiftingScheme.getInstance(filterGH);
+            if (scheme != null) {
+                scheme.coarseDecomposition(inputImg, coarseImg, parallel);
+                return;
+            }
+        }
+
+        Image tempImg = newImage(coarseImg.getWidth(), inputImg.getHeight(), coarseImg.isSinglePrecision());
+        convoluteLines(tempImg, inputImg, filterGH.getH(), method, parallel);
+        convoluteRows(coarseImg, tempImg, filterGH.getH(), method, parallel);
+        releaseImage(tempImg);
+    }
+
     /**
      * Method to perform the wavelet transform (WP)
      *
@@ -123,6 +411,21 @@ public class DWTUtil {
      * @return Data after performing wavelet transform
      */
     public static ImageTree waveletTransformWp(Image origImg, int currLevel, int level, FilterGH[] filterGHList, int method) {
+        return waveletTransformWp(origImg, currLevel, level, filterGHList, method, 0);
+    }
+
+    /**
+     * Method to perform the wavelet transform (WP) with the given options
+     *
+     * @param origImg Original image
+     * @param currLevel Current decomposition level
+     * @param level Decomposition level
+     * @param filterGHList List of filters
+     * @param method Wavelet filtering method
+     * @param options Combination of the <code>OPTION_XXX</code> flags
+     * @return Data after performing wavelet transform
+     */
+    public static ImageTree waveletTransformWp(Image origImg, int currLevel, int level, FilterGH[] filterGHList, int method, int options) {
         int width = 0;
         int height = 0;
         int min = 0;
@@ -138,8 +441,9 @@ public class DWTUtil {
         width = origImg.getWidth();
         height = origImg.getHeight();
 
-        tempImg = new Image(width, height);
-        copyIntoImage(tempImg, origImg, 0, 0);
+        // The original image is only read by the first level
+        tempImg = origImg;
+        boolean singlePrecision = (options & OPTION_SINGLE_PRECISION) != 0;
 
         returnTree = new ImageTree();
         tempTree = returnTree;
@@ -156,7 +460,7 @@ public class DWTUtil {
         }
 
         if (currLevel >= level) {
-            returnTree.setImage(tempImg);
+            returnTree.setImage(copyImage(origImg));
             return returnTree;
         }
 
@@ -164,24 +468,37 @@ public class DWTUtil {
             width = (width + 1) / 2;
             height = (height + 1) / 2;
 
-            coarseImg = new Image(width, height);
-            horizontalImg = new Image(width, height);
-            verticalImg = new Image(width, height);
-            diagonalImg = new Image(width, height);
+            coarseImg = newImage(width, height, singlePrecision);
+            horizontalImg = newImage(width, height, singlePrecision);
+            verticalImg = newImage(width, height, singlePrecision);
+            diagonalImg = newImage(width, height, singlePrecision);
 
-            decomposition(tempImg, coarseImg, horizontalImg, verticalImg, diagonalImg, filterGHList[i].getG(), filterGHList[i].getH(), method);
+            tempTree.setLifted(decomposition(tempImg, coarseImg, horizontalImg, verticalImg, diagonalImg, filterGHList[i], method, options));
+            if (tempImg != origImg) {
+                releaseImage(tempImg);
+            }
 
             tempTree.setCoarse(new ImageTree());
             tempTree.getCoarse().setLevel(i + 1);
-            tempTree.setHorizontal(waveletTransformWp(horizontalImg, i + 1, level, filterGHList, method));
-            tempTree.setVertical(waveletTransformWp(verticalImg, i + 1, level, filterGHList, method));
-            tempTree.setDiagonal(waveletTransformWp(diagonalImg, i + 1, level, filterGHList, method));
+
+            // The detail subbands are decomposed independently
+            ImageTree[] subtrees = new ImageTree[3];
+            Image[] subImgs = { horizontalImg, verticalImg, diagonalImg };
+            int subLevel = i + 1;
+            int lastLevel = level;
+            parallelStream(3, isParallel(horizontalImg, options)).forEach(
+                k -> subtrees[k] = waveletTransformWp(subImgs[k], subLevel, lastLevel, filterGHList, method, options));
+            tempTree.setHorizontal(subtrees[0]);
+            tempTree.setVertical(subtrees[1]);
+            tempTree.setDiagonal(subtrees[2]);
+            for (Image subImg : subImgs) {
+                releaseImage(subImg);
+            }
 
             tempImg = null;
 
             if (i != (level - 1)) {
-                tempImg = new Image(width, height);
-                copyIntoImage(tempImg, coarseImg, 0, 0);
+                tempImg = coarseImg;
                 coarseImg = null;
             }
 
@@ -192,6 +509,36 @@ public class DWTUtil {
         return returnTree;
     }
 
+    /**
+     * Method to decompose the image, using the lifting scheme if requested and supported for the filter, the method
+     * and the image size, else using convolution
+     *
+     * @param inputImg Input image
+     * @param coarseImg Coarse image
+     * @param horizontalImg Horizontal image
+     * @param verticalImg Vertical image
+     * @param diagonalImg Diagonal image
+     * @param filterGH Filter
+     * @param method Wavelet filtering method
+     * @param options Combination of the <code>OPTION_XXX</code> flags
+     * @return Flag to indicate whether the lifting scheme was used
+     */
+    private static boolean decomposition(Image inputImg, Image coarseImg, Image horizontalImg, Image verticalImg, Image diagonalImg, FilterGH filterGH,
+            int method, int options) {
+        boolean parallel = isParallel(inputImg, options);
+        LiftingScheme scheme = null;
+        if ((options & OPTION_LIFTING) != 0 && method == Filter.METHOD_PERIODICAL && LiftingScheme.isSupportedSize(inputImg.getWidth(), inputImg.getHeight())) {
+            scheme = LiftingScheme.getInstance(filterGH);
+        }
+
+        if (scheme == null) {
+            decomposition(inputImg, coarseImg, horizontalImg, verticalImg, diagonalImg, filterGH.getG(), filterGH.getH(), method, parallel);
+            return false;
+        }
+        scheme.decomposition(inputImg, coarseImg, horizontalImg, verticalImg, diagonalImg, parallel);
+        return true;
+    }
+
     /**
      * Method to decompose the image
      *
@@ -206,23 +553,47 @@ public class DWTUtil {
      */
     public static void decomposition(Image inputImg, Image coarseImg, Image horizontalImg, Image verticalImg, Image diagonalImg, Filter filterG,
             Filter filterH, int method) {
-        Image tempImg = null;
-
-        // Coarse
-        tempImg = new Image(coarseImg.getWidth(), inputImg.getHeight());
-        convoluteLines(tempImg, inputImg, filterH, method);
-        convoluteRows(coarseImg, tempImg, filterH, method);
-
-        // Horizontal
-        convoluteRows(horizontalImg, tempImg, filterG, method);
+        decomposition(inputImg, coarseImg, horizontalImg, verticalImg, diagonalImg, filterG, filterH, method, false);
+    }
 
-        // Vertical
-        tempImg = new Image(verticalImg.getWidth(), inputImg.getHeight());
-        convoluteLines(tempImg, inputImg, filterG, method);
-        convoluteRows(verticalImg, tempImg, filterH, method);
+    /**
+     * Method to decompose the image, optionally using multiple threads. The low pass (coarse and horizontal) and high
+     * pass (vertical and diagonal) halves are computed concurrently, and each convolution is split into bands of
+     * lines.
+     *
+     * @param inputImg Input image
+     * @param coarseImg Coarse image
+     * @param horizontalImg Horizontal image
+     * @param verticalImg Vertical image
+     * @param diagonalImg Diagonal image
+     * @param filterG G filter
+     * @param filterH H filter
+     * @param method Wavelet filtering method
+     * @param parallel Whether to use multiple threads
+     */
+    public static void decomposition(Image inputImg, Image coarseImg, Image horizontalImg, Image verticalImg, Image diagonalImg, Filter filterG,
+            Filter filterH, int method, boolean parallel) {
+        parallelStream(2, parallel).forEach(half -> {
+            Image tempImg = null;
+            if (half == 0) {
+                // Coarse
+                tempImg = newImage(coarseImg.getWidth(), inputImg.getHeight(), coarseImg.isSinglePrecision());
+                convoluteLines(tempImg, inputImg, filterH, method, parallel);
+                convoluteRows(coarseImg, tempImg, filterH, method, parallel);
+
+                // Horizontal
+                convoluteRows(horizontalImg, tempImg, filterG, method, parallel);
+            } else {
+                // Vertical
+                tempImg = newImage(verticalImg.getWidth(), inputImg.getHeight(), verticalImg.isSinglePrecision());
+                convoluteLines(tempImg, inputImg, filterG, method, parallel);
+                convoluteRows(verticalImg, tempImg, filterH, method, parallel);
 
-        // Diagonal
-        convoluteRows(diagonalImg, tempImg, filterG, method);
+                // Diagonal
+                convoluteRows(diagonalImg, tempImg, filterG, method, parallel);
+            }
+            releaseImage(tempImg);
+        });
     }
 
     /**
@@ -234,39 +605,36 @@ public class DWTUtil {
      * @param method Wavelet filtering method
      */
     public static void convoluteLines(Image outputImg, Image inputImg, Filter filter, int method) {
-        for (int i = 0; i < inputImg.getHeight(); i++) {
-            switch (method) {
-                case Filter.METHOD_CUTOFF:
-                    filterCutOff(inputImg, inputImg.getWidth() * i, inputImg.getWidth(), 1, outputImg, outputImg.getWidth() * i, outputImg.getWidth(),
-                        1, filter);
-                    break;
-
-                case Filter.METHOD_INVCUTOFF:
-                    filterInvCutOff(inputImg, inputImg.getWidth() * i, inputImg.getWidth(), 1, outputImg, outputImg.getWidth() * i,
-                        outputImg.getWidth(), 1, filter);
-                    break;
-
-                case Filter.METHOD_PERIODICAL:
-                    filterPeriodical(inputImg, inputImg.getWidth() * i, inputImg.getWidth(), 1, outputImg, outputImg.getWidth() * i,
-                        outputImg.getWidth(), 1, filter);
-                    break;
-
-                case Filter.METHOD_INVPERIODICAL:
-                    filterInvPeriodical(inputImg, inputImg.getWidth() * i, inputImg.getWidth(), 1, outputImg, outputImg.getWidth() * i,
-                        outputImg.getWidth(), 1, filter);
-                    break;
-
-                case Filter.METHOD_MIRROR:
-                    filterMirror(inputImg, inputImg.getWidth() * i, inputImg.getWidth(), 1, outputImg, outputImg.getWidth() * i, outputImg.getWidth(),
-                        1, filter);
-                    break;
-
-                case Filter.METHOD_INVMIRROR:
-                    filterInvMirror(inputImg, inputImg.getWidth() * i, inputImg.getWidth(), 1, outputImg, outputImg.getWidth() * i,
-                        outputImg.getWidth(), 1, filter);
-                    break;
+        convoluteLines(outputImg, inputImg, filter, method, false);
+    }
+
+    /**
+     * Method to convolute lines, optionally using multiple threads
+     *
+     * @param outputImg Output image
+     * @param inputImg Input image
+     * @param filter Filter to use
+     * @param method Wavelet filtering method
+     * @param parallel Whether to use multiple threads
+     */
+    public static void convoluteLines(Image outputImg, Image inputImg, Filter filter, int method, boolean parallel) {
+        ConvolutionKernel kernel = ConvolutionKernel.getInstance(filter, method);
+        int inWidth = inputImg.getWidth();
+        int height = inputImg.getHeight();
+        int outWidth = outputImg.getWidth();
+        int inOffset = inputImg.getOffset();
+        int inStride = inputImg.getStride();
+        int outOffset = outputImg.getOffset();
+        int outStride = outputImg.getStride();
+        int bandSize = parallel ? LINES_PER_TASK : Math.max(height, 1);
+
+        parallelStream((height + bandSize - 1) / bandSize, parallel).forEach(band -> {
+            double[] line = ScratchArena.get().getDoubles(kernel.getLineSize(outWidth), false);
+            for (int i = band * bandSize; i < Math.min(height, (band + 1) * bandSize); i++) {
+                kernel.convolute(inputImg, inOffset + inStride * i, inWidth, 1, outputImg, outOffset + outStride * i, outWidth, 1, 1, line);
             }
-        }
+            ScratchArena.get().release(line);
+        });
     }
 
     /**
@@ -278,39 +646,41 @@ public class DWTUtil {
      * @param method Wavelet filtering method
      */
     public static void convoluteRows(Image outputImg, Image inputImg, Filter filter, int method) {
-        for (int i = 0; i < inputImg.getWidth(); i++) {
-            switch (method) {
-                case Filter.METHOD_CUTOFF:
-                    filterCutOff(inputImg, i, inputImg.getHeight(), inputImg.getWidth(), outputImg, i, outputImg.getHeight(), outputImg.getWidth(),
-                        filter);
-                    break;
-
-                case Filter.METHOD_INVCUTOFF:
-                    filterInvCutOff(inputImg, i, inputImg.getHeight(), inputImg.getWidth(), outputImg, i, outputImg.getHeight(), outputImg.getWidth(),
-                        filter);
-                    break;
-
-                case Filter.METHOD_PERIODICAL:
-                    filterPeriodical(inputImg, i, inputImg.getHeight(), inputImg.getWidth(), outputImg, i, outputImg.getHeight(),
-                        outputImg.getWidth(), filter);
-                    break;
-
-                case Filter.METHOD_INVPERIODICAL:
-                    filterInvPeriodical(inputImg, i, inputImg.getHeight(), inputImg.getWidth(), outputImg, i, outputImg.getHeight(),
-                        outputImg.getWidth(), filter);
-                    break;
-
-                case Filter.METHOD_MIRROR:
-                    filterMirror(inputImg, i, inputImg.getHeight(), inputImg.getWidth(), outputImg, i, outputImg.getHeight(), outputImg.getWidth(),
-                        filter);
-                    break;
-
-                case Filter.METHOD_INVMIRROR:
-                    filterInvMirror(inputImg, i, inputImg.getHeight(), inputImg.getWidth(), outputImg, i, outputImg.getHeight(), outputImg.getWidth(),
-                        filter);
-                    break;
+        convoluteRows(outputImg, inputImg, filter, method, false);
+    }
+
+    /**
+     * Method to convolute rows, optionally using multiple threads
+     *
+     * @param outputImg Output image
+     * @param inputImg Input image
+     * @param filter Filter to use
+     * @param method Wavelet filtering method
+     * @param parallel Whether to use multiple threads
+     */
+    public static void convoluteRows(Image outputImg, Image inputImg, Filter filter, int method, boolean parallel) {
+        ConvolutionKernel kernel = ConvolutionKernel.getInstance(filter, method);
+        int inWidth = inputImg.getWidth();
+        int inHeight = inputImg.getHeight();
+        int outWidth = outputImg.getWidth();
+        int outHeight = outputImg.getHeight();
+        int inOffset = inputImg.getOffset();
+        int inStride = inputImg.getStride();
+        int outOffset = outputImg.getOffset();
+        int outStride = outputImg.getStride();
+        int blocks = (inWidth + COLUMN_BLOCK_SIZE - 1) / COLUMN_BLOCK_SIZE;
+        int blocksPerTask = parallel ? 1 : Math.max(blocks, 1);
+
+        // Filter blocks of adjacent columns together, so that the image is read and written row by row
+        parallelStream((blocks + blocksPerTask - 1) / blocksPerTask, parallel).forEach(task -> {
+            double[] line = ScratchArena.get().getDoubles(kernel.getLineSize(outHeight) * Math.min(COLUMN_BLOCK_SIZE, inWidth), false);
+            for (int b = task * blocksPerTask; b < Math.min(blocks, (task + 1) * blocksPerTask); b++) {
+                int i = b * COLUMN_BLOCK_SIZE;
+                kernel.convolute(inputImg, inOffset + i, inHeight, inStride, outputImg, outOffset + i, outHeight, outStride,
+                        Math.min(COLUMN_BLOCK_SIZE, inWidth - i), line);
             }
-        }
+            ScratchArena.get().release(line);
+        });
     }
 
     /**
@@ -336,8 +706,8 @@ public class DWTUtil {
             fEnd = CommonUtil.min((2 * i), filter.getEnd());
 
             for (int j = fStart; j <= fEnd; j++) {
-                outputImg.getData()[outStart + i * outStep] += filter.getData()[j - filter.getStart()]
-                        * inputImg.getData()[inStart + ((2 * i) - j) * inStep];
+                outputImg.addValue(outStart + i * outStep,
+                        filter.getData()[j - filter.getStart()] * inputImg.getValue(inStart + ((2 * i) - j) * inStep));
             }
         }
     }
@@ -365,8 +735,8 @@ public class DWTUtil {
             fEnd = CommonUtil.min(CommonUtil.floorHalf(filter.getEnd() + i), inLen - 1);
 
             for (int j = fStart; j <= fEnd; j++) {
-                outputImg.getData()[outStart + i * outStep] += filter.getData()[(2 * j) - i - filter.getStart()]
-                        * inputImg.getData()[inStart + j * inStep];
+                outputImg.addValue(outStart + i * outStep,
+                        filter.getData()[(2 * j) - i - filter.getStart()] * inputImg.getValue(inStart + j * inStep));
             }
         }
     }
@@ -396,7 +766,7 @@ public class DWTUtil {
             iStart = CommonUtil.mod(((2 * i) - fStart), inLen);
 
             for (int j = fStart; j <= fEnd; j++) {
-                outputImg.getData()[outStart + i * outStep] += filter.getData()[j - fStart] * inputImg.getData()[inStart + iStart * inStep];
+                outputImg.addValue(outStart + i * outStep, filter.getData()[j - fStart] * inputImg.getValue(inStart + iStart * inStep));
                 iStart--;
                 if (iStart < 0) {
                     iStart += inLen;
@@ -430,8 +800,8 @@ public class DWTUtil {
             iStart = CommonUtil.mod(fStart, inLen);
 
             for (int j = fStart; j <= fEnd; j++) {
-                outputImg.getData()[outStart + i * outStep] += filter.getData()[(2 * j) - i - filter.getStart()]
-                        * inputImg.getData()[inStart + iStart * inStep];
+                outputImg.addValue(outStart + i * outStep,
+                        filter.getData()[(2 * j) - i - filter.getStart()] * inputImg.getValue(inStart + iStart * inStep));
                 iStart++;
                 if (iStart >= inLen) {
                     iStart -= inLen;
@@ -477,7 +847,7 @@ public class DWTUtil {
                         continue;
                     }
                 }
-                outputImg.getData()[outStart + i * outStep] += filter.getData()[j - fStart] * inputImg.getData()[inStart + inPos * inStep];
+                outputImg.addValue(outStart + i * outStep, filter.getData()[j - fStart] * inputImg.getValue(inStart + inPos * inStep));
             }
         }
     }
@@ -527,8 +897,8 @@ public class DWTUtil {
                         continue;
                     }
                 }
-                outputImg.getData()[outStart + i * outStep] += filter.getData()[2 * j - i - filter.getStart()]
-                        * inputImg.getData()[inStart + inPos * inStep];
+                outputImg.addValue(outStart + i * outStep,
+                        filter.getData()[2 * j - i - filter.getStart()] * inputImg.getValue(inStart + inPos * inStep));
             }
         }
     }
@@ -542,6 +912,20 @@ public class DWTUtil {
      * @return Inverse transformed image data
      */
     public static Image inverseTransform(ImageTree tree, FilterGH[] filterGHList, int method) {
+        return inverseTransform(tree, filterGHList, method, 0);
+    }
+
+    /**
+     * Method to perform inverse wavelet transform with the given options. The lifting scheme is used for the levels
+     * which were transformed using it, irrespective of the options.
+     *
+     * @param tree Forward transformed DWT data
+     * @param filterGHList List of filters
+     * @param method Wavelet filter method
+     * @param options Combination of the <code>OPTION_XXX</code> flags
+     * @return Inverse transformed image data
+     */
+    public static Image inverseTransform(ImageTree tree, FilterGH[] filterGHList, int method, int options) {
         int width = 0;
         int height = 0;
         Image retImg = null;
@@ -551,19 +935,36 @@ public class DWTUtil {
         Image diagonalImg = null;
 
         if (tree.getImage() == null) {
-            coarseImg = inverseTransform(tree.getCoarse(), filterGHList, method);
-            horizontalImg = inverseTransform(tree.getHorizontal(), filterGHList, method);
-            verticalImg = inverseTransform(tree.getVertical(), filterGHList, method);
-            diagonalImg = inverseTransform(tree.getDiagonal(), filterGHList, method);
+            // Subtrees (WP) are reconstructed concurrently; plain subband images need no work
+            ImageTree[] subtrees = { tree.getCoarse(), tree.getHorizontal(), tree.getVertical(), tree.getDiagonal() };
+            Image[] subImgs = new Image[4];
+            int pending = 0;
+            for (ImageTree subtree : subtrees) {
+                pending += (subtree.getImage() == null) ? 1 : 0;
+            }
+            parallelStream(4, pending > 1 && (options & OPTION_PARALLEL) != 0 && ForkJoinPool.getCommonPoolParallelism() > 1).forEach(
+                k -> subImgs[k] = inverseTransform(subtrees[k], filterGHList, method, options));
+            coarseImg = subImgs[0];
+            horizontalImg = subImgs[1];
+            verticalImg = subImgs[2];
+            diagonalImg = subImgs[3];
 
             width = coarseImg.getWidth() + horizontalImg.getWidth();
             height = coarseImg.getHeight() + verticalImg.getHeight();
 
-            retImg = new Image(width, height);
+            retImg = newImage(width, height, (options & OPTION_SINGLE_PRECISION) != 0);
+            boolean parallel = isParallel(retImg, options);
 
-            if (tree.getFlag() == 0) // If flag is set it is a doubletree tiling
+            LiftingScheme scheme = null;
+            if (tree.isLifted() && method == Filter.METHOD_INVPERIODICAL && isSameSize(coarseImg, horizontalImg, verticalImg, diagonalImg)) {
+                scheme = LiftingScheme.getInstance(filterGHList[tree.getLevel()]);
+            }
+
+            if (tree.getFlag() == 0 && scheme != null) {
+                scheme.invDecomposition(retImg, coarseImg, horizontalImg, verticalImg, diagonalImg, parallel);
+            } else if (tree.getFlag() == 0) // If flag is set it is a doubletree tiling
             {
-                invDecomposition(retImg, coarseImg, horizontalImg, verticalImg, diagonalImg, filterGHList[tree.getLevel()], method);
+                invDecomposition(retImg, coarseImg, horizontalImg, verticalImg, diagonalImg, filterGHList[tree.getLevel()], method, parallel);
             } else {
                 copyIntoImage(retImg, coarseImg, 0, 0);
                 copyIntoImage(retImg, horizontalImg, coarseImg.getWidth(), 0);
@@ -571,11 +972,28 @@ public class DWTUtil {
                 copyIntoImage(retImg, diagonalImg, coarseImg.getWidth(), coarseImg.getHeight());
             }
 
+            // Release the reconstructed subtrees (but not the subband images of the tree)
+            for (int k = 0; k < subtrees.length; k++) {
+                if (subtrees[k].getImage() == null) {
+                    releaseImage(subImgs[k]);
+                }
+            }
             return retImg;
         }
         return tree.getImage();
     }
 
+    /**
+     * Method to check whether all the given subbands have the same size. This is not the case when the coarse image
+     * is reconstructed from a level with an odd size, in which case it is one sample larger.
+     */
+    private static boolean isSameSize(Image coarseImg, Image horizontalImg, Image verticalImg, Image diagonalImg) {
+        int w = coarseImg.getWidth();
+        int h = coarseImg.getHeight();
+        return horizontalImg.getWidth() == w && verticalImg.getWidth() == w && diagonalImg.getWidth() == w && horizontalImg.getHeight() == h
+                && verticalImg.getHeight() == h && diagonalImg.getHeight() == h;
+    }
+
     /**
      * Method to perform inverse decomposition
      *
@@ -589,7 +1007,26 @@ public class DWTUtil {
      */
     public static void invDecomposition(Image sumImg, Image coarseImg, Image horizontalImg, Image verticalImg, Image diagonalImg, FilterGH filterGH,
             int method) {
-        Image tempImg = null;
+        invDecomposition(sumImg, coarseImg, horizontalImg, verticalImg, diagonalImg, filterGH, method, false);
+    }
+
+    /**
+     * Method to perform inverse decomposition, optionally using multiple threads. The low pass and high pass halves are
+     * reconstructed concurrently, and then added to the sum image one after the other (so that the result is the same
+     * as without threads).
+     *
+     * @param sumImg Sum image
+     * @param coarseImg Coarse image
+     * @param horizontalImg Horizontal image
+     * @param verticalImg Vertical image
+     * @param diagonalImg Diagonal image
+     * @param filterGH Filter
+     * @param method Wavelet filter method
+     * @param parallel Whether to use multiple threads
+     */
+    public static void invDecomposition(Image sumImg, Image coarseImg, Image horizontalImg, Image verticalImg, Image diagonalImg, FilterGH filterGH,
+            int method, boolean parallel) {
+        Image[] tempImg = new Image[2];
         Filter filterG = null;
         Filter filterH = null;
 
@@ -601,21 +1038,109 @@ public class DWTUtil {
             filterH = filterGH.getHi();
         }
 
-        // Coarse
-        tempImg = new Image(coarseImg.getWidth(), sumImg.getHeight());
-        convoluteRows(tempImg, coarseImg, filterH, method);
+        Filter rowsG = filterG;
+        Filter rowsH = filterH;
+        parallelStream(2, parallel).forEach(half -> {
+            if (half == 0) {
+                // Coarse
+                tempImg[0] = newImage(coarseImg.getWidth(), sumImg.getHeight(), sumImg.isSinglePrecision());
+                convoluteRows(tempImg[0], coarseImg, rowsH, method, parallel);
 
-        // Horizontal
-        convoluteRows(tempImg, horizontalImg, filterG, method);
-        convoluteLines(sumImg, tempImg, filterH, method);
+                // Horizontal
+                convoluteRows(tempImg[0], horizontalImg, rowsG, method, parallel);
+            } else {
+                // Vertical
+                tempImg[1] = newImage(verticalImg.getWidth(), sumImg.getHeight(), sumImg.isSinglePrecision());
+                convoluteRows(tempImg[1], verticalImg, rowsH, method, parallel);
 
-        // Vertical
-        tempImg = new Image(verticalImg.getWidth(), sumImg.getHeight());
-        convoluteRows(tempImg, verticalImg, filterH, method);
+                // Diagonal
+                convoluteRows(tempImg[1], diagonalImg, rowsG, method, parallel);
+            }
+        });
 
-        // Diagonal
-        convoluteRows(tempImg, diagonalImg, filterG, method);
-        convoluteLines(sumImg, tempImg, filterG, method);
+        convoluteLines(sumImg, tempImg[0], filterH, method, parallel);
+        convoluteLines(sumImg, tempImg[1], filterG, method, parallel);
+        releaseImage(tempImg[0]);
+        releaseImage(tempImg[1]);
+    }
+
+    /**
+     * Method to create an image (with all samples set to zero) using a buffer from the scratch arena of the current
+     * thread. The image can be returned to the arena using {@link #releaseImage(Image)} once it is no longer used.
+     *
+     * @param width Image width
+     * @param height Image height
+     * @return Image
+     */
+    public static Image newImage(int width, int height) {
+        return newImage(width, height, false);
+    }
+
+    /**
+     * Method to create an image of the given precision (with all samples set to zero) using a buffer from the scratch
+     * arena of the current thread
+     *
+     * @param width Image width
+     * @param height Image height
+     * @param singlePrecision Whether the samples are to be stored in single precision
+     * @return Image
+     */
+    public static Image newImage(int width, int height, boolean singlePrecision) {
+        if (singlePrecision) {
+            return new Image(width, height, ScratchArena.get().getFloats(width * height, true));
+        }
+        return new Image(width, height, ScratchArena.get().getDoubles(width * height, true));
+    }
+
+    /**
+     * Method to return the buffer of an image to the scratch arena of the current thread. The image must not be used
+     * afterwards.
+     *
+     * @param image Image (ignored if <code>null</code> or if it is a view of another image)
+     */
+    public static void releaseImage(Image image) {
+        if (image != null && !image.isView()) {
+            ScratchArena.get().release(image.getData());
+            ScratchArena.get().release(image.getFloatData());
+            image.setData(null);
+            image.setFloatData(null);
+        }
+    }
+
+    /**
+     * Method to copy an image into a new image (of the same precision) from the scratch arena
+     *
+     * @param image Image to be copied
+     * @return Copy of the image
+     */
+    public static Image copyImage(Image image) {
+        int size = image.getWidth() * image.getHeight();
+        Image copy = null;
+        if (image.isSinglePrecision()) {
+            copy = new Image(image.getWidth(), image.getHeight(), ScratchArena.get().getFloats(size, false));
+        } else {
+            copy = new Image(image.getWidth(), image.getHeight(), ScratchArena.get().getDoubles(size, false));
+        }
+        for (int y = 0; y < image.getHeight(); y++) {
+            System.arraycopy(image.getBuffer(), image.getOffset() + y * image.getStride(), copy.getBuffer(), y * image.getWidth(), image.getWidth());
+        }
+        return copy;
+    }
+
+    /**
+     * Check whether the given image is to be processed using multiple threads (never on a single processor)
+     */
+    private static boolean isParallel(Image image, int options) {
+        return (options & OPTION_PARALLEL) != 0 && (long) image.getWidth() * image.getHeight() >= PARALLEL_MIN_SAMPLES
+                && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    /**
+     * Get a stream over the given number of tasks, parallel if requested
+     */
+    private static IntStream parallelStream(int tasks, boolean parallel) {
+        IntStream stream = IntStream.range(0, tasks);
+        return parallel ? stream.parallel() : stream;
     }
 
     /**
@@ -649,7 +1174,7 @@ public class DWTUtil {
      */
     public static void setPixel(Image image, int x, int y, double val) {
         if (!(image == null || x < 0 || x >= image.getWidth() || y < 0 || y >= image.getHeight())) {
-            image.getData()[x + (y * image.getWidth())] = val;
+            image.setValue(x + (y * image.getStride()), val);
         }
     }
 
@@ -665,7 +1190,7 @@ public class DWTUtil {
         if (image == null || x < 0 || x >= image.getWidth() || y < 0 || y >= image.getHeight()) {
             return 0.0;
         } else {
-            return image.getData()[x + y * image.getWidth()];
+            return image.getValue(x + y * image.getStride());
         }
     }
 
@@ -678,19 +1203,15 @@ public class DWTUtil {
      * @param y Y position in output image
      */
     private static void copyIntoImage(Image img1, Image img2, int x, int y) {
-        int count = 0;
         int start = 0;
         int aim = 0;
-        double[] temp = null;
 
-        temp = img2.getData();
-        start = img1.getWidth() * y + x;
+        start = img1.getStride() * y + x;
 
         for (int i = 0; i < img2.getHeight(); i++) {
             for (int j = 0; j < img2.getWidth(); j++) {
-                aim = start + j + img1.getWidth() * i;
-                img1.getData()[aim] = temp[count];
-                count++;
+                aim = start + j + img1.getStride() * i;
+                img1.setValue(aim, img2.getValue(j + img2.getStride() * i));
             }
         }
     }
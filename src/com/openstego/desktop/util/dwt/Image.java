@@ -7,7 +7,13 @@
 package com.openstego.desktop.util.dwt;
 
 /**
- * Object to store Image data
+ * Object to store Image data. The samples are stored either in double precision (the default), or in single
+ * precision to halve the memory used by large transforms; exactly one of {@link #getData()} and
+ * {@link #getFloatData()} is non-null.
+ * <p>
+ * An image can also be a view of a rectangle of another image (see {@link #getView(int, int, int, int)}), sharing its
+ * data: the sample at (x, y) is then at <code>offset + x + y * stride</code> in the data array. For other images, the
+ * offset is zero and the stride is the width.
  */
 public class Image {
     /**
@@ -15,6 +21,11 @@ public class Image {
      */
     private double[] data = null;
 
+    /**
+     * Image data in single precision
+     */
+    private float[] floatData = null;
+
     /**
      * Image width
      */
@@ -25,6 +36,21 @@ public class Image {
      */
     int height = 0;
 
+    /**
+     * Index of the first sample in the data array
+     */
+    private int offset = 0;
+
+    /**
+     * Distance between two rows in the data array
+     */
+    private int stride = 0;
+
+    /**
+     * Flag to indicate whether the data array belongs to another image
+     */
+    private boolean view = false;
+
     /**
      * Default constructor
      *
@@ -32,9 +58,109 @@ public class Image {
      * @param height Height of the image
      */
     public Image(int width, int height) {
-        this.data = new double[width * height];
+        this(width, height, new double[width * height]);
+    }
+
+    /**
+     * Constructor using the given data buffer
+     *
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param data Image data, in row-major order (can be longer than needed)
+     */
+    public Image(int width, int height, double[] data) {
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.stride = width;
+    }
+
+    /**
+     * Constructor for a single precision image using the given data buffer
+     *
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param data Image data, in row-major order (can be longer than needed)
+     */
+    public Image(int width, int height, float[] data) {
+        this.floatData = data;
         this.width = width;
         this.height = height;
+        this.stride = width;
+    }
+
+    /**
+     * Method to get a view of a rectangle of this image. The view shares the data of this image, so that the changes
+     * made through one are seen by the other.
+     *
+     * @param x X position of the rectangle
+     * @param y Y position of the rectangle
+     * @param width Width of the rectangle
+     * @param height Height of the rectangle
+     * @return View of the rectangle
+     */
+    public Image getView(int x, int y, int width, int height) {
+        Image image = (this.floatData != null) ? new Image(width, height, this.floatData) : new Image(width, height, this.data);
+        image.offset = this.offset + x + y * this.stride;
+        image.stride = this.stride;
+        image.view = true;
+        return image;
+    }
+
+    /**
+     * Method to check whether the samples are stored in single precision
+     *
+     * @return true if the image is backed by {@link #getFloatData()}
+     */
+    public boolean isSinglePrecision() {
+        return this.floatData != null;
+    }
+
+    /**
+     * Method to get the value of a sample, whatever the precision of the image
+     *
+     * @param index Index of the sample (<code>x + y * stride</code>)
+     * @return Sample value
+     */
+    public double getValue(int index) {
+        return (this.floatData != null) ? this.floatData[this.offset + index] : this.data[this.offset + index];
+    }
+
+    /**
+     * Method to set the value of a sample, whatever the precision of the image
+     *
+     * @param index Index of the sample (<code>x + y * stride</code>)
+     * @param value Sample value
+     */
+    public void setValue(int index, double value) {
+        if (this.floatData != null) {
+            this.floatData[this.offset + index] = (float) value;
+        } else {
+            this.data[this.offset + index] = value;
+        }
+    }
+
+    /**
+     * Method to add to the value of a sample, whatever the precision of the image
+     *
+     * @param index Index of the sample (<code>x + y * stride</code>)
+     * @param value Value to be added
+     */
+    public void addValue(int index, double value) {
+        if (this.floatData != null) {
+            this.floatData[this.offset + index] += value;
+        } else {
+            this.data[this.offset + index] += value;
+        }
+    }
+
+    /**
+     * Get the data of the image as double[] or float[], depending on its precision
+     *
+     * @return Image data
+     */
+    Object getBuffer() {
+        return (this.floatData != null) ? this.floatData : this.data;
     }
 
     /**
@@ -55,6 +181,24 @@ public class Image {
         this.data = data;
     }
 
+    /**
+     * Get method for floatData
+     *
+     * @return floatData
+     */
+    public float[] getFloatData() {
+        return this.floatData;
+    }
+
+    /**
+     * Set method for floatData
+     *
+     * @param floatData
+     */
+    public void setFloatData(float[] floatData) {
+        this.floatData = floatData;
+    }
+
     /**
      * Get method for width
      *
@@ -71,6 +215,9 @@ public class Image {
      */
     public void setWidth(int width) {
         this.width = width;
+        if (!this.view) {
+            this.stride = width;
+        }
     }
 
     /**
@@ -90,4 +237,31 @@ public class Image {
     public void setHeight(int height) {
         this.height = height;
     }
-}
\ No newline at end of file
+
+    /**
+     * Get method for offset
+     *
+     * @return offset
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * Get method for stride
+     *
+     * @return stride
+     */
+    public int getStride() {
+        return this.stride;
+    }
+
+    /**
+     * Get method for view
+     *
+     * @return view
+     */
+    public boolean isView() {
+        return this.view;
+    }
+}
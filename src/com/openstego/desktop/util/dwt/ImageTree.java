@@ -28,6 +28,10 @@ public class ImageTree {
 
     private int flag = 0;
 
+    private boolean lifted = false;
+
+    private Image coefficients = null;
+
     /**
      * Get method for entropy
      *
@@ -189,4 +193,58 @@ public class ImageTree {
     public void setFlag(int flag) {
         this.flag = flag;
     }
-}
\ No newline at end of file
+
+    /**
+     * Get method for lifted (whether the subbands of this node were computed using the lifting scheme)
+     *
+     * @return lifted
+     */
+    public boolean isLifted() {
+        return this.lifted;
+    }
+
+    /**
+     * Set method for lifted
+     *
+     * @param lifted
+     */
+    public void setLifted(boolean lifted) {
+        this.lifted = lifted;
+    }
+
+    /**
+     * Get method for coefficients. This is only set for the root of a tree returned by
+     * {@link DWTUtil#waveletTransform(Image, int, FilterGH[], int, int)}: it holds the coefficients of all the levels in
+     * Mallat layout, and the images of the subtrees are views into it.
+     *
+     * @return coefficients
+     */
+    public Image getCoefficients() {
+        return this.coefficients;
+    }
+
+    /**
+     * Set method for coefficients
+     *
+     * @param coefficients
+     */
+    public void setCoefficients(Image coefficients) {
+        this.coefficients = coefficients;
+    }
+
+    /**
+     * Method to return the images of this tree and of all its subtrees to the scratch arena of the current thread. The
+     * tree must not be used afterwards.
+     */
+    public void release() {
+        DWTUtil.releaseImage(this.image);
+        DWTUtil.releaseImage(this.coefficients);
+        this.image = null;
+        this.coefficients = null;
+        for (ImageTree subtree : new ImageTree[] { this.coarse, this.horizontal, this.vertical, this.diagonal, this.doubleTree }) {
+            if (subtree != null) {
+                subtree.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,620 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util.dwt;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import com.openstego.desktop.util.ScratchArena;
+
+/**
+ * Lifting scheme implementation of the periodical wavelet transform for symmetric biorthogonal filters.
+ * <p>
+ * A filter pair is factored into a short sequence of predict steps (odd samples updated from their two even
+ * neighbours) and update steps (even samples updated from their two odd neighbours), followed by scaling. This needs
+ * about half the arithmetic of the convolution in {@link DWTUtil}, works in place on the even/odd halves of a line,
+ * and is exactly invertible.
+ * <p>
+ * The factorisations are not read from the filter file. Instead, each known factorisation is expanded back into its
+ * equivalent filter taps, and matched against the taps of the {@link FilterGH}; the scale factors and the alignment of
+ * the low and high pass outputs are derived from the match. Filters which do not match any factorisation are handled
+ * by convolution.
+ */
+public class LiftingScheme {
+    /**
+     * Known factorisations (lifting coefficients, starting with a predict step and alternating)
+     */
+    private static final double[][] FACTORISATIONS = {
+            // LeGall 5/3
+            { -0.5, 0.25 },
+            // Cohen-Daubechies-Feauveau 9/7
+            { -1.586134342059924, -0.052980118572961, 0.882911075530934, 0.443506852043971 } };
+
+    /**
+     * Maximum difference allowed between the filter taps and the taps of a factorisation
+     */
+    private static final double TAP_TOLERANCE = 1e-5;
+
+    /**
+     * Length of the test signal used to expand a factorisation into filter taps
+     */
+    private static final int PROBE_LENGTH = 64;
+
+    /**
+     * Range of tap offsets compared while matching a factorisation
+     */
+    private static final int PROBE_RANGE = 24;
+
+    /**
+     * Number of lines transformed by one parallel task
+     */
+    private static final int LINES_PER_TASK = 32;
+
+    /**
+     * Cache of lifting schemes per filter ID (empty if the filter cannot be factored)
+     */
+    private static final Map<Integer, Optional<LiftingScheme>> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Lifting coefficients
+     */
+    private double[] steps = null;
+
+    /**
+     * Scale factor for the low pass output
+     */
+    private double lowScale = 1.0;
+
+    /**
+     * Scale factor for the high pass output
+     */
+    private double highScale = 1.0;
+
+    /**
+     * Shift between the low pass output and the lifted even samples
+     */
+    private int lowShift = 0;
+
+    /**
+     * Shift between the high pass output and the lifted odd samples
+     */
+    private int highShift = 0;
+
+    /**
+     * Private constructor. Use {@link #getInstance(FilterGH)} to get an instance.
+     */
+    private LiftingScheme(double[] steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * Method to get the lifting scheme for the given filter
+     *
+     * @param filterGH Filter
+     * @return Lifting scheme, or <code>null</code> if the filter cannot be factored
+     */
+    public static LiftingScheme getInstance(FilterGH filterGH) {
+        if (filterGH == null || filterGH.getType() != FilterGH.TYPE_BIORTHOGONAL || filterGH.getId() == null) {
+            return null;
+        }
+        return cache.computeIfAbsent(filterGH.getId(), id -> Optional.ofNullable(factor(filterGH))).orElse(null);
+    }
+
+    /**
+     * Method to check whether an image of the given size can be transformed using lifting. Only even sizes are
+     * supported, as for odd sizes the periodical convolution does not split the samples evenly.
+     *
+     * @param width Image width
+     * @param height Image height
+     * @return Flag
+     */
+    public static boolean isSupportedSize(int width, int height) {
+        return width >= 2 && height >= 2 && width % 2 == 0 && height % 2 == 0;
+    }
+
+    /**
+     * Method to decompose the image into the four subbands. This gives the same result as
+     * {@link DWTUtil#decomposition(Image, Image, Image, Image, Image, Filter, Filter, int)} with the periodical
+     * method, within the precision of the filter taps.
+     *
+     * @param inputImg Input image (of even width and height)
+     * @param coarseImg Coarse image
+     * @param horizontalImg Horizontal image
+     * @param verticalImg Vertical image
+     * @param diagonalImg Diagonal image
+     */
+    public void decomposition(Image inputImg, Image coarseImg, Image horizontalImg, Image verticalImg, Image diagonalImg) {
+        decomposition(inputImg, coarseImg, horizontalImg, verticalImg, diagonalImg, false);
+    }
+
+    /**
+     * Method to decompose the image into the four subbands, optionally using multiple threads (each thread
+     * transforming a band of lines, and then a band of rows)
+     *
+     * @param inputImg Input image (of even width and height)
+     * @param coarseImg Coarse image
+     * @param horizontalImg Horizontal image
+     * @param verticalImg Vertical image
+     * @param diagonalImg Diagonal image
+     * @param parallel Whether to use multiple threads
+     */
+    public void decomposition(Image inputImg, Image coarseImg, Image horizontalImg, Image verticalImg, Image diagonalImg, boolean parallel) {
+        int width = inputImg.getWidth();
+        int height = inputImg.getHeight();
+        int halfWidth = width / 2;
+        Object in = inputImg.getBuffer();
+        int inOffset = inputImg.getOffset();
+        int inStride = inputImg.getStride();
+        double[] low = ScratchArena.get().getDoubles(halfWidth * height, false);
+        double[] high = ScratchArena.get().getDoubles(halfWidth * height, false);
+
+        // Lines
+        forEachBand(height, parallel, (from, to, even, odd) -> {
+            for (int y = from; y < to; y++) {
+                forward(in, inOffset + y * inStride, 1, width, low, high, y * halfWidth, y * halfWidth, 1, 1, even, odd);
+            }
+        }, width);
+
+        // Rows
+        forEachBand(halfWidth, parallel, (from, to, even, odd) -> {
+            for (int x = from; x < to; x++) {
+                forward(low, x, halfWidth, height, coarseImg.getBuffer(), horizontalImg.getBuffer(), coarseImg.getOffset() + x,
+                        horizontalImg.getOffset() + x, coarseImg.getStride(), horizontalImg.getStride(), even, odd);
+                forward(high, x, halfWidth, height, verticalImg.getBuffer(), diagonalImg.getBuffer(), verticalImg.getOffset() + x,
+                        diagonalImg.getOffset() + x, verticalImg.getStride(), diagonalImg.getStride(), even, odd);
+            }
+        }, height);
+        ScratchArena.get().release(low);
+        ScratchArena.get().release(high);
+    }
+
+    /**
+     * Method to decompose the image, storing only the coarse subband. The detail subbands are computed in strips of
+     * adjacent columns which are handed to the visitor, and their values are the same as the ones computed by
+     * {@link #decomposition(Image, Image, Image, Image, Image, boolean)}.
+     *
+     * @param inputImg Input image (of even width and height)
+     * @param coarseImg Coarse image
+     * @param level Decomposition level passed to the visitor
+     * @param stripWidth Maximum number of columns of a strip
+     * @param parallel Whether to use multiple threads (each thread transforming a band of lines, and then strips)
+     * @param visitor Visitor for the detail subbands
+     */
+    public void visitDecomposition(Image inputImg, Image coarseImg, int level, int stripWidth, boolean parallel, SubBandVisitor visitor) {
+        int width = inputImg.getWidth();
+        int height = inputImg.getHeight();
+        int halfWidth = width / 2;
+        Object in = inputImg.getBuffer();
+        int inOffset = inputImg.getOffset();
+        int inStride = inputImg.getStride();
+        double[] low = ScratchArena.get().getDoubles(halfWidth * height, false);
+        double[] high = ScratchArena.get().getDoubles(halfWidth * height, false);
+        int strips = (halfWidth + stripWidth - 1) / stripWidth;
+
+        // Lines
+        forEachBand(height, parallel, (from, to, even, odd) -> {
+            for (int y = from; y < to; y++) {
+                forward(in, inOffset + y * inStride, 1, width, low, high, y * halfWidth, y * halfWidth, 1, 1, even, odd);
+            }
+        }, width);
+
+        // Rows, one strip of columns at a time
+        IntStream tasks = IntStream.range(0, strips);
+        (parallel ? tasks.parallel() : tasks).forEach(strip -> {
+            ScratchArena arena = ScratchArena.get();
+            double[] even = arena.getDoubles(height / 2, false);
+            double[] odd = arena.getDoubles(height / 2, false);
+            int x0 = strip * stripWidth;
+            int w = Math.min(stripWidth, halfWidth - x0);
+            Image horizontalImg = DWTUtil.newImage(w, height / 2, coarseImg.isSinglePrecision());
+            Image verticalImg = DWTUtil.newImage(w, height / 2, coarseImg.isSinglePrecision());
+            Image diagonalImg = DWTUtil.newImage(w, height / 2, coarseImg.isSinglePrecision());
+
+            for (int x = x0; x < x0 + w; x++) {
+                forward(low, x, halfWidth, height, coarseImg.getBuffer(), horizontalImg.getBuffer(), coarseImg.getOffset() + x, x - x0,
+                        coarseImg.getStride(), w, even, odd);
+                forward(high, x, halfWidth, height, verticalImg.getBuffer(), diagonalImg.getBuffer(), x - x0, x - x0, w, w, even, odd);
+            }
+            visitor.visit(level, SubBandVisitor.HORIZONTAL, horizontalImg, x0, halfWidth);
+            visitor.visit(level, SubBandVisitor.VERTICAL, verticalImg, x0, halfWidth);
+            visitor.visit(level, SubBandVisitor.DIAGONAL, diagonalImg, x0, halfWidth);
+
+            DWTUtil.releaseImage(horizontalImg);
+            DWTUtil.releaseImage(verticalImg);
+            DWTUtil.releaseImage(diagonalImg);
+            arena.release(even);
+            arena.release(odd);
+        });
+        ScratchArena.get().release(low);
+        ScratchArena.get().release(high);
+    }
+
+    /**
+     * Method to compute only the coarse subband of the decomposition. The lines are transformed as for
+     * {@link #decomposition(Image, Image, Image, Image, Image, boolean)} (the lifting steps need both halves), but only
+     * the low pass half of the lines is transformed along the rows. The coarse image is the same as the one computed by
+     * the full decomposition.
+     *
+     * @param inputImg Input image (of even width and height)
+     * @param coarseImg Coarse image
+     * @param parallel Whether to use multiple threads
+     */
+    public void coarseDecomposition(Image inputImg, Image coarseImg, boolean parallel) {
+        int width = inputImg.getWidth();
+        int height = inputImg.getHeight();
+        int halfWidth = width / 2;
+        Object in = inputImg.getBuffer();
+        int inOffset = inputImg.getOffset();
+        int inStride = inputImg.getStride();
+        double[] low = ScratchArena.get().getDoubles(halfWidth * height, false);
+
+        // Lines (the high pass outputs of a line are written to a scratch line)
+        forEachBand(height, parallel, (from, to, even, odd) -> {
+            double[] high = ScratchArena.get().getDoubles(halfWidth, false);
+            for (int y = from; y < to; y++) {
+                forward(in, inOffset + y * inStride, 1, width, low, high, y * halfWidth, 0, 1, 1, even, odd);
+            }
+            ScratchArena.get().release(high);
+        }, width);
+
+        // Rows of the low pass half only (the scratch column must be of the same precision as the coarse image)
+        forEachBand(halfWidth, parallel, (from, to, even, odd) -> {
+            ScratchArena arena = ScratchArena.get();
+            float[] floatHigh = coarseImg.isSinglePrecision() ? arena.getFloats(height / 2, false) : null;
+            double[] high = coarseImg.isSinglePrecision() ? null : arena.getDoubles(height / 2, false);
+            for (int x = from; x < to; x++) {
+                forward(low, x, halfWidth, height, coarseImg.getBuffer(), coarseImg.isSinglePrecision() ? floatHigh : high, coarseImg.getOffset() + x,
+                        0, coarseImg.getStride(), 1, even, odd);
+            }
+            arena.release(floatHigh);
+            arena.release(high);
+        }, height);
+        ScratchArena.get().release(low);
+    }
+
+    /**
+     * Method to reconstruct the image from the four subbands. This is the exact inverse of
+     * {@link #decomposition(Image, Image, Image, Image, Image)}. Unlike
+     * {@link DWTUtil#invDecomposition(Image, Image, Image, Image, Image, FilterGH, int)}, the output values are
+     * overwritten, not added to.
+     *
+     * @param sumImg Output image (of twice the width and height of the subbands)
+     * @param coarseImg Coarse image
+     * @param horizontalImg Horizontal image
+     * @param verticalImg Vertical image
+     * @param diagonalImg Diagonal image
+     */
+    public void invDecomposition(Image sumImg, Image coarseImg, Image horizontalImg, Image verticalImg, Image diagonalImg) {
+        invDecomposition(sumImg, coarseImg, horizontalImg, verticalImg, diagonalImg, false);
+    }
+
+    /**
+     * Method to reconstruct the image from the four subbands, optionally using multiple threads
+     *
+     * @param sumImg Output image (of twice the width and height of the subbands)
+     * @param coarseImg Coarse image
+     * @param horizontalImg Horizontal image
+     * @param verticalImg Vertical image
+     * @param diagonalImg Diagonal image
+     * @param parallel Whether to use multiple threads
+     */
+    public void invDecomposition(Image sumImg, Image coarseImg, Image horizontalImg, Image verticalImg, Image diagonalImg, boolean parallel) {
+        int width = sumImg.getWidth();
+        int height = sumImg.getHeight();
+        int halfWidth = width / 2;
+        Object out = sumImg.getBuffer();
+        int outOffset = sumImg.getOffset();
+        int outStride = sumImg.getStride();
+        double[] low = ScratchArena.get().getDoubles(halfWidth * height, false);
+        double[] high = ScratchArena.get().getDoubles(halfWidth * height, false);
+
+        // Rows
+        forEachBand(halfWidth, parallel, (from, to, even, odd) -> {
+            for (int x = from; x < to; x++) {
+                inverse(coarseImg.getBuffer(), horizontalImg.getBuffer(), coarseImg.getOffset() + x, horizontalImg.getOffset() + x,
+                        coarseImg.getStride(), horizontalImg.getStride(), low, x, halfWidth, height, even, odd);
+                inverse(verticalImg.getBuffer(), diagonalImg.getBuffer(), verticalImg.getOffset() + x, diagonalImg.getOffset() + x,
+                        verticalImg.getStride(), diagonalImg.getStride(), high, x, halfWidth, height, even, odd);
+            }
+        }, height);
+
+        // Lines
+        forEachBand(height, parallel, (from, to, even, odd) -> {
+            for (int y = from; y < to; y++) {
+                inverse(low, high, y * halfWidth, y * halfWidth, 1, 1, out, outOffset + y * outStride, 1, width, even, odd);
+            }
+        }, width);
+        ScratchArena.get().release(low);
+        ScratchArena.get().release(high);
+    }
+
+    /**
+     * Run the given task over bands of lines, with scratch buffers for lines of the given length
+     */
+    private static void forEachBand(int count, boolean parallel, BandTask task, int lineLength) {
+        int bandSize = parallel ? LINES_PER_TASK : Math.max(count, 1);
+        IntStream bands = IntStream.range(0, (count + bandSize - 1) / bandSize);
+        (parallel ? bands.parallel() : bands).forEach(band -> {
+            ScratchArena arena = ScratchArena.get();
+            double[] even = arena.getDoubles(lineLength / 2, false);
+            double[] odd = arena.getDoubles(lineLength / 2, false);
+            task.run(band * bandSize, Math.min(count, (band + 1) * bandSize), even, odd);
+            arena.release(even);
+            arena.release(odd);
+        });
+    }
+
+    /**
+     * Forward transform of one line of samples. The data arrays are double[] or float[]; the lifting steps are always
+     * computed in double precision.
+     *
+     * @param in Input data
+     * @param inStart Index of the first input sample
+     * @param inStep Step between input samples
+     * @param len Number of input samples (even)
+     * @param low Low pass output data
+     * @param high High pass output data
+     * @param lowStart Index of the first low pass output sample
+     * @param highStart Index of the first high pass output sample
+     * @param lowStep Step between low pass output samples
+     * @param highStep Step between high pass output samples
+     * @param even Scratch buffer for the even samples
+     * @param odd Scratch buffer for the odd samples
+     */
+    private void forward(Object in, int inStart, int inStep, int len, Object low, Object high, int lowStart, int highStart, int lowStep,
+            int highStep, double[] even, double[] odd) {
+        int half = len / 2;
+        if (in instanceof double[]) {
+            double[] data = (double[]) in;
+            for (int m = 0, pos = inStart; m < half; m++, pos += 2 * inStep) {
+                even[m] = data[pos];
+                odd[m] = data[pos + inStep];
+            }
+        } else {
+            float[] data = (float[]) in;
+            for (int m = 0, pos = inStart; m < half; m++, pos += 2 * inStep) {
+                even[m] = data[pos];
+                odd[m] = data[pos + inStep];
+            }
+        }
+
+        for (int s = 0; s < this.steps.length; s++) {
+            if (s % 2 == 0) {
+                predict(even, odd, half, this.steps[s]);
+            } else {
+                update(even, odd, half, this.steps[s]);
+            }
+        }
+
+        if (low instanceof double[]) {
+            double[] lowData = (double[]) low;
+            double[] highData = (double[]) high;
+            for (int i = 0, l = lowStart, h = highStart; i < half; i++, l += lowStep, h += highStep) {
+                lowData[l] = this.lowScale * even[wrap(i + this.lowShift, half)];
+                highData[h] = this.highScale * odd[wrap(i + this.highShift, half)];
+            }
+        } else {
+            float[] lowData = (float[]) low;
+            float[] highData = (float[]) high;
+            for (int i = 0, l = lowStart, h = highStart; i < half; i++, l += lowStep, h += highStep) {
+                lowData[l] = (float) (this.lowScale * even[wrap(i + this.lowShift, half)]);
+                highData[h] = (float) (this.highScale * odd[wrap(i + this.highShift, half)]);
+            }
+        }
+    }
+
+    /**
+     * Inverse transform of one line of samples. As for the forward transform, the data arrays are double[] or
+     * float[].
+     *
+     * @param low Low pass input data
+     * @param high High pass input data
+     * @param lowStart Index of the first low pass input sample
+     * @param highStart Index of the first high pass input sample
+     * @param lowStep Step between low pass input samples
+     * @param highStep Step between high pass input samples
+     * @param out Output data
+     * @param outStart Index of the first output sample
+     * @param outStep Step between output samples
+     * @param len Number of output samples (even)
+     * @param even Scratch buffer for the even samples
+     * @param odd Scratch buffer for the odd samples
+     */
+    private void inverse(Object low, Object high, int lowStart, int highStart, int lowStep, int highStep, Object out, int outStart, int outStep,
+            int len, double[] even, double[] odd) {
+        int half = len / 2;
+        if (low instanceof double[]) {
+            double[] lowData = (double[]) low;
+            double[] highData = (double[]) high;
+            for (int i = 0, l = lowStart, h = highStart; i < half; i++, l += lowStep, h += highStep) {
+                even[wrap(i + this.lowShift, half)] = lowData[l] / this.lowScale;
+                odd[wrap(i + this.highShift, half)] = highData[h] / this.highScale;
+            }
+        } else {
+            float[] lowData = (float[]) low;
+            float[] highData = (float[]) high;
+            for (int i = 0, l = lowStart, h = highStart; i < half; i++, l += lowStep, h += highStep) {
+                even[wrap(i + this.lowShift, half)] = lowData[l] / this.lowScale;
+                odd[wrap(i + this.highShift, half)] = highData[h] / this.highScale;
+            }
+        }
+
+        for (int s = this.steps.length - 1; s >= 0; s--) {
+            if (s % 2 == 0) {
+                predict(even, odd, half, -this.steps[s]);
+            } else {
+                update(even, odd, half, -this.steps[s]);
+            }
+        }
+
+        if (out instanceof double[]) {
+            double[] data = (double[]) out;
+            for (int m = 0, pos = outStart; m < half; m++, pos += 2 * outStep) {
+                data[pos] = even[m];
+                data[pos + outStep] = odd[m];
+            }
+        } else {
+            float[] data = (float[]) out;
+            for (int m = 0, pos = outStart; m < half; m++, pos += 2 * outStep) {
+                data[pos] = (float) even[m];
+                data[pos + outStep] = (float) odd[m];
+            }
+        }
+    }
+
+    /**
+     * Predict step: odd[m] += c * (even[m] + even[m + 1]), with periodical extension
+     */
+    private static void predict(double[] even, double[] odd, int half, double c) {
+        for (int m = 0; m < half - 1; m++) {
+            odd[m] += c * (even[m] + even[m + 1]);
+        }
+        odd[half - 1] += c * (even[half - 1] + even[0]);
+    }
+
+    /**
+     * Update step: even[m] += c * (odd[m - 1] + odd[m]), with periodical extension
+     */
+    private static void update(double[] even, double[] odd, int half, double c) {
+        even[0] += c * (odd[half - 1] + odd[0]);
+        for (int m = 1; m < half; m++) {
+            even[m] += c * (odd[m - 1] + odd[m]);
+        }
+    }
+
+    /**
+     * Task transforming a band of lines
+     */
+    private interface BandTask {
+        /**
+         * Transform the lines from <code>from</code> (inclusive) to <code>to</code> (exclusive)
+         */
+        void run(int from, int to, double[] even, double[] odd);
+    }
+
+    private static int wrap(int i, int n) {
+        int r = i % n;
+        return (r < 0) ? r + n : r;
+    }
+
+    /**
+     * Find a factorisation matching the analysis filters (H and G) of the given filter
+     *
+     * @return Lifting scheme, or <code>null</code> if no factorisation matches
+     */
+    private static LiftingScheme factor(FilterGH filterGH) {
+        for (double[] steps : FACTORISATIONS) {
+            LiftingScheme scheme = new LiftingScheme(steps);
+
+            // Taps of the unscaled lifted outputs: even[m] = sum(lowTaps[k] * x[2m + k]), same for odd
+            double[] lowTaps = new double[2 * PROBE_RANGE + 1];
+            double[] highTaps = new double[2 * PROBE_RANGE + 1];
+            scheme.probe(lowTaps, highTaps);
+
+            Integer lowShift = match(filterGH.getH(), lowTaps);
+            Integer highShift = match(filterGH.getG(), highTaps);
+            if (lowShift != null && highShift != null) {
+                scheme.lowShift = lowShift;
+                scheme.highShift = highShift;
+                scheme.lowScale = scale(filterGH.getH(), lowTaps, lowShift);
+                scheme.highScale = scale(filterGH.getG(), highTaps, highShift);
+                return scheme;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Expand the (unscaled) lifting steps into filter taps, by transforming unit impulses
+     */
+    private void probe(double[] lowTaps, double[] highTaps) {
+        int half = PROBE_LENGTH / 2;
+        double[] even = new double[half];
+        double[] odd = new double[half];
+
+        for (int p = PROBE_LENGTH / 2; p <= PROBE_LENGTH / 2 + 1; p++) {
+            Arrays.fill(even, 0.0);
+            Arrays.fill(odd, 0.0);
+            if (p % 2 == 0) {
+                even[p / 2] = 1.0;
+            } else {
+                odd[p / 2] = 1.0;
+            }
+            for (int s = 0; s < this.steps.length; s++) {
+                if (s % 2 == 0) {
+                    predict(even, odd, half, this.steps[s]);
+                } else {
+                    update(even, odd, half, this.steps[s]);
+                }
+            }
+            // Impulse at p: even[m] = lowTaps[p - 2m], odd[m] = highTaps[p - 2m]
+            for (int m = 0; m < half; m++) {
+                int k = p - 2 * m;
+                if (Math.abs(k) <= PROBE_RANGE) {
+                    lowTaps[k + PROBE_RANGE] = even[m];
+                    highTaps[k + PROBE_RANGE] = odd[m];
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the shift with which the scaled taps match the filter. The convolution output is
+     * out[i] = sum(f[j] * x[2i - j]), which must equal scale * lifted[i + shift].
+     *
+     * @return Shift, or <code>null</code> if the taps do not match
+     */
+    private static Integer match(Filter filter, double[] taps) {
+        for (int shift = -2; shift <= 2; shift++) {
+            double scale = scale(filter, taps, shift);
+            if (Double.isNaN(scale)) {
+                continue;
+            }
+
+            boolean ok = true;
+            for (int k = -PROBE_RANGE + 4; k <= PROBE_RANGE - 4 && ok; k++) {
+                ok = Math.abs(filterTap(filter, k) - scale * lifted(taps, k - 2 * shift)) <= TAP_TOLERANCE;
+            }
+            if (ok) {
+                return shift;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Scale factor between the filter and the lifted taps for the given shift, using the largest filter tap
+     */
+    private static double scale(Filter filter, double[] taps, int shift) {
+        int best = 0;
+        for (int k = -filter.getEnd(); k <= -filter.getStart(); k++) {
+            if (Math.abs(filterTap(filter, k)) > Math.abs(filterTap(filter, best))) {
+                best = k;
+            }
+        }
+        double t = lifted(taps, best - 2 * shift);
+        return (t == 0.0) ? Double.NaN : filterTap(filter, best) / t;
+    }
+
+    /**
+     * Filter tap applied to x[2i + k]
+     */
+    private static double filterTap(Filter filter, int k) {
+        int j = -k;
+        if (j < filter.getStart() || j > filter.getEnd()) {
+            return 0.0;
+        }
+        return filter.getData()[j - filter.getStart()];
+    }
+
+    private static double lifted(double[] taps, int k) {
+        return (Math.abs(k) > PROBE_RANGE) ? 0.0 : taps[k + PROBE_RANGE];
+    }
+}
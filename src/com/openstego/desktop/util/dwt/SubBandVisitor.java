@@ -0,0 +1,47 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util.dwt;
+
+/**
+ * Receiver of the detail coefficients of a forward wavelet transform, for callers which only need to compute
+ * statistics over the detail subbands. The coefficients are handed over in strips of adjacent columns, as they are
+ * produced by the final (column) filter of each level, so that the complete subband images never need to be stored.
+ * <p>
+ * Strips of the same level may be visited concurrently by different threads, and in any order.
+ *
+ * @see DWTUtil#visitDetails(Image, int, FilterGH[], int, int, SubBandVisitor)
+ */
+public interface SubBandVisitor {
+    /**
+     * Orientation of the horizontal subband (low pass along the lines, high pass along the columns)
+     */
+    int HORIZONTAL = 0;
+
+    /**
+     * Orientation of the vertical subband (high pass along the lines, low pass along the columns)
+     */
+    int VERTICAL = 1;
+
+    /**
+     * Orientation of the diagonal subband (high pass in both directions)
+     */
+    int DIAGONAL = 2;
+
+    /**
+     * Method called for every strip of a detail subband. The strip is a scratch image which is reused once the method
+     * returns.
+     *
+     * @param level Decomposition level (1 for the finest level)
+     * @param orientation Orientation of the subband (<code>HORIZONTAL</code>, <code>VERTICAL</code> or
+     *        <code>DIAGONAL</code>)
+     * @param strip Image holding all the rows of the columns <code>x</code> to
+     *        <code>x + strip.getWidth() - 1</code> of the subband
+     * @param x Index of the first column of the strip in the subband
+     * @param width Width of the whole subband
+     */
+    void visit(int level, int orientation, Image strip, int x, int width);
+}
@@ -0,0 +1,666 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util.png;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decoder for the common kinds of PNG images: non-interlaced 8-bit truecolor (RGB or RGBA) and palette images (with
+ * bit depth of 1, 2, 4 or 8). The image data is inflated and unfiltered row by row, and written directly as packed
+ * ARGB pixels, so no intermediate raster or color conversion is needed.
+ * <p>
+ * Rows are decoded sequentially using {@link #readRows(int[], int, int, int)}, which allows a large image to be
+ * processed as a stream of bands. Other kinds of images (grayscale, 16-bit, interlaced, etc.) are reported as not
+ * supported by {@link #isSupported()}, and must be read using ImageIO instead.
+ * <p>
+ * The CRCs of the IHDR, PLTE and tRNS chunks are checked, as well as the CRC of every IDAT chunk once it has been read
+ * completely (the rest of the last IDAT chunk is not read when the last row is decoded before its end). The CRCs of the
+ * other chunks, which are skipped, are not checked.
+ */
+public class PNGDecoder implements Closeable {
+    /**
+     * PNG file signature
+     */
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    /**
+     * Color types
+     */
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_RGBA = 6;
+
+    /**
+     * PNG filter types
+     */
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    /**
+     * Chunk types
+     */
+    private static final int CHUNK_IHDR = chunkType("IHDR");
+    private static final int CHUNK_PLTE = chunkType("PLTE");
+    private static final int CHUNK_TRNS = chunkType("tRNS");
+    private static final int CHUNK_IDAT = chunkType("IDAT");
+    private static final int CHUNK_IEND = chunkType("IEND");
+
+    /**
+     * Size of the buffer used to read the compressed data
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of bytes in one row (including the filter type byte), so that a row fits in an array. The number
+     * of pixels of the image must fit in an int too, as for any BufferedImage.
+     */
+    private static final long MAX_ROW_BYTES = Integer.MAX_VALUE - 8;
+
+    /**
+     * Input stream (positioned inside the IDAT chunks once the header is read)
+     */
+    private DataInputStream in = null;
+
+    /**
+     * Image width
+     */
+    private int width = 0;
+
+    /**
+     * Image height
+     */
+    private int height = 0;
+
+    /**
+     * Bit depth
+     */
+    private int bitDepth = 0;
+
+    /**
+     * Color type
+     */
+    private int colorType = 0;
+
+    /**
+     * Interlace method
+     */
+    private int interlace = 0;
+
+    /**
+     * Flag to indicate whether the image has alpha values (RGBA color type, or palette with transparency)
+     */
+    private boolean alpha = false;
+
+    /**
+     * Flag to indicate whether a tRNS chunk is present
+     */
+    private boolean transparency = false;
+
+    /**
+     * Palette as packed ARGB values
+     */
+    private int[] palette = null;
+
+    /**
+     * Number of bytes per complete pixel, rounded up to one (used by the filters)
+     */
+    private int bytesPerPixel = 0;
+
+    /**
+     * Number of bytes in one unfiltered row
+     */
+    private int rowBytes = 0;
+
+    /**
+     * Current row (including the filter type byte at index 0)
+     */
+    private byte[] curRow = null;
+
+    /**
+     * Previous row (including the filter type byte at index 0)
+     */
+    private byte[] prevRow = null;
+
+    /**
+     * Stream of inflated image data
+     */
+    private InflaterInputStream data = null;
+
+    /**
+     * Inflater for the image data
+     */
+    private Inflater inflater = null;
+
+    /**
+     * Number of rows decoded so far
+     */
+    private int rowsDone = 0;
+
+    /**
+     * CRC of the chunk being read
+     */
+    private CRC32 crc = new CRC32();
+
+    /**
+     * Default constructor. Reads the PNG signature and all the chunks up to the start of the image data.
+     *
+     * @param is Input stream to read the PNG data from
+     * @throws IOException
+     */
+    public PNGDecoder(InputStream is) throws IOException {
+        this.in = new DataInputStream(is);
+
+        byte[] sig = new byte[SIGNATURE.length];
+        this.in.readFully(sig);
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (sig[i] != SIGNATURE[i]) {
+                throw new IOException("Not a PNG image");
+            }
+        }
+
+        int idatLength = readHeaderChunks();
+        if (!isSupported()) {
+            return;
+        }
+
+        int bitsPerPixel = (this.colorType == COLOR_PALETTE) ? this.bitDepth : (this.alpha ? 32 : 24);
+        long rowBytes = ((long) this.width * bitsPerPixel + 7) / 8;
+        if (rowBytes + 1 > MAX_ROW_BYTES || (long) this.width * this.height > Integer.MAX_VALUE) {
+            throw new IOException("PNG image too large: " + this.width + "x" + this.height);
+        }
+        this.bytesPerPixel = Math.max(1, bitsPerPixel / 8);
+        this.rowBytes = (int) rowBytes;
+        this.curRow = new byte[this.rowBytes + 1];
+        this.prevRow = new byte[this.rowBytes + 1];
+        this.inflater = new Inflater();
+        this.data = new InflaterInputStream(new IdatInputStream(idatLength), this.inflater, BUFFER_SIZE);
+    }
+
+    /**
+     * Method to decode a complete PNG image
+     *
+     * @param imageData PNG image data
+     * @return Decoded image, or <code>null</code> if the kind of image is not supported by this decoder
+     * @throws IOException
+     */
+    public static BufferedImage decode(byte[] imageData) throws IOException {
+        return decode(imageData, 0, -1);
+    }
+
+    /**
+     * Method to decode a range of rows of a PNG image. The rows before the range still need to be inflated and
+     * unfiltered, but are not converted to pixels; the rows after the range are not decoded at all.
+     *
+     * @param imageData PNG image data
+     * @param firstRow First row to decode
+     * @param rows Number of rows to decode (negative value means all the rows till the end of the image)
+     * @return Image holding the decoded rows, or <code>null</code> if the kind of image is not supported by this
+     *         decoder
+     * @throws IOException
+     */
+    public static BufferedImage decode(byte[] imageData, int firstRow, int rows) throws IOException {
+        try (PNGDecoder decoder = new PNGDecoder(new ByteArrayInputStream(imageData))) {
+            if (!decoder.isSupported()) {
+                return null;
+            }
+            if (rows < 0) {
+                rows = decoder.getHeight() - firstRow;
+            }
+            if (firstRow < 0 || rows <= 0 || firstRow + rows > decoder.getHeight()) {
+                throw new IllegalArgumentException("Invalid row range: " + firstRow + "+" + rows);
+            }
+
+            BufferedImage image = decoder.createImage(rows);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            decoder.skipRows(firstRow);
+            decoder.readRows(pixels, 0, decoder.getWidth(), rows);
+            return image;
+        }
+    }
+
+    /**
+     * Method to check whether the PNG data has any chunk besides the ones holding the image itself (IHDR, PLTE, tRNS,
+     * IDAT and IEND), such as a color profile, gamma, physical pixel size or text. The decoder ignores these chunks, so
+     * images which have them must be read using ImageIO to keep their metadata. Only the chunk headers are read.
+     *
+     * @param imageData PNG image data
+     * @return Flag (also <code>true</code> if the chunk structure is invalid)
+     */
+    public static boolean hasMetadataChunks(byte[] imageData) {
+        ByteBuffer buffer = ByteBuffer.wrap(imageData);
+        long pos = SIGNATURE.length;
+
+        while (pos + 8 <= imageData.length) {
+            int length = buffer.getInt((int) pos);
+            int type = buffer.getInt((int) pos + 4);
+            if (length < 0) {
+                return true;
+            }
+            if (type == CHUNK_IEND) {
+                return false;
+            }
+            if (type != CHUNK_IHDR && type != CHUNK_PLTE && type != CHUNK_TRNS && type != CHUNK_IDAT) {
+                return true;
+            }
+            pos += 12L + length;
+        }
+        return true;
+    }
+
+    /**
+     * Method to check whether the kind of image can be decoded by this decoder
+     *
+     * @return Flag
+     */
+    public boolean isSupported() {
+        if (this.interlace != 0) {
+            return false;
+        }
+        switch (this.colorType) {
+            case COLOR_RGB:
+                // Single transparent color is not supported
+                return this.bitDepth == 8 && !this.transparency;
+            case COLOR_RGBA:
+                return this.bitDepth == 8;
+            case COLOR_PALETTE:
+                return this.palette != null;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Method to create an image of the right type to hold the given number of decoded rows
+     *
+     * @param rows Number of rows
+     * @return Image of type TYPE_INT_ARGB if the PNG image has alpha values, else TYPE_INT_RGB
+     */
+    public BufferedImage createImage(int rows) {
+        return new BufferedImage(this.width, rows, this.alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Method to decode the next rows of the image
+     *
+     * @param argb Array to write the pixels to, in packed ARGB format
+     * @param offset Offset of the first pixel in the array
+     * @param scansize Distance between the starts of two rows in the array
+     * @param rows Number of rows to decode
+     * @throws IOException
+     */
+    public void readRows(int[] argb, int offset, int scansize, int rows) throws IOException {
+        for (int r = 0; r < rows; r++) {
+            nextRow();
+            convertRow(argb, offset + r * scansize);
+        }
+    }
+
+    /**
+     * Method to skip the next rows of the image
+     *
+     * @param rows Number of rows to skip
+     * @throws IOException
+     */
+    public void skipRows(int rows) throws IOException {
+        for (int r = 0; r < rows; r++) {
+            nextRow();
+        }
+    }
+
+    /**
+     * Method to release the resources held by the decoder. The underlying input stream is not closed.
+     */
+    @Override
+    public void close() {
+        if (this.inflater != null) {
+            this.inflater.end();
+            this.inflater = null;
+        }
+    }
+
+    /**
+     * Get method for width
+     *
+     * @return width
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Get method for height
+     *
+     * @return height
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Get method for alpha
+     *
+     * @return alpha
+     */
+    public boolean hasAlpha() {
+        return this.alpha;
+    }
+
+    /**
+     * Get method for rowsDone
+     *
+     * @return rowsDone
+     */
+    public int getRowsDone() {
+        return this.rowsDone;
+    }
+
+    /**
+     * Read the chunks before the image data
+     *
+     * @return Length of the first IDAT chunk
+     */
+    private int readHeaderChunks() throws IOException {
+        boolean ihdr = false;
+        while (true) {
+            int length = this.in.readInt();
+            int type = this.in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid PNG chunk length");
+            }
+
+            if (type == CHUNK_IDAT) {
+                if (!ihdr) {
+                    throw new IOException("Missing IHDR chunk");
+                }
+                startCrc(type);
+                return length;
+            } else if (type == CHUNK_IHDR) {
+                if (length != 13) {
+                    throw new IOException("Invalid IHDR chunk length: " + length);
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(readChunk(type, length, 13));
+                this.width = chunk.getInt(0);
+                this.height = chunk.getInt(4);
+                this.bitDepth = chunk.get(8) & 0xFF;
+                this.colorType = chunk.get(9) & 0xFF;
+                this.interlace = chunk.get(12) & 0xFF;
+                this.alpha = (this.colorType == COLOR_RGBA);
+                if (this.width <= 0 || this.height <= 0) {
+                    throw new IOException("Invalid image size: " + this.width + "x" + this.height);
+                }
+                ihdr = true;
+            } else if (type == CHUNK_PLTE && this.colorType == COLOR_PALETTE) {
+                byte[] chunk = readChunk(type, length, 3 * 256);
+                this.palette = new int[256];
+                for (int i = 0; i < length / 3; i++) {
+                    int r = chunk[3 * i] & 0xFF;
+                    int g = chunk[3 * i + 1] & 0xFF;
+                    int b = chunk[3 * i + 2] & 0xFF;
+                    this.palette[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                }
+            } else if (type == CHUNK_TRNS && this.colorType == COLOR_PALETTE && this.palette != null) {
+                byte[] chunk = readChunk(type, length, 256);
+                for (int i = 0; i < length; i++) {
+                    this.palette[i] = ((chunk[i] & 0xFF) << 24) | (this.palette[i] & 0xFFFFFF);
+                }
+                this.transparency = true;
+                this.alpha = true;
+            } else if (type == CHUNK_IEND) {
+                throw new IOException("No image data in PNG");
+            } else {
+                this.transparency |= (type == CHUNK_TRNS);
+                skipFully(length);
+                this.in.readInt(); // CRC (not checked for skipped chunks)
+            }
+        }
+    }
+
+    /**
+     * Read the data of a chunk followed by its CRC, which must match the chunk type and data
+     *
+     * @param type Chunk type
+     * @param length Length of the chunk data
+     * @param maxLength Maximum length allowed for the chunk type
+     * @return Chunk data
+     */
+    private byte[] readChunk(int type, int length, int maxLength) throws IOException {
+        if (length > maxLength) {
+            throw new IOException("Invalid PNG chunk length: " + length);
+        }
+
+        byte[] chunk = new byte[length];
+        this.in.readFully(chunk);
+        startCrc(type);
+        this.crc.update(chunk, 0, length);
+        checkCrc();
+        return chunk;
+    }
+
+    /**
+     * Restart the CRC computation for a chunk of the given type (the CRC covers the chunk type and data)
+     */
+    private void startCrc(int type) {
+        this.crc.reset();
+        this.crc.update(type >>> 24);
+        this.crc.update(type >>> 16);
+        this.crc.update(type >>> 8);
+        this.crc.update(type);
+    }
+
+    /**
+     * Read the CRC following the chunk data, and check it against the computed one
+     */
+    private void checkCrc() throws IOException {
+        if (this.in.readInt() != (int) this.crc.getValue()) {
+            throw new IOException("CRC error in PNG chunk");
+        }
+    }
+
+    /**
+     * Inflate and unfilter the next row into the current row buffer
+     */
+    private void nextRow() throws IOException {
+        if (this.rowsDone >= this.height) {
+            throw new IOException("No more rows in the image");
+        }
+
+        byte[] tmp = this.prevRow;
+        this.prevRow = this.curRow;
+        this.curRow = tmp;
+
+        int n = 0;
+        while (n < this.curRow.length) {
+            int count = this.data.read(this.curRow, n, this.curRow.length - n);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of PNG image data");
+            }
+            n += count;
+        }
+
+        unfilter(this.curRow, (this.rowsDone == 0) ? null : this.prevRow);
+        this.rowsDone++;
+    }
+
+    /**
+     * Reverse the filter of the given row in place. Byte 0 of the rows holds the filter type.
+     *
+     * @param cur Current row
+     * @param prev Previous row, or <code>null</code> for the first row of the image
+     */
+    private void unfilter(byte[] cur, byte[] prev) throws IOException {
+        int bpp = this.bytesPerPixel;
+        int len = this.rowBytes + 1;
+        int i = 1;
+
+        switch (cur[0]) {
+            case FILTER_NONE:
+                break;
+            case FILTER_SUB:
+                for (i += bpp; i < len; i++) {
+                    cur[i] += cur[i - bpp];
+                }
+                break;
+            case FILTER_UP:
+                if (prev != null) {
+                    for (; i < len; i++) {
+                        cur[i] += prev[i];
+                    }
+                }
+                break;
+            case FILTER_AVERAGE:
+                if (prev == null) {
+                    for (i += bpp; i < len; i++) {
+                        cur[i] += (cur[i - bpp] & 0xFF) >> 1;
+                    }
+                } else {
+                    for (; i <= bpp; i++) {
+                        cur[i] += (prev[i] & 0xFF) >> 1;
+                    }
+                    for (; i < len; i++) {
+                        cur[i] += ((cur[i - bpp] & 0xFF) + (prev[i] & 0xFF)) >> 1;
+                    }
+                }
+                break;
+            case FILTER_PAETH:
+                if (prev == null) {
+                    // Paeth with an empty previous row is the same as Sub
+                    for (i += bpp; i < len; i++) {
+                        cur[i] += cur[i - bpp];
+                    }
+                } else {
+                    for (; i <= bpp; i++) {
+                        cur[i] += prev[i];
+                    }
+                    for (; i < len; i++) {
+                        cur[i] += PNGEncoder.paeth(cur[i - bpp] & 0xFF, prev[i] & 0xFF, prev[i - bpp] & 0xFF);
+                    }
+                }
+                break;
+            default:
+                throw new IOException("Invalid PNG filter type: " + cur[0]);
+        }
+    }
+
+    /**
+     * Convert the current (unfiltered) row to packed ARGB pixels
+     */
+    private void convertRow(int[] argb, int pos) {
+        byte[] row = this.curRow;
+        int i = 1;
+
+        switch (this.colorType) {
+            case COLOR_RGB:
+                for (int x = 0; x < this.width; x++, i += 3) {
+                    argb[pos + x] = 0xFF000000 | ((row[i] & 0xFF) << 16) | ((row[i + 1] & 0xFF) << 8) | (row[i + 2] & 0xFF);
+                }
+                break;
+            case COLOR_RGBA:
+                for (int x = 0; x < this.width; x++, i += 4) {
+                    argb[pos + x] = ((row[i + 3] & 0xFF) << 24) | ((row[i] & 0xFF) << 16) | ((row[i + 1] & 0xFF) << 8) | (row[i + 2] & 0xFF);
+                }
+                break;
+            default:
+                if (this.bitDepth == 8) {
+                    for (int x = 0; x < this.width; x++) {
+                        argb[pos + x] = this.palette[row[i + x] & 0xFF];
+                    }
+                } else {
+                    int depth = this.bitDepth;
+                    int perByte = 8 / depth;
+                    int mask = (1 << depth) - 1;
+                    for (int x = 0; x < this.width; x++) {
+                        int shift = 8 - depth * (x % perByte + 1);
+                        argb[pos + x] = this.palette[((row[i + x / perByte] & 0xFF) >> shift) & mask];
+                    }
+                }
+                break;
+        }
+    }
+
+    private void skipFully(int n) throws IOException {
+        if (n < 0) {
+            throw new IOException("Invalid PNG chunk length");
+        }
+        while (n > 0) {
+            int skipped = this.in.skipBytes(n);
+            if (skipped <= 0) {
+                throw new EOFException("Unexpected end of PNG data");
+            }
+            n -= skipped;
+        }
+    }
+
+    private static int chunkType(String name) {
+        return (name.charAt(0) << 24) | (name.charAt(1) << 16) | (name.charAt(2) << 8) | name.charAt(3);
+    }
+
+    /**
+     * Stream over the data of consecutive IDAT chunks
+     */
+    private class IdatInputStream extends InputStream {
+        /**
+         * Bytes remaining in the current chunk
+         */
+        private int remaining = 0;
+
+        /**
+         * Flag to indicate that the last IDAT chunk is consumed
+         */
+        private boolean eof = false;
+
+        IdatInputStream(int length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (this.remaining == 0) {
+                if (this.eof) {
+                    return -1;
+                }
+                // Check the CRC and read the next chunk header
+                checkCrc();
+                int length = PNGDecoder.this.in.readInt();
+                int type = PNGDecoder.this.in.readInt();
+                if (type != CHUNK_IDAT || length < 0) {
+                    this.eof = true;
+                    return -1;
+                }
+                startCrc(type);
+                this.remaining = length;
+            }
+
+            int n = PNGDecoder.this.in.read(b, off, Math.min(len, this.remaining));
+            if (n < 0) {
+                throw new EOFException("Unexpected end of PNG image data");
+            }
+            PNGDecoder.this.crc.update(b, off, n);
+            this.remaining -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util.png;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encoder for 8-bit truecolor (RGB or RGBA) PNG images. Rows are collected in bands. Each band is filtered row by row
+ * in parallel, and the filtered data is then split into chunks which are deflated concurrently. Every chunk primes its
+ * deflater with the last 32 KB of the data before it and ends with a sync flush, so the concatenated output is a
+ * single standard zlib stream, written out as one IDAT chunk per compressed piece.
+ * <p>
+ * Rows can be written incrementally using {@link #writeRows(int[], int, int, int)}, so the whole image never needs to
+ * be held in memory.
+ */
+public class PNGEncoder {
+    /**
+     * Default deflate compression level
+     */
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    /**
+     * PNG file signature
+     */
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    /**
+     * Size of the uncompressed data deflated by one task
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Approximate size of the filtered data collected before a band is compressed
+     */
+    private static final int BAND_SIZE = 16 * CHUNK_SIZE;
+
+    /**
+     * Size of the deflate dictionary (the LZ77 window)
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * PNG filter types
+     */
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    /**
+     * Output stream
+     */
+    private DataOutputStream out = null;
+
+    /**
+     * Image width
+     */
+    private int width = 0;
+
+    /**
+     * Image height
+     */
+    private int height = 0;
+
+    /**
+     * Number of bytes per pixel (3 for RGB, 4 for RGBA)
+     */
+    private int bytesPerPixel = 0;
+
+    /**
+     * Number of bytes in one unfiltered row
+     */
+    private int rowBytes = 0;
+
+    /**
+     * Deflate compression level
+     */
+    private int level = DEFAULT_COMPRESSION_LEVEL;
+
+    /**
+     * Number of rows collected per band
+     */
+    private int bandRows = 0;
+
+    /**
+     * Raw (unfiltered) bytes of the current band. The first row holds the last row of the previous band, which is
+     * needed for filtering
+     */
+    private byte[] raw = null;
+
+    /**
+     * Number of rows collected in the current band
+     */
+    private int rowsInBand = 0;
+
+    /**
+     * Number of rows written so far (excluding the current band)
+     */
+    private int rowsDone = 0;
+
+    /**
+     * Last bytes of filtered data, used as dictionary for the next chunk
+     */
+    private byte[] dictionary = new byte[0];
+
+    /**
+     * Checksum of the uncompressed data stream
+     */
+    private Adler32 adler = new Adler32();
+
+    /**
+     * Flag to indicate whether the zlib header is written or not
+     */
+    private boolean headerWritten = false;
+
+    /**
+     * Default constructor. Writes the PNG signature and image header.
+     *
+     * @param os Output stream to write the PNG data to
+     * @param width Image width
+     * @param height Image height
+     * @param alpha Whether the alpha channel is to be written
+     * @param level Deflate compression level (0-9)
+     * @throws IOException
+     */
+    public PNGEncoder(OutputStream os, int width, int height, boolean alpha, int level) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid image size: " + width + "x" + height);
+        }
+
+        this.out = new DataOutputStream(os);
+        this.width = width;
+        this.height = height;
+        this.bytesPerPixel = alpha ? 4 : 3;
+        this.rowBytes = width * this.bytesPerPixel;
+        this.level = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, level));
+        this.bandRows = Math.max(1, Math.min(height, BAND_SIZE / (this.rowBytes + 1)));
+        this.raw = new byte[(this.bandRows + 1) * this.rowBytes];
+
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+        DataOutputStream dos = new DataOutputStream(ihdr);
+        dos.writeInt(width);
+        dos.writeInt(height);
+        dos.writeByte(8); // Bit depth
+        dos.writeByte(alpha ? 6 : 2); // Color type: truecolor with or without alpha
+        dos.writeByte(0); // Compression method
+        dos.writeByte(0); // Filter method
+        dos.writeByte(0); // Interlace method
+
+        this.out.write(SIGNATURE);
+        writeChunk("IHDR", ihdr.toByteArray(), 0, ihdr.size());
+    }
+
+    /**
+     * Method to encode the given image as PNG
+     *
+     * @param image Image to encode
+     * @param os Output stream to write the PNG data to
+     * @param level Deflate compression level (0-9)
+     * @throws IOException
+     */
+    public static void encode(BufferedImage image, OutputStream os, int level) throws IOException {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        PNGEncoder encoder = new PNGEncoder(os, w, h, image.getColorModel().hasAlpha(), level);
+        int[] pixels = getPixelData(image);
+
+        if (pixels != null) {
+            encoder.writeRows(pixels, 0, w, h);
+        } else {
+            int[] buf = new int[w * encoder.bandRows];
+            for (int y = 0; y < h; y += encoder.bandRows) {
+                int rows = Math.min(encoder.bandRows, h - y);
+                image.getRGB(0, y, w, rows, buf, 0, w);
+                encoder.writeRows(buf, 0, w, rows);
+            }
+        }
+        encoder.finish();
+    }
+
+    /**
+     * Method to write rows of pixels
+     *
+     * @param argb Pixel data in packed ARGB format
+     * @param offset Offset of the first pixel in the array
+     * @param scansize Distance between the starts of two rows in the array
+     * @param rows Number of rows to write
+     * @throws IOException
+     */
+    public void writeRows(int[] argb, int offset, int scansize, int rows) throws IOException {
+        if (this.rowsDone + this.rowsInBand + rows > this.height) {
+            throw new IOException("More rows written than image height");
+        }
+
+        int row = 0;
+        while (row < rows) {
+            final int count = Math.min(rows - row, this.bandRows - this.rowsInBand);
+            final int firstRow = row;
+            final int bandRow = this.rowsInBand;
+
+            IntStream.range(0, count).parallel().forEach(
+                r -> packRow(argb, offset + (firstRow + r) * scansize, this.raw, (bandRow + r + 1) * this.rowBytes));
+
+            this.rowsInBand += count;
+            row += count;
+            if (this.rowsInBand == this.bandRows) {
+                flushBand();
+            }
+        }
+    }
+
+    /**
+     * Method to finish the PNG data. All rows must have been written before calling this method
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (this.rowsInBand > 0) {
+            flushBand();
+        }
+        if (this.rowsDone != this.height) {
+            throw new IOException("Only " + this.rowsDone + " of " + this.height + " rows written");
+        }
+
+        // Final empty deflate block followed by the zlib checksum
+        Deflater deflater = new Deflater(this.level, true);
+        byte[] tail = new byte[16];
+        int len = 0;
+        try {
+            deflater.finish();
+            len = deflater.deflate(tail);
+        } finally {
+            deflater.end();
+        }
+        long checksum = this.adler.getValue();
+        tail[len++] = (byte) (checksum >>> 24);
+        tail[len++] = (byte) (checksum >>> 16);
+        tail[len++] = (byte) (checksum >>> 8);
+        tail[len++] = (byte) checksum;
+
+        writeChunk("IDAT", tail, 0, len);
+        writeChunk("IEND", tail, 0, 0);
+        this.out.flush();
+    }
+
+    /**
+     * Filter and compress the rows of the current band, and write them out
+     */
+    private void flushBand() throws IOException {
+        final int rows = this.rowsInBand;
+        final int stride = this.rowBytes + 1;
+        final byte[] filtered = new byte[rows * stride];
+        final boolean firstBand = (this.rowsDone == 0);
+
+        // Filter rows in parallel
+        IntStream.range(0, rows).parallel().forEach(r -> {
+            int cur = (r + 1) * this.rowBytes;
+            int prev = (r == 0 && firstBand) ? -1 : r * this.rowBytes;
+            filterRow(this.raw, cur, prev, filtered, r * stride);
+        });
+
+        // Compress independent chunks in parallel, each primed with the data before it
+        int chunks = (filtered.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final byte[] dict = this.dictionary;
+        byte[][] compressed = IntStream.range(0, chunks).parallel().mapToObj(c -> deflateChunk(filtered, c, dict)).toArray(byte[][]::new);
+
+        if (!this.headerWritten) {
+            // zlib header: deflate with 32K window, no preset dictionary
+            writeChunk("IDAT", new byte[] { 0x78, (byte) 0x9C }, 0, 2);
+            this.headerWritten = true;
+        }
+        for (byte[] data : compressed) {
+            writeChunk("IDAT", data, 0, data.length);
+        }
+
+        this.adler.update(filtered, 0, filtered.length);
+        this.dictionary = lastBytes(dict, filtered);
+
+        // Keep the last row as "previous row" for the next band
+        System.arraycopy(this.raw, rows * this.rowBytes, this.raw, 0, this.rowBytes);
+        this.rowsDone += rows;
+        this.rowsInBand = 0;
+    }
+
+    /**
+     * Deflate one chunk of the filtered data with a sync flush, priming the deflater with the preceding data. Every
+     * chunk gets its own deflater, which is ended at once so that its native memory does not stay with the (pooled)
+     * thread.
+     */
+    private byte[] deflateChunk(byte[] data, int chunk, byte[] prevDict) {
+        Deflater deflater = new Deflater(this.level, true);
+        try {
+            return deflateChunk(deflater, data, chunk, prevDict);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Deflate one chunk of the filtered data using the given deflater
+     */
+    private static byte[] deflateChunk(Deflater deflater, byte[] data, int chunk, byte[] prevDict) {
+        int start = chunk * CHUNK_SIZE;
+        int len = Math.min(CHUNK_SIZE, data.length - start);
+
+        if (start >= DICTIONARY_SIZE) {
+            deflater.setDictionary(data, start - DICTIONARY_SIZE, DICTIONARY_SIZE);
+        } else if (start > 0 || prevDict.length > 0) {
+            byte[] dict = new byte[Math.min(DICTIONARY_SIZE, prevDict.length + start)];
+            int fromPrev = dict.length - start;
+            System.arraycopy(prevDict, prevDict.length - fromPrev, dict, 0, fromPrev);
+            System.arraycopy(data, 0, dict, fromPrev, start);
+            deflater.setDictionary(dict);
+        }
+        deflater.setInput(data, start, len);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len / 2 + 64);
+        byte[] buf = new byte[64 * 1024];
+        int n = 0;
+        do {
+            n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+            baos.write(buf, 0, n);
+        } while (n == buf.length || !deflater.needsInput());
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * Get the last bytes of the stream (up to dictionary size) after appending the given data
+     */
+    private static byte[] lastBytes(byte[] prev, byte[] data) {
+        if (data.length >= DICTIONARY_SIZE) {
+            byte[] dict = new byte[DICTIONARY_SIZE];
+            System.arraycopy(data, data.length - DICTIONARY_SIZE, dict, 0, DICTIONARY_SIZE);
+            return dict;
+        }
+
+        int fromPrev = Math.min(prev.length, DICTIONARY_SIZE - data.length);
+        byte[] dict = new byte[fromPrev + data.length];
+        System.arraycopy(prev, prev.length - fromPrev, dict, 0, fromPrev);
+        System.arraycopy(data, 0, dict, fromPrev, data.length);
+        return dict;
+    }
+
+    /**
+     * Convert one row of packed ARGB pixels to RGB(A) bytes
+     */
+    private void packRow(int[] argb, int in, byte[] dest, int pos) {
+        if (this.bytesPerPixel == 4) {
+            for (int x = 0; x < this.width; x++) {
+                int p = argb[in + x];
+                dest[pos++] = (byte) (p >> 16);
+                dest[pos++] = (byte) (p >> 8);
+                dest[pos++] = (byte) p;
+                dest[pos++] = (byte) (p >>> 24);
+            }
+        } else {
+            for (int x = 0; x < this.width; x++) {
+                int p = argb[in + x];
+                dest[pos++] = (byte) (p >> 16);
+                dest[pos++] = (byte) (p >> 8);
+                dest[pos++] = (byte) p;
+            }
+        }
+    }
+
+    /**
+     * Filter one row. Unless compression is disabled, every filter type is tried and the one with the minimum sum of
+     * absolute differences is kept
+     *
+     * @param raw Raw row data
+     * @param cur Offset of the current row
+     * @param prev Offset of the previous row, or -1 for the first row of the image
+     * @param dest Filtered output
+     * @param pos Offset in the output (the filter type byte is written here)
+     */
+    private void filterRow(byte[] raw, int cur, int prev, byte[] dest, int pos) {
+        if (this.level == Deflater.NO_COMPRESSION) {
+            dest[pos] = FILTER_NONE;
+            System.arraycopy(raw, cur, dest, pos + 1, this.rowBytes);
+            return;
+        }
+
+        byte[] scratch = new byte[this.rowBytes];
+        int best = FILTER_NONE;
+        long bestSum = sumAbs(raw, cur, this.rowBytes);
+
+        for (int type = FILTER_SUB; type <= FILTER_PAETH; type++) {
+            long sum = applyFilter(type, raw, cur, prev, scratch);
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = type;
+                System.arraycopy(scratch, 0, dest, pos + 1, this.rowBytes);
+            }
+        }
+
+        dest[pos] = (byte) best;
+        if (best == FILTER_NONE) {
+            System.arraycopy(raw, cur, dest, pos + 1, this.rowBytes);
+        }
+    }
+
+    /**
+     * Apply the given filter type to a row
+     *
+     * @return Sum of absolute values (as signed bytes) of the filtered row
+     */
+    private long applyFilter(int type, byte[] raw, int cur, int prev, byte[] dest) {
+        int bpp = this.bytesPerPixel;
+        int len = this.rowBytes;
+        int i = 0;
+
+        if (prev < 0) {
+            // First row: there is no previous row, so Up is None, Average uses a/2 and Paeth is Sub
+            switch (type) {
+                case FILTER_UP:
+                    System.arraycopy(raw, cur, dest, 0, len);
+                    break;
+                case FILTER_AVERAGE:
+                    for (; i < bpp; i++) {
+                        dest[i] = raw[cur + i];
+                    }
+                    for (; i < len; i++) {
+                        dest[i] = (byte) (raw[cur + i] - ((raw[cur + i - bpp] & 0xFF) >> 1));
+                    }
+                    break;
+                default:
+                    for (; i < bpp; i++) {
+                        dest[i] = raw[cur + i];
+                    }
+                    for (; i < len; i++) {
+                        dest[i] = (byte) (raw[cur + i] - raw[cur + i - bpp]);
+                    }
+                    break;
+            }
+            return sumAbs(dest, 0, len);
+        }
+
+        switch (type) {
+            case FILTER_SUB:
+                for (; i < bpp; i++) {
+                    dest[i] = raw[cur + i];
+                }
+                for (; i < len; i++) {
+                    dest[i] = (byte) (raw[cur + i] - raw[cur + i - bpp]);
+                }
+                break;
+            case FILTER_UP:
+                for (; i < len; i++) {
+                    dest[i] = (byte) (raw[cur + i] - raw[prev + i]);
+                }
+                break;
+            case FILTER_AVERAGE:
+                for (; i < bpp; i++) {
+                    dest[i] = (byte) (raw[cur + i] - ((raw[prev + i] & 0xFF) >> 1));
+                }
+                for (; i < len; i++) {
+                    dest[i] = (byte) (raw[cur + i] - (((raw[cur + i - bpp] & 0xFF) + (raw[prev + i] & 0xFF)) >> 1));
+                }
+                break;
+            default:
+                for (; i < bpp; i++) {
+                    dest[i] = (byte) (raw[cur + i] - raw[prev + i]);
+                }
+                for (; i < len; i++) {
+                    dest[i] = (byte) (raw[cur + i] - paeth(raw[cur + i - bpp] & 0xFF, raw[prev + i] & 0xFF, raw[prev + i - bpp] & 0xFF));
+                }
+                break;
+        }
+        return sumAbs(dest, 0, len);
+    }
+
+    private static long sumAbs(byte[] data, int off, int len) {
+        long sum = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            int v = data[i];
+            sum += (v < 0) ? -v : v;
+        }
+        return sum;
+    }
+
+    /**
+     * Paeth predictor for left (a), up (b) and upper-left (c) bytes
+     */
+    static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return (pb <= pc) ? b : c;
+    }
+
+    private void writeChunk(String type, byte[] data, int off, int len) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, off, len);
+
+        this.out.writeInt(len);
+        this.out.write(typeBytes);
+        this.out.write(data, off, len);
+        this.out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Get the backing pixel array of an INT_RGB or INT_ARGB image, if the raster layout allows direct access
+     */
+    private static int[] getPixelData(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) {
+            return null;
+        }
+
+        Raster raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferInt) || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)) {
+            return null;
+        }
+        SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        if (sm.getScanlineStride() != image.getWidth() || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || raster.getDataBuffer().getOffset() != 0) {
+            return null;
+        }
+        return ((DataBufferInt) raster.getDataBuffer()).getData();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util.png;
+
+import java.util.Locale;
+
+import javax.imageio.ImageWriteParam;
+
+/**
+ * Write parameters for {@link PNGImageWriter}. The only compression type is lossless "Deflate". The compression level
+ * can be set directly using {@link #setCompressionLevel(int)}, or through the standard compression quality, where
+ * quality 1.0 maps to level 0 (no compression) and quality 0.0 maps to level 9 (best compression).
+ */
+public class PNGImageWriteParam extends ImageWriteParam {
+    /**
+     * Name of the only supported compression type
+     */
+    public static final String COMPRESSION_TYPE = "Deflate";
+
+    /**
+     * Default constructor
+     *
+     * @param locale Locale to use for localized messages
+     */
+    public PNGImageWriteParam(Locale locale) {
+        super(locale);
+        this.canWriteCompressed = true;
+        this.compressionTypes = new String[] { COMPRESSION_TYPE };
+        this.compressionType = COMPRESSION_TYPE;
+        this.compressionQuality = qualityOf(PNGEncoder.DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * PNG compression is always lossless
+     *
+     * @return <code>true</code>
+     */
+    @Override
+    public boolean isCompressionLossless() {
+        super.isCompressionLossless();
+        return true;
+    }
+
+    /**
+     * Method to set the deflate compression level. This sets the compression mode to explicit
+     *
+     * @param level Compression level (0-9)
+     */
+    public void setCompressionLevel(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9: " + level);
+        }
+        // Switching to explicit mode clears the compression type, so it needs to be set again
+        setCompressionMode(MODE_EXPLICIT);
+        setCompressionType(COMPRESSION_TYPE);
+        setCompressionQuality(qualityOf(level));
+    }
+
+    /**
+     * Method to get the deflate compression level to use as per the current compression settings
+     *
+     * @return Compression level (0-9)
+     */
+    public int getCompressionLevel() {
+        if (getCompressionMode() != MODE_EXPLICIT) {
+            return PNGEncoder.DEFAULT_COMPRESSION_LEVEL;
+        }
+        return Math.round((1.0f - getCompressionQuality()) * 9);
+    }
+
+    private static float qualityOf(int level) {
+        return 1.0f - level / 9.0f;
+    }
+}
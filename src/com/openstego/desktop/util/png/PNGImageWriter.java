@@ -0,0 +1,200 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util.png;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.w3c.dom.Node;
+
+/**
+ * ImageIO writer for PNG images based on {@link PNGEncoder}. It handles 8-bit RGB and ARGB images. Any other image
+ * (grayscale, indexed, 16-bit etc.) is handed over to the next PNG writer registered with ImageIO, so that the
+ * original color model is kept. The encoder does not write metadata, so images carrying metadata with ancillary chunks
+ * (color profile, gamma, physical pixel size, text etc.) are also handed over to the next PNG writer, which keeps
+ * them.
+ */
+public class PNGImageWriter extends ImageWriter {
+    /**
+     * Nodes of the native PNG metadata which only describe the image layout
+     */
+    private static final List<String> LAYOUT_CHUNKS = Arrays.asList("IHDR", "PLTE", "tRNS");
+
+    /**
+     * Name of the native PNG metadata format of ImageIO
+     */
+    private static final String NATIVE_METADATA_FORMAT = "javax_imageio_png_1.0";
+
+    /**
+     * Default constructor
+     *
+     * @param originatingProvider Service provider which created this writer
+     */
+    public PNGImageWriter(PNGImageWriterSpi originatingProvider) {
+        super(originatingProvider);
+    }
+
+    @Override
+    public ImageWriteParam getDefaultWriteParam() {
+        return new PNGImageWriteParam(getLocale());
+    }
+
+    @Override
+    public IIOMetadata getDefaultStreamMetadata(ImageWriteParam param) {
+        return null;
+    }
+
+    @Override
+    public IIOMetadata getDefaultImageMetadata(ImageTypeSpecifier imageType, ImageWriteParam param) {
+        return null;
+    }
+
+    @Override
+    public IIOMetadata convertStreamMetadata(IIOMetadata inData, ImageWriteParam param) {
+        return null;
+    }
+
+    @Override
+    public IIOMetadata convertImageMetadata(IIOMetadata inData, ImageTypeSpecifier imageType, ImageWriteParam param) {
+        return null;
+    }
+
+    @Override
+    public void write(IIOMetadata streamMetadata, IIOImage image, ImageWriteParam param) throws IOException {
+        if (getOutput() == null) {
+            throw new IllegalStateException("Output has not been set");
+        }
+        if (image.hasRaster()) {
+            throw new UnsupportedOperationException("Cannot write rasters");
+        }
+
+        RenderedImage rendered = image.getRenderedImage();
+        ImageTypeSpecifier imageType = ImageTypeSpecifier.createFromRenderedImage(rendered);
+        if (!(rendered instanceof BufferedImage) || !PNGImageWriterSpi.isSupported(imageType)
+                || hasAncillaryChunks(image.getMetadata(), imageType)) {
+            writeWithFallback(image, param);
+            return;
+        }
+
+        int level = PNGEncoder.DEFAULT_COMPRESSION_LEVEL;
+        if (param instanceof PNGImageWriteParam) {
+            level = ((PNGImageWriteParam) param).getCompressionLevel();
+        } else if (param != null && param.canWriteCompressed() && param.getCompressionMode() == ImageWriteParam.MODE_EXPLICIT) {
+            level = Math.round((1.0f - param.getCompressionQuality()) * 9);
+        }
+
+        processImageStarted(0);
+        PNGEncoder.encode((BufferedImage) rendered, new ImageOutputStreamAdapter((ImageOutputStream) getOutput()), level);
+        processImageComplete();
+    }
+
+    /**
+     * Write the image using the next PNG writer registered with ImageIO
+     */
+    private void writeWithFallback(IIOImage image, ImageWriteParam param) throws IOException {
+        ImageWriter writer = getFallbackWriter();
+        if (writer == null) {
+            throw new IOException("No PNG writer available for image type");
+        }
+
+        try {
+            writer.setOutput(getOutput());
+            writer.write(null, image, (param instanceof PNGImageWriteParam) ? null : param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Check whether the metadata, as converted to PNG metadata by the next PNG writer, has any chunk besides the ones
+     * describing the image layout (IHDR, PLTE and tRNS), which the encoder writes itself
+     */
+    private static boolean hasAncillaryChunks(IIOMetadata metadata, ImageTypeSpecifier imageType) {
+        ImageWriter writer = null;
+        IIOMetadata pngMetadata = null;
+
+        if (metadata == null) {
+            return false;
+        }
+
+        writer = getFallbackWriter();
+        if (writer == null) {
+            return false;
+        }
+        try {
+            pngMetadata = writer.convertImageMetadata(metadata, imageType, null);
+        } finally {
+            writer.dispose();
+        }
+        if (pngMetadata == null) {
+            return false;
+        }
+
+        Node root = pngMetadata.getAsTree(NATIVE_METADATA_FORMAT);
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (!LAYOUT_CHUNKS.contains(node.getNodeName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the next PNG writer registered with ImageIO
+     *
+     * @return Writer, or <code>null</code> if there is none
+     */
+    private static ImageWriter getFallbackWriter() {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+        while (writers.hasNext()) {
+            ImageWriter writer = writers.next();
+            if (!(writer instanceof PNGImageWriter)) {
+                return writer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adapter to use an ImageOutputStream as an OutputStream
+     */
+    private static class ImageOutputStreamAdapter extends OutputStream {
+        private ImageOutputStream ios = null;
+
+        ImageOutputStreamAdapter(ImageOutputStream ios) {
+            this.ios = ios;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.ios.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.ios.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.ios.flush();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util.png;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Service provider for {@link PNGImageWriter}
+ */
+public class PNGImageWriterSpi extends ImageWriterSpi {
+    /**
+     * Flag to indicate whether the provider is already registered or not
+     */
+    private static boolean registered = false;
+
+    /**
+     * Default constructor
+     */
+    public PNGImageWriterSpi() {
+        super("OpenStego", "1.0", new String[] { "png", "PNG" }, new String[] { "png" }, new String[] { "image/png", "image/x-png" },
+                PNGImageWriter.class.getName(), new Class<?>[] { ImageOutputStream.class }, null, false, null, null, null, null, false, null,
+                null, null, null);
+    }
+
+    /**
+     * Method to register this provider with the default ImageIO registry, ahead of any other PNG writer
+     */
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+
+        IIORegistry registry = IIORegistry.getDefaultInstance();
+        PNGImageWriterSpi spi = new PNGImageWriterSpi();
+        registry.registerServiceProvider(spi, ImageWriterSpi.class);
+
+        Iterator<ImageWriterSpi> iter = registry.getServiceProviders(ImageWriterSpi.class, true);
+        while (iter.hasNext()) {
+            ImageWriterSpi other = iter.next();
+            if (other != spi && !(other instanceof PNGImageWriterSpi) && other.getFormatNames() != null) {
+                for (String name : other.getFormatNames()) {
+                    if ("png".equalsIgnoreCase(name)) {
+                        registry.setOrdering(ImageWriterSpi.class, spi, other);
+                        break;
+                    }
+                }
+            }
+        }
+        registered = true;
+    }
+
+    /**
+     * Method to check whether the given image type can be written by the fast encoder
+     *
+     * @param type Image type
+     * @return Whether the type is supported
+     */
+    static boolean isSupported(ImageTypeSpecifier type) {
+        switch (type.getBufferedImageType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public boolean canEncodeImage(ImageTypeSpecifier type) {
+        return isSupported(type);
+    }
+
+    @Override
+    public ImageWriter createWriterInstance(Object extension) {
+        return new PNGImageWriter(this);
+    }
+
+    @Override
+    public String getDescription(Locale locale) {
+        return "OpenStego parallel PNG image writer";
+    }
+}
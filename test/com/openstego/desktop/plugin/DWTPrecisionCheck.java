@@ -0,0 +1,165 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.plugin;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.openstego.desktop.OpenStegoConfig;
+import com.openstego.desktop.OpenStegoException;
+import com.openstego.desktop.WatermarkingPlugin;
+import com.openstego.desktop.plugin.dwtdugad.DWTDugadPlugin;
+import com.openstego.desktop.plugin.dwtxie.DWTXiePlugin;
+import com.openstego.desktop.util.ImageHolder;
+import com.openstego.desktop.util.ImageUtil;
+import com.openstego.desktop.util.dwt.DWT;
+
+/**
+ * Validation of the single precision mode of the wavelet transform (see {@link DWT#setSinglePrecision(boolean)}). The
+ * DWTDugad and DWTXie plugins are run in double and in single precision over a corpus of generated covers (several
+ * sizes, including odd ones, with smooth, noisy, checkerboard and gradient content). For every cover, the watermark is
+ * embedded in each mode, and the results of {@link WatermarkingPlugin#checkMark(byte[], String, byte[])} for the
+ * marked cover, the clean cover and a foreign signature must be equal in both modes. For DWTXie, the extracted
+ * watermark bits must be equal too (the data extracted by DWTDugad holds raw correlation sums, which only differ in
+ * their last bits; its per-subband detections are what <code>checkMark</code> counts).
+ * <p>
+ * Usage: <code>java com.openstego.desktop.plugin.DWTPrecisionCheck</code> (run by the <code>test</code> target of the
+ * build). One line is printed per run, and the exit status is non-zero if any run differs between the two modes.
+ */
+public class DWTPrecisionCheck {
+    /**
+     * Sizes of the generated covers
+     */
+    private static final int[][] SIZES = { { 256, 256 }, { 301, 217 }, { 512, 512 }, { 640, 480 }, { 1024, 768 } };
+
+    /**
+     * Names of the kinds of generated content
+     */
+    private static final String[] KINDS = { "smooth", "noise", "checker", "gradient" };
+
+    /**
+     * Main method
+     *
+     * @param args Command line arguments (not used)
+     * @throws OpenStegoException
+     */
+    public static void main(String[] args) throws OpenStegoException {
+        WatermarkingPlugin[] plugins = { new DWTDugadPlugin(), new DWTXiePlugin() };
+        int failures = 0;
+        int runs = 0;
+
+        for (WatermarkingPlugin plugin : plugins) {
+            for (int[] size : SIZES) {
+                for (int kind = 0; kind < KINDS.length; kind++) {
+                    byte[] cover = generateCover(plugin, size[0], size[1], kind);
+                    byte[] sig = generateSignature(plugin, "precision");
+                    byte[] otherSig = generateSignature(plugin, "other");
+                    Object[] doubleRun = run(plugin, false, cover, sig, otherSig);
+                    Object[] singleRun = run(plugin, true, cover, sig, otherSig);
+                    boolean same = Arrays.equals((double[]) doubleRun[0], (double[]) singleRun[0])
+                            && (plugin instanceof DWTDugadPlugin || Arrays.equals((byte[]) doubleRun[1], (byte[]) singleRun[1]));
+
+                    System.out.println(plugin.getName() + " " + size[0] + "x" + size[1] + " " + KINDS[kind] + " double="
+                            + Arrays.toString((double[]) doubleRun[0]) + " single=" + Arrays.toString((double[]) singleRun[0])
+                            + (same ? " ok" : " DIFFERENT"));
+                    runs++;
+                    if (!same) {
+                        failures++;
+                    }
+                }
+            }
+        }
+
+        System.out.println(runs + " runs, " + failures + " different");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Method to embed the watermark and check the marks in the given precision
+     *
+     * @param plugin Plugin
+     * @param singlePrecision Whether the wavelet transforms are to use single precision
+     * @param cover Cover data
+     * @param sig Signature to embed
+     * @param otherSig Foreign signature
+     * @return Correlations for the marked cover, the clean cover and the foreign signature; and the data extracted from
+     *         the marked cover
+     * @throws OpenStegoException
+     */
+    private static Object[] run(WatermarkingPlugin plugin, boolean singlePrecision, byte[] cover, byte[] sig, byte[] otherSig)
+            throws OpenStegoException {
+        byte[] stego = null;
+        double[] correlations = new double[3];
+
+        setSinglePrecision(plugin, singlePrecision);
+        stego = plugin.embedData(sig, "precision.sig", cover, "cover.png", "stego.png");
+        correlations[0] = plugin.checkMark(stego, "stego.png", sig);
+        correlations[1] = plugin.checkMark(cover, "cover.png", sig);
+        correlations[2] = plugin.checkMark(stego, "stego.png", otherSig);
+
+        return new Object[] { correlations, plugin.extractData(stego, "stego.png", sig) };
+    }
+
+    /**
+     * Method to set the precision of the wavelet transforms of the plugin
+     */
+    private static void setSinglePrecision(WatermarkingPlugin plugin, boolean singlePrecision) {
+        if (plugin instanceof DWTDugadPlugin) {
+            ((DWTDugadPlugin) plugin).setSinglePrecision(singlePrecision);
+        } else {
+            ((DWTXiePlugin) plugin).setSinglePrecision(singlePrecision);
+        }
+    }
+
+    /**
+     * Method to generate a signature for the given password
+     */
+    private static byte[] generateSignature(WatermarkingPlugin plugin, String password) throws OpenStegoException {
+        Map<String, String> options = new HashMap<>();
+
+        options.put(OpenStegoConfig.PW_KEY, password);
+        plugin.createConfig(options);
+        return plugin.generateSignature();
+    }
+
+    /**
+     * Method to generate a cover image as PNG data. The content is deterministic for a given size and kind.
+     */
+    private static byte[] generateCover(WatermarkingPlugin plugin, int width, int height, int kind) throws OpenStegoException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(31L * width + height + kind);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = 0;
+                switch (kind) {
+                    case 0:
+                        value = (int) (128 + 60 * Math.sin(x / 17.0) + 40 * Math.cos(y / 11.0));
+                        break;
+                    case 1:
+                        value = random.nextInt(256);
+                        break;
+                    case 2:
+                        value = (((x / 8) + (y / 8)) % 2 == 0) ? 48 : 208;
+                        break;
+                    default:
+                        value = (x * 255 / width + y * 255 / height) / 2;
+                        break;
+                }
+                value = Math.max(0, Math.min(255, value + random.nextInt(9) - 4));
+                image.setRGB(x, y, (value << 16) | (Math.max(0, value - 20) << 8) | Math.min(255, value + 20));
+            }
+        }
+
+        return ImageUtil.imageToByteArray(new ImageHolder(image, null), "cover.png", plugin);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Steganography utility to hide messages into cover files
+ * Author: Samir Vaidya (mailto:syvaidya@gmail.com)
+ * Copyright (c) 2007-2017 Samir Vaidya
+ */
+
+package com.openstego.desktop.util.dwt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Check of the lifting scheme against the convolution. For the biorthogonal filters which can be lifted, the forward
+ * transform is computed both ways on generated images of several sizes and levels, and all the subband coefficients
+ * are compared. As the filter file holds taps rounded to six decimals, the coefficients may differ by up to
+ * {@link #RELATIVE_TOLERANCE} of the largest coefficient of the transform. When every level is lifted (image sizes
+ * divisible by two to the power of the level), the lifted transform must also reconstruct the image exactly; other
+ * levels are computed using convolution, whose rounded taps do not always give back the exact pixels. The default
+ * transform must not use lifting.
+ * <p>
+ * Usage: <code>java com.openstego.desktop.util.dwt.LiftingSchemeCheck</code> (run by the <code>test</code> target of
+ * the build). The exit status is non-zero if any check fails.
+ */
+public class LiftingSchemeCheck {
+    /**
+     * Maximum difference allowed between the lifted and the convolution coefficients, relative to the largest
+     * coefficient of the transform
+     */
+    private static final double RELATIVE_TOLERANCE = 2e-5;
+
+    /**
+     * Image sizes (lifting needs even sizes)
+     */
+    private static final int[][] SIZES = { { 512, 512 }, { 302, 518 }, { 256, 128 }, { 320, 544 } };
+
+    /**
+     * Decomposition levels
+     */
+    private static final int[] LEVELS = { 1, 3, 5 };
+
+    /**
+     * Filter IDs to try (the ones which cannot be lifted are skipped)
+     */
+    private static final int MAX_FILTER_ID = 16;
+
+    /**
+     * Main method
+     *
+     * @param args Command line arguments (not used)
+     */
+    public static void main(String[] args) {
+        int failures = 0;
+        int runs = 0;
+
+        for (int filterID = 1; filterID <= MAX_FILTER_ID; filterID++) {
+            for (int[] size : SIZES) {
+                for (int level : LEVELS) {
+                    int[][] pixels = generatePixels(size[0], size[1], filterID);
+                    DWT lifted = new DWT(size[0], size[1], filterID, level, Filter.METHOD_PERIODICAL);
+                    DWT convolved = new DWT(size[0], size[1], filterID, level, Filter.METHOD_PERIODICAL);
+                    ImageTree liftedTree = null;
+                    ImageTree convolvedTree = null;
+                    double[] diff = new double[2];
+                    int[][] reconstructed = new int[size[1]][size[0]];
+                    boolean ok = false;
+
+                    lifted.setUseLifting(true);
+                    liftedTree = lifted.forwardDWT(pixels);
+                    if (!liftedTree.isLifted()) {
+                        liftedTree.release();
+                        continue;
+                    }
+                    convolvedTree = convolved.forwardDWT(pixels);
+
+                    compare(liftedTree, convolvedTree, diff);
+                    lifted.inverseDWT(liftedTree, reconstructed);
+                    ok = !convolvedTree.isLifted() && diff[0] <= RELATIVE_TOLERANCE * diff[1]
+                            && (!isLiftedSize(size[0], size[1], level) || equals(pixels, reconstructed));
+
+                    System.out.println("filter " + filterID + " " + size[0] + "x" + size[1] + " level " + level + " max difference="
+                            + diff[0] + " max coefficient=" + diff[1] + (ok ? " ok" : " FAILED"));
+                    liftedTree.release();
+                    convolvedTree.release();
+                    runs++;
+                    if (!ok) {
+                        failures++;
+                    }
+                }
+            }
+        }
+
+        System.out.println(runs + " runs, " + failures + " failed");
+        if (runs == 0 || failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Method to compare the coefficients of the leaf subbands of two trees of the same shape. The largest difference
+     * and the largest coefficient magnitude are accumulated in <code>diff</code>.
+     */
+    private static void compare(ImageTree tree1, ImageTree tree2, double[] diff) {
+        if (tree1 == null) {
+            return;
+        }
+        if (tree1.getCoarse() == null) {
+            Image img1 = tree1.getImage();
+            Image img2 = tree2.getImage();
+            for (int y = 0; y < img1.getHeight(); y++) {
+                for (int x = 0; x < img1.getWidth(); x++) {
+                    double value1 = img1.getValue(y * img1.getStride() + x);
+                    double value2 = img2.getValue(y * img2.getStride() + x);
+                    diff[0] = Math.max(diff[0], Math.abs(value1 - value2));
+                    diff[1] = Math.max(diff[1], Math.abs(value2));
+                }
+            }
+            return;
+        }
+        compare(tree1.getCoarse(), tree2.getCoarse(), diff);
+        compare(tree1.getHorizontal(), tree2.getHorizontal(), diff);
+        compare(tree1.getVertical(), tree2.getVertical(), diff);
+        compare(tree1.getDiagonal(), tree2.getDiagonal(), diff);
+    }
+
+    /**
+     * Method to check whether every level of the transform of an image of the given size is lifted
+     */
+    private static boolean isLiftedSize(int width, int height, int level) {
+        return width % (1 << level) == 0 && height % (1 << level) == 0;
+    }
+
+    /**
+     * Method to check whether two pixel arrays are equal
+     */
+    private static boolean equals(int[][] pixels1, int[][] pixels2) {
+        for (int i = 0; i < pixels1.length; i++) {
+            if (!Arrays.equals(pixels1[i], pixels2[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method to generate a smooth image with some noise. The content is deterministic for a given size and seed.
+     */
+    private static int[][] generatePixels(int width, int height, int seed) {
+        int[][] pixels = new int[height][width];
+        Random random = new Random(seed * 1000L + width);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = (int) (128 + 60 * Math.sin(x / 17.0) + 40 * Math.cos(y / 11.0)) + random.nextInt(41) - 20;
+                pixels[y][x] = Math.max(0, Math.min(255, value));
+            }
+        }
+        return pixels;
+    }
+}